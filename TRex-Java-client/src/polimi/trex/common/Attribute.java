@@ -28,6 +28,8 @@ import polimi.trex.common.Consts.ValType;
 public class Attribute {
 	
 	private String name;
+	// Symbol of the name, computed when first needed
+	private Symbol symbol;
 	private ValType valType;
 	private int intVal;
 	private float floatVal;
@@ -68,6 +70,38 @@ public class Attribute {
 		this.stringVal = val;
 		this.valType = ValType.STRING;
 	}
+
+	/**
+	 * Creates an attribute whose name is the given symbol.
+	 */
+	public Attribute(Symbol name, int val) {
+		this(name.getName(), val);
+		this.symbol = name;
+	}
+
+	/**
+	 * Creates an attribute whose name is the given symbol.
+	 */
+	public Attribute(Symbol name, float val) {
+		this(name.getName(), val);
+		this.symbol = name;
+	}
+
+	/**
+	 * Creates an attribute whose name is the given symbol.
+	 */
+	public Attribute(Symbol name, boolean val) {
+		this(name.getName(), val);
+		this.symbol = name;
+	}
+
+	/**
+	 * Creates an attribute whose name is the given symbol.
+	 */
+	public Attribute(Symbol name, String val) {
+		this(name.getName(), val);
+		this.symbol = name;
+	}
  
 	public String getName() {
 		return name;
@@ -75,6 +109,23 @@ public class Attribute {
 
 	public void setName(String name) {
 		this.name = name;
+		this.symbol = null;
+	}
+
+	/**
+	 * Sets the name to the given symbol.
+	 */
+	public void setName(Symbol name) {
+		this.name = name.getName();
+		this.symbol = name;
+	}
+
+	/**
+	 * Returns the canonical symbol of the name, or null if the name is null.
+	 */
+	public Symbol getSymbol() {
+		if (symbol == null && name != null) symbol = SymbolTable.getSymbol(name);
+		return symbol;
 	}
 	
 	public ValType getValType() {
@@ -124,7 +175,7 @@ public class Attribute {
 		if (! (obj instanceof Attribute)) return false;
 		Attribute other = (Attribute) obj;
 		if (valType!=other.valType) return false;
-		if (! name.equals(other.name)) return false;
+		if (getSymbol() != other.getSymbol()) return false;
 		if (valType==ValType.INT) if (intVal != other.intVal) return false;
 		else if (valType==ValType.FLOAT) if (floatVal != other.floatVal) return false;
 		else if (valType==ValType.BOOL) if (boolVal != other.boolVal) return false;
@@ -29,6 +29,8 @@ import polimi.trex.common.Consts.ValType;
  */
 public class Constraint {
 	private String name;
+	// Symbol of the name, computed when first needed
+	private Symbol symbol;
 	private ConstraintOp op;
 	private ValType valType;
 	private int intVal;
@@ -121,6 +123,15 @@ public class Constraint {
 
 	public void setName(String name) {
 		this.name = name;
+		this.symbol = null;
+	}
+
+	/**
+	 * Returns the canonical symbol of the name, or null if the name is null.
+	 */
+	public Symbol getSymbol() {
+		if (symbol == null && name != null) symbol = SymbolTable.getSymbol(name);
+		return symbol;
 	}
 
 	public ConstraintOp getOp() {
@@ -0,0 +1,176 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.common;
+
+import java.util.Collection;
+
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.common.Consts.ValType;
+import polimi.trex.packets.PubPkt;
+
+/**
+ * Compiles the event type and constraints of a subscription into a {@link Matcher}, made of
+ * one test for each constraint, specialized for its type and operator when compiled, so that
+ * matching a publication does not go through the type and operator of each constraint.
+ *
+ * Constraints are evaluated as on the server: a constraint requires the first attribute with
+ * its name to have its type, and is satisfied if the value of the attribute compares to
+ * the value of the constraint as the operator says (for example, GT requires the attribute
+ * to be greater). Strings are compared lexicographically, and IN requires the value of the
+ * attribute to contain the value of the constraint. IN is not defined for numbers, nor
+ * are operators other than EQ and NE for bools: such constraints are never satisfied.
+ */
+public class ConstraintPredicates {
+
+	/**
+	 * Returns a matcher accepting the publications with the given event type
+	 * that satisfy all the given constraints.
+	 */
+	public static Matcher compile(int eventType, Collection<Constraint> constraints) {
+		ConstraintTest[] tests = new ConstraintTest[constraints.size()];
+		int i = 0;
+		for (Constraint constraint : constraints) {
+			tests[i++] = compile(constraint);
+		}
+		return new CompiledSubscription(eventType, tests);
+	}
+
+	private static ConstraintTest compile(Constraint constraint) {
+		Symbol name = constraint.getSymbol();
+		ConstraintOp op = constraint.getOp();
+		switch (constraint.getValType()) {
+		case INT: return compile(name, op, constraint.getIntVal());
+		case FLOAT: return compile(name, op, constraint.getFloatVal());
+		case BOOL: return compile(name, op, constraint.getBoolVal());
+		default: return compile(name, op, constraint.getStringVal());
+		}
+	}
+
+	private static ConstraintTest compile(Symbol name, ConstraintOp op, final int value) {
+		switch (op) {
+		case EQ: return new ConstraintTest(name, ValType.INT) { @Override boolean test(Attribute attr) { return attr.getIntVal() == value; } };
+		case NE: return new ConstraintTest(name, ValType.INT) { @Override boolean test(Attribute attr) { return attr.getIntVal() != value; } };
+		case LT: return new ConstraintTest(name, ValType.INT) { @Override boolean test(Attribute attr) { return attr.getIntVal() < value; } };
+		case LE: return new ConstraintTest(name, ValType.INT) { @Override boolean test(Attribute attr) { return attr.getIntVal() <= value; } };
+		case GT: return new ConstraintTest(name, ValType.INT) { @Override boolean test(Attribute attr) { return attr.getIntVal() > value; } };
+		case GE: return new ConstraintTest(name, ValType.INT) { @Override boolean test(Attribute attr) { return attr.getIntVal() >= value; } };
+		default: return new Unsatisfiable(name);
+		}
+	}
+
+	private static ConstraintTest compile(Symbol name, ConstraintOp op, final float value) {
+		switch (op) {
+		case EQ: return new ConstraintTest(name, ValType.FLOAT) { @Override boolean test(Attribute attr) { return attr.getFloatVal() == value; } };
+		case NE: return new ConstraintTest(name, ValType.FLOAT) { @Override boolean test(Attribute attr) { return attr.getFloatVal() != value; } };
+		case LT: return new ConstraintTest(name, ValType.FLOAT) { @Override boolean test(Attribute attr) { return attr.getFloatVal() < value; } };
+		case LE: return new ConstraintTest(name, ValType.FLOAT) { @Override boolean test(Attribute attr) { return attr.getFloatVal() <= value; } };
+		case GT: return new ConstraintTest(name, ValType.FLOAT) { @Override boolean test(Attribute attr) { return attr.getFloatVal() > value; } };
+		case GE: return new ConstraintTest(name, ValType.FLOAT) { @Override boolean test(Attribute attr) { return attr.getFloatVal() >= value; } };
+		default: return new Unsatisfiable(name);
+		}
+	}
+
+	private static ConstraintTest compile(Symbol name, ConstraintOp op, final boolean value) {
+		switch (op) {
+		case EQ: return new ConstraintTest(name, ValType.BOOL) { @Override boolean test(Attribute attr) { return attr.getBoolVal() == value; } };
+		case NE: return new ConstraintTest(name, ValType.BOOL) { @Override boolean test(Attribute attr) { return attr.getBoolVal() != value; } };
+		default: return new Unsatisfiable(name);
+		}
+	}
+
+	private static ConstraintTest compile(Symbol name, ConstraintOp op, final String value) {
+		switch (op) {
+		case EQ: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return attr.getStringVal().equals(value); } };
+		case NE: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return !attr.getStringVal().equals(value); } };
+		case LT: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return attr.getStringVal().compareTo(value) < 0; } };
+		case LE: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return attr.getStringVal().compareTo(value) <= 0; } };
+		case GT: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return attr.getStringVal().compareTo(value) > 0; } };
+		case GE: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return attr.getStringVal().compareTo(value) >= 0; } };
+		default: return new ConstraintTest(name, ValType.STRING) { @Override boolean test(Attribute attr) { return attr.getStringVal().contains(value); } };
+		}
+	}
+
+	/**
+	 * A compiled constraint.
+	 */
+	private abstract static class ConstraintTest {
+		private final Symbol name;
+		private final ValType type;
+
+		ConstraintTest(Symbol name, ValType type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		/**
+		 * Returns true if the first of the given attributes with the name of the
+		 * constraint exists, has its type, and satisfies it.
+		 */
+		boolean matches(Collection<Attribute> attributes) {
+			for (Attribute attr : attributes) {
+				if (attr.getSymbol() == name) return attr.getValType() == type && test(attr);
+			}
+			return false;
+		}
+
+		/**
+		 * Tests the value of the given attribute, which has the type of the constraint.
+		 */
+		abstract boolean test(Attribute attr);
+	}
+
+	private static class Unsatisfiable extends ConstraintTest {
+		Unsatisfiable(Symbol name) {
+			super(name, null);
+		}
+
+		@Override
+		boolean matches(Collection<Attribute> attributes) {
+			return false;
+		}
+
+		@Override
+		boolean test(Attribute attr) {
+			return false;
+		}
+	}
+
+	private static class CompiledSubscription implements Matcher {
+		private final int eventType;
+		private final ConstraintTest[] tests;
+
+		CompiledSubscription(int eventType, ConstraintTest[] tests) {
+			this.eventType = eventType;
+			this.tests = tests;
+		}
+
+		@Override
+		public boolean match(PubPkt packet) {
+			if (packet.getEventType() != eventType) return false;
+			if (tests.length == 0) return true;
+			Collection<Attribute> attributes = packet.getAttributes();
+			for (ConstraintTest test : tests) {
+				if (!test.matches(attributes)) return false;
+			}
+			return true;
+		}
+	}
+}
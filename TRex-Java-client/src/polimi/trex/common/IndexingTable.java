@@ -0,0 +1,352 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.utils.IntHashMap;
+
+/**
+ * Indexes subscriptions by event type, then by the name and type of the attributes they
+ * constrain, as the IndexingTable of the T-Rex engine, to find the subscriptions satisfied
+ * by a publication with a counting algorithm: each attribute of the publication looks up the
+ * constraints it satisfies in the indexes of its name, counting one for the subscription
+ * owning each of them, and a subscription is satisfied once all its constraints are counted.
+ * The cost of matching grows with the satisfied constraints, not with the subscriptions.
+ *
+ * Constraints are evaluated as by {@link ConstraintPredicates}, that is as in the server:
+ * constraints never satisfied, as IN on numbers, are left out, so that their subscriptions
+ * are never counted in full.
+ *
+ * Tables are immutable, so they can be matched by any number of threads without locking:
+ * adding or removing a subscription returns a new table, which copies only the indexes of the
+ * names it constrains, sharing all the others. The counts of a match are kept in
+ * {@link Counters}, one for each matching thread. Subscriptions must not be modified while indexed.
+ */
+final class IndexingTable {
+	private final static SubPkt[] NO_SUBS= new SubPkt[0];
+	private final static int[] NO_SLOTS= new int[0];
+
+	/** The table without subscriptions */
+	final static IndexingTable EMPTY= new IndexingTable(new IntHashMap<TypeIndex>(), NO_SUBS, NO_SLOTS, 0);
+
+	// Never modified once the table is built
+	private final IntHashMap<TypeIndex> types;
+	// Subscriptions and their number of constraints, by slot; free slots are null
+	private final SubPkt[] subs;
+	private final int[] numConstraints;
+	private final int size;
+
+	private IndexingTable(IntHashMap<TypeIndex> types, SubPkt[] subs, int[] numConstraints, int size) {
+		this.types = types;
+		this.subs = subs;
+		this.numConstraints = numConstraints;
+		this.size = size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns true if the given subscription, compared by identity, is indexed.
+	 */
+	boolean contains(SubPkt sub) {
+		return slotOf(sub) >= 0;
+	}
+
+	/**
+	 * Returns a table indexing the given subscription too.
+	 */
+	IndexingTable add(SubPkt sub) {
+		int slot = slotOf(null);
+		if (slot < 0) slot = subs.length;
+		SubPkt[] newSubs = Arrays.copyOf(subs, Math.max(subs.length, slot+1));
+		int[] newNumConstraints = Arrays.copyOf(numConstraints, newSubs.length);
+		newSubs[slot] = sub;
+		newNumConstraints[slot] = sub.getConstraints().size();
+		IntHashMap<TypeIndex> newTypes = new IntHashMap<TypeIndex>(types);
+		TypeIndex typeIndex = types.get(sub.getEventType());
+		if (typeIndex == null) typeIndex = TypeIndex.EMPTY;
+		newTypes.put(sub.getEventType(), typeIndex.add(sub, slot));
+		return new IndexingTable(newTypes, newSubs, newNumConstraints, size+1);
+	}
+
+	/**
+	 * Returns a table without the given subscription, compared by identity,
+	 * or this table if the subscription is not indexed.
+	 */
+	IndexingTable remove(SubPkt sub) {
+		int slot = slotOf(sub);
+		if (slot < 0) return this;
+		if (size == 1) return EMPTY;
+		SubPkt[] newSubs = subs.clone();
+		newSubs[slot] = null;
+		IntHashMap<TypeIndex> newTypes = new IntHashMap<TypeIndex>(types);
+		TypeIndex typeIndex = types.get(sub.getEventType()).remove(sub, slot);
+		if (typeIndex.isEmpty()) newTypes.remove(sub.getEventType());
+		else newTypes.put(sub.getEventType(), typeIndex);
+		return new IndexingTable(newTypes, newSubs, numConstraints, size-1);
+	}
+
+	private int slotOf(SubPkt sub) {
+		for (int slot=0; slot<subs.length; slot++) {
+			if (subs[slot] == sub) return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds to the given list the subscriptions whose event type and constraints
+	 * are satisfied by the given publication.
+	 *
+	 * @param counters the counters of the calling thread
+	 */
+	void match(PubPkt pkt, Counters counters, List<SubPkt> result) {
+		TypeIndex typeIndex = types.get(pkt.getEventType());
+		if (typeIndex == null) return;
+		for (int slot : typeIndex.unconstrained) {
+			result.add(subs[slot]);
+		}
+		if (typeIndex.byName.isEmpty()) return;
+		counters.begin(this, result);
+		try {
+			for (Attribute attr : pkt.getAttributes()) {
+				Symbol name = attr.getSymbol();
+				// Only the first attribute with a given name is considered, as in the server
+				if (!counters.addName(name)) continue;
+				AttributeIndex attributeIndex = typeIndex.byName.get(name.getId());
+				if (attributeIndex != null) attributeIndex.match(attr, counters);
+			}
+		} finally {
+			counters.end();
+		}
+	}
+
+	/**
+	 * The constraints counted for each subscription in a match. Counters are reused across
+	 * matches, and tables, but must not be shared by threads matching at the same time.
+	 */
+	static class Counters {
+		private final static int INITIAL_CAPACITY= 16;
+
+		// Constraints counted for each slot in the current match, valid if stamped with the current stamp
+		private int[] counts;
+		private int[] stamps;
+		private int stamp;
+		// Names of the attributes of the current publication
+		private Symbol[] names;
+		private int numNames;
+		// The table being matched, and the subscriptions it found
+		private IndexingTable table;
+		private List<SubPkt> matched;
+
+		Counters() {
+			this.counts = new int[INITIAL_CAPACITY];
+			this.stamps = new int[INITIAL_CAPACITY];
+			this.names = new Symbol[INITIAL_CAPACITY];
+		}
+
+		private void begin(IndexingTable table, List<SubPkt> result) {
+			int capacity = table.subs.length;
+			if (capacity > counts.length) {
+				capacity = Math.max(capacity, counts.length*2);
+				counts = new int[capacity];
+				stamps = new int[capacity];
+				stamp = 0;
+			}
+			if (++stamp == 0) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+			this.table = table;
+			this.matched = result;
+		}
+
+		private void end() {
+			Arrays.fill(names, 0, numNames, null);
+			numNames = 0;
+			table = null;
+			matched = null;
+		}
+
+		/**
+		 * Records the name of an attribute of the current publication.
+		 *
+		 * @return false if the name was already recorded
+		 */
+		private boolean addName(Symbol name) {
+			for (int i=0; i<numNames; i++) {
+				if (names[i] == name) return false;
+			}
+			if (numNames == names.length) names = Arrays.copyOf(names, numNames*2);
+			names[numNames++] = name;
+			return true;
+		}
+
+		/**
+		 * Counts the constraints satisfied by the current publication,
+		 * owned by the subscriptions in the given range of slots.
+		 */
+		void hit(int[] slots, int from, int to) {
+			int[] numConstraints = table.numConstraints;
+			for (int i=from; i<to; i++) {
+				int slot = slots[i];
+				if (stamps[slot] != stamp) {
+					stamps[slot] = stamp;
+					counts[slot] = 0;
+				}
+				if (++counts[slot] == numConstraints[slot]) matched.add(table.subs[slot]);
+			}
+		}
+	}
+
+	/**
+	 * The subscriptions of one event type.
+	 */
+	private static class TypeIndex {
+		final static TypeIndex EMPTY= new TypeIndex(NO_SLOTS, new IntHashMap<AttributeIndex>());
+
+		// Slots of the subscriptions without constraints
+		final int[] unconstrained;
+		// Indexes of the constraints, by symbol id of the name
+		final IntHashMap<AttributeIndex> byName;
+
+		TypeIndex(int[] unconstrained, IntHashMap<AttributeIndex> byName) {
+			this.unconstrained = unconstrained;
+			this.byName = byName;
+		}
+
+		TypeIndex add(SubPkt sub, int slot) {
+			if (sub.getConstraints().isEmpty()) {
+				int[] newUnconstrained = Arrays.copyOf(unconstrained, unconstrained.length+1);
+				newUnconstrained[unconstrained.length] = slot;
+				return new TypeIndex(newUnconstrained, byName);
+			}
+			IntHashMap<AttributeIndex> newByName = new IntHashMap<AttributeIndex>(byName);
+			for (Constraint constraint : sub.getConstraints()) {
+				int name = constraint.getSymbol().getId();
+				AttributeIndex attributeIndex = newByName.get(name);
+				if (attributeIndex == null) attributeIndex = AttributeIndex.EMPTY;
+				newByName.put(name, attributeIndex.add(constraint, slot));
+			}
+			return new TypeIndex(unconstrained, newByName);
+		}
+
+		TypeIndex remove(SubPkt sub, int slot) {
+			if (sub.getConstraints().isEmpty()) {
+				int[] newUnconstrained = new int[unconstrained.length-1];
+				int j = 0;
+				for (int other : unconstrained) {
+					if (other != slot) newUnconstrained[j++] = other;
+				}
+				return new TypeIndex(newUnconstrained, byName);
+			}
+			IntHashMap<AttributeIndex> newByName = new IntHashMap<AttributeIndex>(byName);
+			for (Constraint constraint : sub.getConstraints()) {
+				int name = constraint.getSymbol().getId();
+				AttributeIndex attributeIndex = newByName.get(name);
+				// Already removed, if only left with constraints that are not indexed
+				if (attributeIndex == null) continue;
+				attributeIndex = attributeIndex.remove(constraint, slot);
+				if (attributeIndex.isEmpty()) newByName.remove(name);
+				else newByName.put(name, attributeIndex);
+			}
+			return new TypeIndex(unconstrained, newByName);
+		}
+
+		boolean isEmpty() {
+			return unconstrained.length == 0 && byName.isEmpty();
+		}
+	}
+
+	/**
+	 * The constraints on one attribute name, by type of value.
+	 */
+	private static class AttributeIndex {
+		final static AttributeIndex EMPTY= new AttributeIndex(NumericConstraintIndex.EMPTY,
+				NumericConstraintIndex.EMPTY, NumericConstraintIndex.EMPTY, StringConstraintIndex.EMPTY);
+
+		final NumericConstraintIndex ints;
+		final NumericConstraintIndex floats;
+		final NumericConstraintIndex bools;
+		final StringConstraintIndex strings;
+
+		AttributeIndex(NumericConstraintIndex ints, NumericConstraintIndex floats,
+				NumericConstraintIndex bools, StringConstraintIndex strings) {
+			this.ints = ints;
+			this.floats = floats;
+			this.bools = bools;
+			this.strings = strings;
+		}
+
+		AttributeIndex add(Constraint constraint, int slot) {
+			ConstraintOp op = constraint.getOp();
+			switch (constraint.getValType()) {
+			case INT: return new AttributeIndex(ints.add(op, constraint.getIntVal(), slot), floats, bools, strings);
+			case FLOAT: return new AttributeIndex(ints, floats.add(op, constraint.getFloatVal(), slot), bools, strings);
+			case BOOL:
+				if (!isDefinedForBools(op)) return this;
+				return new AttributeIndex(ints, floats, bools.add(op, toDouble(constraint.getBoolVal()), slot), strings);
+			case STRING: return new AttributeIndex(ints, floats, bools, strings.add(op, constraint.getStringVal(), slot));
+			default: return this;
+			}
+		}
+
+		AttributeIndex remove(Constraint constraint, int slot) {
+			ConstraintOp op = constraint.getOp();
+			switch (constraint.getValType()) {
+			case INT: return new AttributeIndex(ints.remove(op, constraint.getIntVal(), slot), floats, bools, strings);
+			case FLOAT: return new AttributeIndex(ints, floats.remove(op, constraint.getFloatVal(), slot), bools, strings);
+			case BOOL:
+				if (!isDefinedForBools(op)) return this;
+				return new AttributeIndex(ints, floats, bools.remove(op, toDouble(constraint.getBoolVal()), slot), strings);
+			case STRING: return new AttributeIndex(ints, floats, bools, strings.remove(op, constraint.getStringVal(), slot));
+			default: return this;
+			}
+		}
+
+		boolean isEmpty() {
+			return ints.isEmpty() && floats.isEmpty() && bools.isEmpty() && strings.isEmpty();
+		}
+
+		void match(Attribute attr, Counters counters) {
+			switch (attr.getValType()) {
+			case INT: ints.match(attr.getIntVal(), counters); break;
+			case FLOAT: floats.match(attr.getFloatVal(), counters); break;
+			case BOOL: bools.match(toDouble(attr.getBoolVal()), counters); break;
+			case STRING: strings.match(attr.getStringVal(), counters); break;
+			}
+		}
+
+		private static boolean isDefinedForBools(ConstraintOp op) {
+			return op == ConstraintOp.EQ || op == ConstraintOp.NE;
+		}
+
+		private static double toDouble(boolean value) {
+			return value ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.common;
+
+import polimi.trex.common.Consts.ConstraintOp;
+
+/**
+ * Indexes the constraints on one attribute name having numeric values, as the IntConstraintIndex
+ * and FloatConstraintIndex of the T-Rex engine. Int, float and bool values are all represented
+ * exactly as doubles (bools as 0 and 1), in separate indexes for each type.
+ * For each operator, the values of the constraints are kept sorted, together with the slots
+ * of their subscriptions: the constraints satisfied by a value form at most two runs,
+ * found by binary search. IN constraints are not defined for numbers, and never satisfied.
+ *
+ * Indexes are immutable: adding or removing a constraint returns a new index, which
+ * shares the arrays of the other operators.
+ */
+final class NumericConstraintIndex {
+	private final static ConstraintOp[] OPS= ConstraintOp.values();
+	private final static double[] NO_VALUES= new double[0];
+	private final static int[] NO_SLOTS= new int[0];
+
+	/** The index without constraints */
+	final static NumericConstraintIndex EMPTY= new NumericConstraintIndex();
+
+	// Values of the constraints, sorted, and slots of their subscriptions, by operator
+	private final double[][] values;
+	private final int[][] slots;
+	private final int count;
+
+	private NumericConstraintIndex() {
+		int numOps = OPS.length;
+		this.values = new double[numOps][];
+		this.slots = new int[numOps][];
+		for (int o=0; o<numOps; o++) {
+			values[o] = NO_VALUES;
+			slots[o] = NO_SLOTS;
+		}
+		this.count = 0;
+	}
+
+	private NumericConstraintIndex(double[][] values, int[][] slots, int count) {
+		this.values = values;
+		this.slots = slots;
+		this.count = count;
+	}
+
+	/**
+	 * Returns an index with the given constraint too.
+	 */
+	NumericConstraintIndex add(ConstraintOp op, double value, int slot) {
+		int o = op.ordinal();
+		double[] opValues = values[o];
+		int[] opSlots = slots[o];
+		int i = upperBound(opValues, value);
+		double[] newValues = new double[opValues.length+1];
+		int[] newSlots = new int[opSlots.length+1];
+		System.arraycopy(opValues, 0, newValues, 0, i);
+		System.arraycopy(opSlots, 0, newSlots, 0, i);
+		newValues[i] = value;
+		newSlots[i] = slot;
+		System.arraycopy(opValues, i, newValues, i+1, opValues.length-i);
+		System.arraycopy(opSlots, i, newSlots, i+1, opSlots.length-i);
+		return with(o, newValues, newSlots, count+1);
+	}
+
+	/**
+	 * Returns an index without a constraint added with the given operator, value and slot,
+	 * or this index if there is no such constraint.
+	 */
+	NumericConstraintIndex remove(ConstraintOp op, double value, int slot) {
+		int o = op.ordinal();
+		double[] opValues = values[o];
+		int[] opSlots = slots[o];
+		int end = upperBound(opValues, value);
+		for (int i=lowerBound(opValues, value); i<end; i++) {
+			if (opSlots[i] != slot) continue;
+			if (opValues.length == 1) return with(o, NO_VALUES, NO_SLOTS, count-1);
+			double[] newValues = new double[opValues.length-1];
+			int[] newSlots = new int[opSlots.length-1];
+			System.arraycopy(opValues, 0, newValues, 0, i);
+			System.arraycopy(opSlots, 0, newSlots, 0, i);
+			System.arraycopy(opValues, i+1, newValues, i, newValues.length-i);
+			System.arraycopy(opSlots, i+1, newSlots, i, newSlots.length-i);
+			return with(o, newValues, newSlots, count-1);
+		}
+		return this;
+	}
+
+	private NumericConstraintIndex with(int o, double[] opValues, int[] opSlots, int newCount) {
+		double[][] newValues = values.clone();
+		int[][] newSlots = slots.clone();
+		newValues[o] = opValues;
+		newSlots[o] = opSlots;
+		return new NumericConstraintIndex(newValues, newSlots, newCount);
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Counts the constraints satisfied by the given attribute value.
+	 */
+	void match(double value, IndexingTable.Counters counters) {
+		for (ConstraintOp op : OPS) {
+			int o = op.ordinal();
+			double[] opValues = values[o];
+			int size = opValues.length;
+			if (size == 0) continue;
+			int[] opSlots = slots[o];
+			// Constraints with values lower than the attribute are before lower, greater after upper
+			int lower = lowerBound(opValues, value);
+			int upper = upperBound(opValues, value);
+			switch (op) {
+			case EQ: counters.hit(opSlots, lower, upper); break;
+			case NE: counters.hit(opSlots, 0, lower); counters.hit(opSlots, upper, size); break;
+			case LT: counters.hit(opSlots, upper, size); break;
+			case LE: counters.hit(opSlots, lower, size); break;
+			case GT: counters.hit(opSlots, 0, lower); break;
+			case GE: counters.hit(opSlots, 0, upper); break;
+			default: break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first value not lower than the given one.
+	 */
+	private static int lowerBound(double[] sorted, double value) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low+high) >>> 1;
+			if (sorted[mid] < value) low = mid+1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the index of the first value greater than the given one.
+	 */
+	private static int upperBound(double[] sorted, double value) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low+high) >>> 1;
+			if (sorted[mid] <= value) low = mid+1;
+			else high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,148 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.common;
+
+import java.util.Collection;
+
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.packets.SubPkt;
+
+/**
+ * Decides whether a subscription covers another, that is whether all the publications
+ * satisfying the second one also satisfy the first one, so that sending the first one to the
+ * server is enough to receive the publications of both. Constraints are evaluated as by
+ * {@link ConstraintPredicates}, and custom matchers are not considered.
+ *
+ * The analysis is sound but not complete: a subscription covers another with its event type
+ * if each of its constraints is implied by a single constraint of the other one, on the same
+ * name and type. Constraints that are never satisfied are not taken into account.
+ */
+public class SubscriptionCovering {
+
+	/**
+	 * Returns true if all the publications satisfying the fine subscription
+	 * satisfy the coarse one too.
+	 */
+	public static boolean covers(SubPkt coarse, SubPkt fine) {
+		if (coarse.getEventType() != fine.getEventType()) return false;
+		for (Constraint constraint : coarse.getConstraints()) {
+			if (!isImplied(constraint, fine.getConstraints())) return false;
+		}
+		return true;
+	}
+
+	private static boolean isImplied(Constraint coarse, Collection<Constraint> fine) {
+		for (Constraint constraint : fine) {
+			if (implies(constraint, coarse)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if all the attributes satisfying the fine constraint
+	 * satisfy the coarse one too.
+	 */
+	public static boolean implies(Constraint fine, Constraint coarse) {
+		if (fine.getSymbol() != coarse.getSymbol() || fine.getValType() != coarse.getValType()) return false;
+		switch (fine.getValType()) {
+		case INT: return impliesInt(fine.getOp(), fine.getIntVal(), coarse.getOp(), coarse.getIntVal());
+		case FLOAT: return impliesNumber(fine.getOp(), fine.getFloatVal(), coarse.getOp(), coarse.getFloatVal());
+		case BOOL: return impliesBool(fine.getOp(), fine.getBoolVal(), coarse.getOp(), coarse.getBoolVal());
+		default: return impliesString(fine.getOp(), fine.getStringVal(), coarse.getOp(), coarse.getStringVal());
+		}
+	}
+
+	private static boolean impliesInt(ConstraintOp fineOp, int fineVal, ConstraintOp coarseOp, int coarseVal) {
+		// Between integers, LT v is LE v-1 and GT v is GE v+1
+		return impliesNumber(toClosed(fineOp), toClosed(fineOp, fineVal), toClosed(coarseOp), toClosed(coarseOp, coarseVal));
+	}
+
+	private static ConstraintOp toClosed(ConstraintOp op) {
+		switch (op) {
+		case LT: return ConstraintOp.LE;
+		case GT: return ConstraintOp.GE;
+		default: return op;
+		}
+	}
+
+	private static long toClosed(ConstraintOp op, int val) {
+		switch (op) {
+		case LT: return (long) val-1;
+		case GT: return (long) val+1;
+		default: return val;
+		}
+	}
+
+	private static boolean impliesNumber(ConstraintOp fineOp, double fineVal, ConstraintOp coarseOp, double coarseVal) {
+		if (fineOp == ConstraintOp.IN || coarseOp == ConstraintOp.IN) return false;
+		if (Double.isNaN(fineVal) || Double.isNaN(coarseVal)) return false;
+		return impliesOrdered(fineOp, fineVal < coarseVal ? -1 : (fineVal > coarseVal ? 1 : 0), coarseOp);
+	}
+
+	private static boolean impliesBool(ConstraintOp fineOp, boolean fineVal, ConstraintOp coarseOp, boolean coarseVal) {
+		if (!isDefinedForBools(fineOp) || !isDefinedForBools(coarseOp)) return false;
+		// A bool attribute different from a value is equal to the other one
+		boolean fineEq = fineOp == ConstraintOp.EQ ? fineVal : !fineVal;
+		boolean coarseEq = coarseOp == ConstraintOp.EQ ? coarseVal : !coarseVal;
+		return fineEq == coarseEq;
+	}
+
+	private static boolean isDefinedForBools(ConstraintOp op) {
+		return op == ConstraintOp.EQ || op == ConstraintOp.NE;
+	}
+
+	private static boolean impliesString(ConstraintOp fineOp, String fineVal, ConstraintOp coarseOp, String coarseVal) {
+		if (coarseOp == ConstraintOp.IN) {
+			// Values equal to or containing the fine one contain the coarse one
+			return (fineOp == ConstraintOp.EQ || fineOp == ConstraintOp.IN) && fineVal.contains(coarseVal);
+		}
+		if (fineOp == ConstraintOp.IN) {
+			// Values containing the fine one differ from the coarse one, unless it contains the fine one too
+			return coarseOp == ConstraintOp.NE && !coarseVal.contains(fineVal);
+		}
+		return impliesOrdered(fineOp, Integer.signum(fineVal.compareTo(coarseVal)), coarseOp);
+	}
+
+	/**
+	 * Decides implication between ordering operators, given how the fine value
+	 * compares to the coarse one (-1, 0 or 1).
+	 */
+	private static boolean impliesOrdered(ConstraintOp fineOp, int cmp, ConstraintOp coarseOp) {
+		switch (coarseOp) {
+		case EQ: return fineOp == ConstraintOp.EQ && cmp == 0;
+		case NE:
+			switch (fineOp) {
+			case EQ: return cmp != 0;
+			case NE: return cmp == 0;
+			case LT: return cmp <= 0;
+			case LE: return cmp < 0;
+			case GT: return cmp >= 0;
+			case GE: return cmp > 0;
+			default: return false;
+			}
+		case LT: return (fineOp == ConstraintOp.EQ || fineOp == ConstraintOp.LE) ? cmp < 0 : fineOp == ConstraintOp.LT && cmp <= 0;
+		case LE: return (fineOp == ConstraintOp.EQ || fineOp == ConstraintOp.LT || fineOp == ConstraintOp.LE) && cmp <= 0;
+		case GT: return (fineOp == ConstraintOp.EQ || fineOp == ConstraintOp.GE) ? cmp > 0 : fineOp == ConstraintOp.GT && cmp >= 0;
+		case GE: return (fineOp == ConstraintOp.EQ || fineOp == ConstraintOp.GT || fineOp == ConstraintOp.GE) && cmp >= 0;
+		default: return false;
+		}
+	}
+}
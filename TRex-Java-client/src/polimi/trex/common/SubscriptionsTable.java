@@ -21,47 +21,194 @@
 package polimi.trex.common;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 import polimi.trex.packets.PubPkt;
 import polimi.trex.packets.SubPkt;
 
+/**
+ * The subscriptions sent to the server. Publications received are post-filtered against
+ * the custom matchers of the subscriptions they satisfy, which are found through an
+ * {@link IndexingTable}, so that the cost of matching does not grow with the number of
+ * subscriptions. Subscriptions must not be modified once added.
+ *
+ * Subscriptions can also be routed (see {@link #addRoute(SubPkt)}), whether they were sent or
+ * not: the same index then finds the routed subscriptions satisfied by each publication, so that
+ * it can be delivered only to the listeners of those subscriptions. The custom matchers of routed
+ * subscriptions only decide their routing, unless the subscriptions are in the table too.
+ *
+ * The table is safe for concurrent use: subscriptions are added and removed by copying the
+ * current snapshot, under a lock, then publishing the new one, while matching reads the last
+ * published snapshot without locking, so it never waits for subscriptions to change.
+ */
 public class SubscriptionsTable {
-	private ArrayList<SubPkt> subscriptions;
-	private ArrayList<SubPkt> subscriptionsWithCustomMatcher;
+	private volatile Snapshot snapshot;
+	// Counters and subscriptions satisfied by the publication being matched, for each thread
+	private final ThreadLocal<MatchState> matchState;
 
 	public SubscriptionsTable() {
-		this.subscriptions = new ArrayList<SubPkt>();
-		this.subscriptionsWithCustomMatcher = new ArrayList<SubPkt>();
+		this.snapshot = Snapshot.EMPTY;
+		this.matchState = new ThreadLocal<MatchState>() {
+			@Override
+			protected MatchState initialValue() {
+				return new MatchState();
+			}
+		};
 	}
 	
-	public void addSubscription(SubPkt sub) {
-		this.subscriptions.add(sub);
-		if (sub.hasCustomMatcher()) this.subscriptionsWithCustomMatcher.add(sub);
+	public synchronized void addSubscription(SubPkt sub) {
+		Snapshot current = snapshot;
+		ArrayList<SubPkt> subscriptions = new ArrayList<SubPkt>(current.subscriptions);
+		subscriptions.add(sub);
+		Set<SubPkt> filters = current.filters;
+		IndexingTable index = current.index;
+		// The same subscription may be added more than once, but is indexed once
+		if (sub.hasCustomMatcher() && !filters.contains(sub)) {
+			filters = newIdentitySet(filters);
+			filters.add(sub);
+			if (!current.routes.contains(sub)) index = index.add(sub);
+		}
+		snapshot = new Snapshot(Collections.unmodifiableList(subscriptions), filters, current.routes, index);
 	}
 	
-	public void removeSubscription(SubPkt sub) {
-		this.subscriptions.remove(sub);
-		if (sub.hasCustomMatcher()) this.subscriptionsWithCustomMatcher.remove(sub);
+	public synchronized void removeSubscription(SubPkt sub) {
+		Snapshot current = snapshot;
+		ArrayList<SubPkt> subscriptions = new ArrayList<SubPkt>(current.subscriptions);
+		int position = subscriptions.indexOf(sub);
+		if (position < 0) return;
+		SubPkt removed = subscriptions.remove(position);
+		Set<SubPkt> filters = current.filters;
+		IndexingTable index = current.index;
+		if (filters.contains(removed) && !containsInstance(subscriptions, removed)) {
+			filters = newIdentitySet(filters);
+			filters.remove(removed);
+			if (!current.routes.contains(removed)) index = index.remove(removed);
+		}
+		snapshot = new Snapshot(Collections.unmodifiableList(subscriptions), filters, current.routes, index);
+	}
+
+	/**
+	 * Routes the given subscription, compared by identity, so that the publications
+	 * satisfying it are reported by {@link #match(PubPkt, List)}. The subscription
+	 * does not need to be in the table.
+	 */
+	public synchronized void addRoute(SubPkt sub) {
+		Snapshot current = snapshot;
+		if (current.routes.contains(sub)) return;
+		Set<SubPkt> routes = newIdentitySet(current.routes);
+		routes.add(sub);
+		IndexingTable index = current.index;
+		if (!current.filters.contains(sub)) index = index.add(sub);
+		snapshot = new Snapshot(current.subscriptions, current.filters, routes, index);
+	}
+
+	/**
+	 * Stops routing the given subscription, compared by identity.
+	 */
+	public synchronized void removeRoute(SubPkt sub) {
+		Snapshot current = snapshot;
+		if (!current.routes.contains(sub)) return;
+		Set<SubPkt> routes = newIdentitySet(current.routes);
+		routes.remove(sub);
+		IndexingTable index = current.index;
+		if (!current.filters.contains(sub)) index = index.remove(sub);
+		snapshot = new Snapshot(current.subscriptions, current.filters, routes, index);
+	}
+
+	private static boolean containsInstance(List<SubPkt> subscriptions, SubPkt sub) {
+		for (SubPkt other : subscriptions) {
+			if (other == sub) return true;
+		}
+		return false;
+	}
+
+	private static Set<SubPkt> newIdentitySet(Set<SubPkt> elements) {
+		Set<SubPkt> set = Collections.newSetFromMap(new IdentityHashMap<SubPkt, Boolean>());
+		set.addAll(elements);
+		return set;
 	}
 	
-	public ArrayList<SubPkt> getSubscriptions() {
-		return this.subscriptions;
+	/**
+	 * Returns an unmodifiable snapshot of the subscriptions, not affected by later changes.
+	 */
+	public List<SubPkt> getSubscriptions() {
+		return snapshot.subscriptions;
 	}
 	
 	public boolean match(PubPkt pkt) {
-		if (this.subscriptionsWithCustomMatcher.size()==0) {
+		return match(pkt, null);
+	}
+
+	/**
+	 * Post-filters the given publication as {@link #match(PubPkt)} and, if it passes, adds
+	 * to the given list the routed subscriptions it satisfies. Each subscription is evaluated
+	 * at most once, and a routed subscription with a custom matcher is reported only if its
+	 * matcher accepts the publication; unless the subscription is in the table, a matcher
+	 * refusing the publication does not discard it.
+	 *
+	 * @param routed the list receiving the satisfied routed subscriptions, or null
+	 * @return false if the publication must be discarded, in which case the list is not valid
+	 */
+	public boolean match(PubPkt pkt, List<SubPkt> routed) {
+		Snapshot current = snapshot;
+		if (current.index.isEmpty()) {
 			//In this case all the matching work has already been done on the server
 			return true;
 		}
 		//Else we have to check again the match already done on the server, plus our custom matcher
-		for (SubPkt sub: this.subscriptionsWithCustomMatcher) {
-			//When we find one matching we don't care about the others; it's enough to send the notification
-			//1 means that constraint matching succeded but the custom matcher failed
-			if (sub.match(pkt)==-1) return false;
+		//The index finds the subscriptions whose constraints are satisfied, as on the server
+		MatchState state = matchState.get();
+		List<SubPkt> matched = state.matched;
+		current.index.match(pkt, state.counters, matched);
+		try {
+			for (int i=0; i<matched.size(); i++) {
+				SubPkt sub = matched.get(i);
+				if (current.filters.contains(sub)) {
+					//The publication was addressed to this subscription, but the custom matcher failed
+					if (!sub.getCustomMatcher().match(pkt)) return false;
+					if (routed != null && current.routes.contains(sub)) routed.add(sub);
+				} else if (routed != null) {
+					//Only routed, so the custom matcher decides the routing alone
+					if (!sub.hasCustomMatcher() || sub.getCustomMatcher().match(pkt)) routed.add(sub);
+				}
+			}
+		} finally {
+			matched.clear();
 		}
 		//Ok if I'm here it means that (1 must hold):
 		// - I have some subs with custom matcher but none of them have matched against the static constraints 
 		// - I have some subs with custom matcher but none of them have not matched the custom matcher while matching the constraints
 		return true;
 	}
+
+	/**
+	 * The subscriptions at some point in time. Never modified once published.
+	 */
+	private static class Snapshot {
+		final static Snapshot EMPTY= new Snapshot(Collections.<SubPkt>emptyList(),
+				newIdentitySet(Collections.<SubPkt>emptySet()), newIdentitySet(Collections.<SubPkt>emptySet()), IndexingTable.EMPTY);
+
+		// Unmodifiable
+		final List<SubPkt> subscriptions;
+		// Subscriptions in the table with a custom matcher, and routed subscriptions, compared by identity
+		final Set<SubPkt> filters;
+		final Set<SubPkt> routes;
+		// Both the filters and the routes
+		final IndexingTable index;
+
+		Snapshot(List<SubPkt> subscriptions, Set<SubPkt> filters, Set<SubPkt> routes, IndexingTable index) {
+			this.subscriptions = subscriptions;
+			this.filters = filters;
+			this.routes = routes;
+			this.index = index;
+		}
+	}
+
+	private static class MatchState {
+		final IndexingTable.Counters counters= new IndexingTable.Counters();
+		final ArrayList<SubPkt> matched= new ArrayList<SubPkt>();
+	}
 }
@@ -0,0 +1,63 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.common;
+
+/**
+ * The canonical representation of an attribute name, obtained from the {@link SymbolTable}.
+ * There is a single Symbol for each name, so that names can be compared by identity or by id.
+ */
+public final class Symbol {
+	private final int id;
+	private final String name;
+	private final byte[] bytes;
+	private final int hash;
+
+	Symbol(int id, String name, byte[] bytes, int hash) {
+		this.id = id;
+		this.name = name;
+		this.bytes = bytes;
+		this.hash = hash;
+	}
+
+	/**
+	 * Returns the id of the symbol, unique in the process and greater than 0.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int getHash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,161 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A process-wide table of the attribute names, mapping each name to its canonical {@link Symbol}.
+ * Names can be looked up directly from the bytes received from the network: if the name
+ * is already known, its Symbol is found by hashing the bytes, without creating any String.
+ * 
+ * Lookups do not lock: new names are added under a lock, in place, and the table is
+ * copied only when it grows. Symbols are never removed, so the names received from the
+ * network are limited to {@link #MAX_WIRE_SIZE}, to protect the table from peers sending
+ * ever new names.
+ */
+public class SymbolTable {
+	/** Size of the table beyond which names received from the network are rejected */
+	public final static int MAX_WIRE_SIZE= 1 << 16;
+
+	private final static int INITIAL_CAPACITY= 256;
+	private final static int FNV_OFFSET= 0x811c9dc5;
+	private final static int FNV_PRIME= 0x01000193;
+
+	// Open addressing with linear probing, at most half full. Slots are filled in place
+	// and published by writing the field again: Symbols are immutable, so readers
+	// racing with a writer see either null or a complete Symbol.
+	private static volatile Symbol[] slots= new Symbol[INITIAL_CAPACITY];
+	private static int size= 0;
+
+	/**
+	 * Returns the Symbol of the name encoded, in UTF-8, in the given bytes, adding it if needed.
+	 * The bytes are expected to come from the network: a new name is rejected once the table
+	 * holds {@link #MAX_WIRE_SIZE} names.
+	 * 
+	 * @throws IllegalArgumentException if the name is new and the table is full
+	 */
+	public static Symbol getSymbol(byte[] source, int start, int length) {
+		return getSymbol(source, start, length, true);
+	}
+
+	private static Symbol getSymbol(byte[] source, int start, int length, boolean bounded) {
+		int hash= hash(source, start, length);
+		Symbol[] current= slots;
+		int mask= current.length-1;
+		for (int i= hash & mask; current[i] != null; i= (i+1) & mask) {
+			Symbol symbol= current[i];
+			if (symbol.getHash() == hash && bytesEqual(symbol.getBytes(), source, start, length)) return symbol;
+		}
+		byte[] bytes= new byte[length];
+		System.arraycopy(source, start, bytes, 0, length);
+		return add(new String(bytes, StandardCharsets.UTF_8), bytes, hash, bounded);
+	}
+
+	/**
+	 * Returns the Symbol of the given name, adding it if needed.
+	 */
+	public static Symbol getSymbol(String name) {
+		if (! isAscii(name)) {
+			byte[] bytes= name.getBytes(StandardCharsets.UTF_8);
+			return getSymbol(bytes, 0, bytes.length, false);
+		}
+		int hash= hash(name);
+		Symbol[] current= slots;
+		int mask= current.length-1;
+		for (int i= hash & mask; current[i] != null; i= (i+1) & mask) {
+			Symbol symbol= current[i];
+			if (symbol.getHash() == hash && symbol.getName().equals(name)) return symbol;
+		}
+		return add(name, name.getBytes(StandardCharsets.US_ASCII), hash, false);
+	}
+
+	/**
+	 * Returns the number of known names.
+	 */
+	public static synchronized int size() {
+		return size;
+	}
+
+	private static synchronized Symbol add(String name, byte[] bytes, int hash, boolean bounded) {
+		// Someone else may have added it in the meanwhile
+		Symbol[] current= slots;
+		int mask= current.length-1;
+		for (int i= hash & mask; current[i] != null; i= (i+1) & mask) {
+			if (current[i].getHash() == hash && current[i].getName().equals(name)) return current[i];
+		}
+		if (bounded && size >= MAX_WIRE_SIZE) {
+			throw new IllegalArgumentException("Too many attribute names: "+size);
+		}
+		if ((size+1)*2 > current.length) {
+			Symbol[] newSlots= new Symbol[current.length*2];
+			for (Symbol symbol : current) {
+				if (symbol != null) insert(newSlots, symbol);
+			}
+			current= newSlots;
+		}
+		Symbol symbol= new Symbol(++size, name, bytes, hash);
+		insert(current, symbol);
+		slots= current;
+		return symbol;
+	}
+
+	private static void insert(Symbol[] table, Symbol symbol) {
+		int mask= table.length-1;
+		int i= symbol.getHash() & mask;
+		while (table[i] != null) i= (i+1) & mask;
+		table[i]= symbol;
+	}
+
+	private static int hash(byte[] source, int start, int length) {
+		int hash= FNV_OFFSET;
+		for (int i=start; i<start+length; i++) {
+			hash= (hash ^ (source[i] & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Same as {@link #hash(byte[], int, int)} on the ASCII bytes of the given string.
+	 */
+	private static int hash(String name) {
+		int hash= FNV_OFFSET;
+		for (int i=0; i<name.length(); i++) {
+			hash= (hash ^ name.charAt(i)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static boolean isAscii(String name) {
+		for (int i=0; i<name.length(); i++) {
+			if (name.charAt(i) >= 0x80) return false;
+		}
+		return true;
+	}
+
+	private static boolean bytesEqual(byte[] bytes, byte[] source, int start, int length) {
+		if (bytes.length != length) return false;
+		for (int i=0; i<length; i++) {
+			if (bytes[i] != source[start+i]) return false;
+		}
+		return true;
+	}
+}
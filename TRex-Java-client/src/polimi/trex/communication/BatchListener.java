@@ -0,0 +1,37 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+/**
+ * A BatchListener is informed by a {@link BatchPublisher} every time it writes a batch
+ * of publications to the server.
+ */
+public interface BatchListener {
+
+	/**
+	 * Method called after each flush of the batch
+	 * 
+	 * @param numPkts the number of packets written in the flush
+	 * @param numBytes the number of bytes written in the flush
+	 */
+	void notifyFlush(int numPkts, int numBytes);
+
+}
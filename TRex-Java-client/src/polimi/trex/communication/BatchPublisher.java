@@ -0,0 +1,313 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import polimi.trex.marshalling.BufferMarshaller;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.NameDictionary;
+import polimi.trex.packets.CompressedPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.TRexPkt.PacketType;
+
+/**
+ * A BatchPublisher coalesces the publications sent through a {@link TransportManager}.
+ * Publications are encoded one after the other into a reusable buffer, which is written
+ * to the server with a single write when its size reaches a threshold or when the oldest
+ * buffered publication has waited for the configured linger time, whichever comes first.
+ * Full buffers are swapped with a spare one, and written without holding the lock of the
+ * publisher, so that other publishers keep filling the next batch meanwhile.
+ * 
+ * If the server accepted compression (see {@link TransportManager#setCompression(boolean)}),
+ * batches of at least the compression threshold are written compressed, in a single
+ * {@link CompressedPkt}, unless this does not make them smaller.
+ * 
+ * Each flush is reported to the registered {@link BatchListener}s.
+ * If a flush fails, the publications of the batch are lost.
+ */
+public class BatchPublisher implements Runnable {
+	private final static int DEFAULT_FLUSH_THRESHOLD= 16*1024;
+	private final static long DEFAULT_LINGER= 5;
+	private final static int DEFAULT_COMPRESSION_THRESHOLD= 1024;
+
+	private TransportManager manager;
+	private int flushThreshold;
+	private long lingerMillis;
+	private int compressionThreshold;
+	private ByteBuffer buffer;
+	// A buffer of the threshold size, already written, to swap with the full one
+	private ByteBuffer spare;
+	private int numPkts;
+	// Batches swapped out and waiting to be written, in order
+	private ArrayDeque<Batch> ready;
+	// Held while writing, so that batches are written in order
+	private final Object flushLock= new Object();
+	private long firstPendingTime;
+	private long flushesNum;
+	private long pktsNum;
+	private Collection<BatchListener> listeners;
+	private boolean closed;
+	private Thread t;
+
+	/**
+	 * Creates a BatchPublisher flushing every 16 KB or after 5 ms.
+	 * 
+	 * @param manager the TransportManager used to write batches
+	 */
+	public BatchPublisher(TransportManager manager) {
+		this(manager, DEFAULT_FLUSH_THRESHOLD, DEFAULT_LINGER);
+	}
+
+	/**
+	 * Creates a BatchPublisher.
+	 * 
+	 * @param manager the TransportManager used to write batches
+	 * @param flushThreshold the number of buffered bytes that triggers a flush
+	 * @param lingerMillis the maximum time a publication waits in the buffer;
+	 * if 0, batches are written only when the threshold is reached or {@link #flush()} is called
+	 */
+	public BatchPublisher(TransportManager manager, int flushThreshold, long lingerMillis) {
+		if (flushThreshold <= 0) throw new IllegalArgumentException("Flush threshold must be positive");
+		if (lingerMillis < 0) throw new IllegalArgumentException("Linger time must not be negative");
+		this.manager = manager;
+		this.flushThreshold = flushThreshold;
+		this.lingerMillis = lingerMillis;
+		this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+		this.buffer = ByteBuffer.allocate(flushThreshold);
+		this.ready = new ArrayDeque<Batch>();
+		this.listeners = new CopyOnWriteArrayList<BatchListener>();
+		this.closed = false;
+	}
+
+	/**
+	 * Sets the minimum size, in bytes, of the batches written compressed, when the server
+	 * accepted compression. Smaller batches, which compress badly, are written as they are.
+	 * The default is 1 KB.
+	 */
+	public synchronized void setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0) throw new IllegalArgumentException("Compression threshold must not be negative");
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public void addBatchListener(BatchListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeBatchListener(BatchListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Adds a publication to the current batch, flushing it if the threshold is reached.
+	 * 
+	 * @param pkt The packet to publish
+	 * @throws IOException if the publisher is closed or a flush fails
+	 */
+	public void publish(PubPkt pkt) throws IOException {
+		boolean full = false;
+		synchronized (this) {
+			if (closed) throw new IOException("Publisher closed");
+			NameDictionary names = manager.getNameDictionary();
+			try {
+				BufferMarshaller.marshal(pkt, buffer, names);
+			} catch (BufferOverflowException e) {
+				swap();
+				full = true;
+				// A single packet larger than the threshold gets a buffer of its own
+				int size = Marshaller.getSize(pkt);
+				if (size > buffer.capacity()) buffer = ByteBuffer.allocate(size);
+				BufferMarshaller.marshal(pkt, buffer, names);
+			}
+			if (numPkts++ == 0) {
+				firstPendingTime = System.currentTimeMillis();
+				if (lingerMillis > 0) {
+					if (t == null) {
+						t = new Thread(this, "TRex-BatchPublisher");
+						t.setDaemon(true);
+						t.start();
+					}
+					notifyAll();
+				}
+			}
+			if (buffer.position() >= flushThreshold) {
+				swap();
+				full = true;
+			}
+		}
+		// Only the publisher filling a batch waits for it to be written
+		if (full) flush(false);
+	}
+
+	/**
+	 * Writes the current batch, if any, to the server, after the ones still waiting.
+	 * 
+	 * @throws IOException if the write fails
+	 */
+	public void flush() throws IOException {
+		flush(true);
+	}
+
+	/**
+	 * Writes the batches waiting to be written and, if requested, the current one.
+	 */
+	private void flush(boolean current) throws IOException {
+		synchronized (flushLock) {
+			while (true) {
+				Batch batch;
+				boolean compress;
+				synchronized (this) {
+					if (current) swap();
+					batch = ready.poll();
+					compress = manager.isCompressionActive() && batch != null && batch.bytes >= compressionThreshold;
+				}
+				if (batch == null) return;
+				try {
+					write(batch, compress);
+				} finally {
+					synchronized (this) {
+						// Buffers enlarged by a huge packet are not kept
+						if (spare == null && batch.buffer.capacity() == flushThreshold) {
+							batch.buffer.clear();
+							spare = batch.buffer;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the current batch, if any, to the ones waiting to be written,
+	 * continuing on the spare buffer. Called holding the lock of the publisher.
+	 */
+	private void swap() {
+		if (numPkts == 0) return;
+		ready.add(new Batch(buffer, numPkts));
+		numPkts = 0;
+		buffer = (spare != null) ? spare : ByteBuffer.allocate(flushThreshold);
+		spare = null;
+	}
+
+	/**
+	 * Writes the given batch, compressed if requested and smaller. Called holding the flush lock only.
+	 */
+	private void write(Batch batch, boolean compress) throws IOException {
+		byte[] frame = batch.buffer.array();
+		int bytes = batch.bytes;
+		if (compress) {
+			byte[] compressed = Marshaller.marshal(new CompressedPkt(frame, 0, bytes));
+			if (compressed.length < bytes) {
+				frame = compressed;
+				bytes = compressed.length;
+			}
+		}
+		manager.write(frame, 0, bytes);
+		manager.getMetrics().packetsSent(PacketType.PUB_PACKET, batch.pkts);
+		synchronized (this) {
+			flushesNum++;
+			pktsNum += batch.pkts;
+		}
+		for (BatchListener listener : listeners) {
+			listener.notifyFlush(batch.pkts, bytes);
+		}
+	}
+
+	/**
+	 * Flushes the current batch and stops accepting publications.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		flush();
+	}
+
+	/**
+	 * Returns the number of flushes done so far.
+	 */
+	public synchronized long getFlushesNum() {
+		return flushesNum;
+	}
+
+	/**
+	 * Returns the number of packets flushed so far.
+	 */
+	public synchronized long getPktsNum() {
+		return pktsNum;
+	}
+
+	/**
+	 * Returns the average number of packets per flush.
+	 */
+	public synchronized double getAvgPktsPerFlush() {
+		return (flushesNum == 0) ? 0 : (double) pktsNum / flushesNum;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				synchronized (this) {
+					if (closed) return;
+					if (numPkts == 0) {
+						wait();
+						continue;
+					}
+					long delay = firstPendingTime + lingerMillis - System.currentTimeMillis();
+					if (delay > 0) {
+						wait(delay);
+						continue;
+					}
+				}
+				try {
+					flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop lingering
+		}
+	}
+
+	/**
+	 * A batch swapped out of the publisher: its buffer and the number of packets in it.
+	 */
+	private static class Batch {
+		private final ByteBuffer buffer;
+		private final int pkts;
+		private final int bytes;
+
+		private Batch(ByteBuffer buffer, int pkts) {
+			this.buffer = buffer;
+			this.pkts = pkts;
+			this.bytes = buffer.position();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import polimi.trex.packets.PingPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.RulePkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.TRexPkt.PacketType;
+import polimi.trex.packets.UnSubPkt;
+import polimi.trex.utils.LatencyHistogram;
+
+/**
+ * Traffic and timing metrics of the connection of a {@link TransportManager}: bytes and
+ * packets (by type) sent and received, writes to the connection, time spent encoding,
+ * decoding and dispatching packets, and depth of the outbound queue. Counters are
+ * {@link LongAdder}s and timings are {@link LatencyHistogram}s, so that updating them
+ * from many threads is cheap.
+ * 
+ * Metrics can be pulled through {@link #getSnapshot()}, or exported through JMX
+ * with {@link #registerMBean(String)}.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+	private final static String DOMAIN= "polimi.trex";
+	private final static PacketType[] TYPES= PacketType.values();
+
+	private OutboundQueue outbound;
+	private LongAdder bytesIn;
+	private LongAdder bytesOut;
+	private LongAdder writes;
+	private LongAdder[] pktsIn;
+	private LongAdder[] pktsOut;
+	private LatencyHistogram decodeTime;
+	private LatencyHistogram dispatchTime;
+	private LatencyHistogram encodeTime;
+	private ObjectName objectName;
+
+	ConnectionMetrics(OutboundQueue outbound) {
+		this.outbound = outbound;
+		this.bytesIn = new LongAdder();
+		this.bytesOut = new LongAdder();
+		this.writes = new LongAdder();
+		this.pktsIn = new LongAdder[TYPES.length];
+		this.pktsOut = new LongAdder[TYPES.length];
+		for (int i=0; i<TYPES.length; i++) {
+			pktsIn[i] = new LongAdder();
+			pktsOut[i] = new LongAdder();
+		}
+		this.decodeTime = new LatencyHistogram();
+		this.dispatchTime = new LatencyHistogram();
+		this.encodeTime = new LatencyHistogram();
+	}
+
+	void bytesReceived(int numBytes) {
+		bytesIn.add(numBytes);
+	}
+
+	/**
+	 * Records a write to the connection of the given number of bytes.
+	 */
+	void bytesSent(int numBytes) {
+		bytesOut.add(numBytes);
+		writes.increment();
+	}
+
+	void packetsReceived(TRexPkt[] pkts) {
+		for (TRexPkt pkt : pkts) {
+			PacketType type = getType(pkt);
+			if (type != null) pktsIn[type.ordinal()].increment();
+		}
+	}
+
+	void packetSent(TRexPkt pkt) {
+		PacketType type = getType(pkt);
+		if (type != null) pktsOut[type.ordinal()].increment();
+	}
+
+	void packetsSent(PacketType type, int numPkts) {
+		pktsOut[type.ordinal()].add(numPkts);
+	}
+
+	void decoded(long nanos) {
+		decodeTime.record(nanos);
+	}
+
+	void dispatched(long nanos) {
+		dispatchTime.record(nanos);
+	}
+
+	void encoded(long nanos) {
+		encodeTime.record(nanos);
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	public long getPacketsIn(PacketType type) {
+		return pktsIn[type.ordinal()].sum();
+	}
+
+	public long getPacketsOut(PacketType type) {
+		return pktsOut[type.ordinal()].sum();
+	}
+
+	@Override
+	public Map<String, Long> getPacketsIn() {
+		return toMap(pktsIn);
+	}
+
+	@Override
+	public Map<String, Long> getPacketsOut() {
+		return toMap(pktsOut);
+	}
+
+	@Override
+	public LatencyHistogram.Summary getDecodeTime() {
+		return decodeTime.getSummary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getDispatchTime() {
+		return dispatchTime.getSummary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getEncodeTime() {
+		return encodeTime.getSummary();
+	}
+
+	@Override
+	public int getOutboundQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Returns the current value of all the metrics.
+	 */
+	public MetricsSnapshot getSnapshot() {
+		long[] in = new long[TYPES.length];
+		long[] out = new long[TYPES.length];
+		for (int i=0; i<TYPES.length; i++) {
+			in[i] = pktsIn[i].sum();
+			out[i] = pktsOut[i].sum();
+		}
+		return new MetricsSnapshot(System.currentTimeMillis(), bytesIn.sum(), bytesOut.sum(), writes.sum(), in, out,
+				decodeTime.getSummary(), dispatchTime.getSummary(), encodeTime.getSummary(), outbound.size());
+	}
+
+	/**
+	 * Sets all the counters and timings to zero.
+	 */
+	@Override
+	public void reset() {
+		bytesIn.reset();
+		bytesOut.reset();
+		writes.reset();
+		for (int i=0; i<TYPES.length; i++) {
+			pktsIn[i].reset();
+			pktsOut[i].reset();
+		}
+		decodeTime.reset();
+		dispatchTime.reset();
+		encodeTime.reset();
+	}
+
+	/**
+	 * Registers these metrics in the platform MBean server, with name
+	 * <code>polimi.trex:type=Connection,name=</code><i>name</i>.
+	 * 
+	 * @param name the name identifying the connection, unique in the JVM
+	 * @throws JMException if the registration fails, for example because the name is already used
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		if (objectName != null) throw new IllegalStateException("Already registered as "+objectName);
+		ObjectName newName = new ObjectName(DOMAIN+":type=Connection,name="+ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+		objectName = newName;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		objectName = null;
+	}
+
+	private static Map<String, Long> toMap(LongAdder[] counters) {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (int i=0; i<TYPES.length; i++) {
+			map.put(TYPES[i].name(), counters[i].sum());
+		}
+		return map;
+	}
+
+	private static PacketType getType(TRexPkt pkt) {
+		if (pkt instanceof PubPkt) return PacketType.PUB_PACKET;
+		if (pkt instanceof SubPkt) return PacketType.SUB_PACKET;
+		if (pkt instanceof UnSubPkt) return PacketType.UNSUB_PACKET;
+		if (pkt instanceof RulePkt) return PacketType.RULE_PACKET;
+		if (pkt instanceof PingPkt) return PacketType.PING_PACKET;
+		return null;
+	}
+}
@@ -0,0 +1,57 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.util.Map;
+
+import polimi.trex.utils.LatencyHistogram;
+
+/**
+ * The management interface of {@link ConnectionMetrics}, exported through JMX.
+ * Packet counts are keyed by {@link polimi.trex.packets.TRexPkt.PacketType} name;
+ * times are in nanoseconds.
+ */
+public interface ConnectionMetricsMXBean {
+
+	public long getBytesIn();
+
+	public long getBytesOut();
+
+	/** Number of writes to the connection, each sending one or more packets */
+	public long getWrites();
+
+	public Map<String, Long> getPacketsIn();
+
+	public Map<String, Long> getPacketsOut();
+
+	/** Time spent decoding the bytes of each read */
+	public LatencyHistogram.Summary getDecodeTime();
+
+	/** Time spent delivering the packets of each read to listeners */
+	public LatencyHistogram.Summary getDispatchTime();
+
+	/** Time spent marshalling each sent packet */
+	public LatencyHistogram.Summary getEncodeTime();
+
+	public int getOutboundQueueDepth();
+
+	public void reset();
+}
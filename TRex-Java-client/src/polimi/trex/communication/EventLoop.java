@@ -0,0 +1,136 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread driving the reads and writes of many {@link NioTransportManager}s
+ * through one {@link Selector}. All the methods of the connections that touch their
+ * {@link SelectionKey} are executed by this thread, either as ready events or as tasks
+ * submitted through {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+	private final static long PING_CHECK_INTERVAL= 1000;
+	private final static int READ_BUFFER_LENGTH= 64*1024;
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	// Read buffer shared by all the connections of this loop: read bytes are
+	// immediately copied by the unmarshaller of the connection
+	private ByteBuffer readBuffer;
+	private volatile boolean stop;
+	private long lastPingCheck;
+	private Thread t;
+
+	EventLoop(String name, boolean daemon) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_LENGTH);
+		this.stop = false;
+		this.lastPingCheck = System.currentTimeMillis();
+		this.t = new Thread(this, name);
+		t.setDaemon(daemon);
+	}
+
+	void start() {
+		t.start();
+	}
+
+	/**
+	 * Schedules the given task for execution on the loop thread.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == t;
+	}
+
+	void shutdown() {
+		stop = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (!stop) {
+			try {
+				selector.select(PING_CHECK_INTERVAL);
+			} catch (IOException e) {
+				// The loop cannot serve its connections anymore: fail them all
+				for (SelectionKey key : selector.keys()) {
+					((NioTransportManager) key.attachment()).connectionLost(key.channel(), e);
+				}
+				break;
+			}
+			runTasks();
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				NioTransportManager conn = (NioTransportManager) key.attachment();
+				try {
+					if (key.isReadable()) conn.handleRead(key, readBuffer);
+					if (key.isValid() && key.isWritable()) conn.flush(key);
+				} catch (CancelledKeyException e) {
+					// connection closed in the meanwhile: nothing to do
+				}
+			}
+			long currentTime = System.currentTimeMillis();
+			if (currentTime-lastPingCheck >= PING_CHECK_INTERVAL) {
+				lastPingCheck = currentTime;
+				for (SelectionKey key : selector.keys()) {
+					if (key.isValid()) ((NioTransportManager) key.attachment()).checkPing(currentTime);
+				}
+			}
+		}
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
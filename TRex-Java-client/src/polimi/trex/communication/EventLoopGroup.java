@@ -0,0 +1,85 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed pool of event loop threads shared by many {@link NioTransportManager}s.
+ * Each connection is bound to one loop, chosen round robin, for its whole life.
+ */
+public class EventLoopGroup {
+	private final static int DEFAULT_THREADS= Math.min(4, Runtime.getRuntime().availableProcessors());
+
+	private static EventLoopGroup defaultGroup;
+
+	private EventLoop[] loops;
+	private AtomicInteger next;
+
+	/**
+	 * Creates a group with the given number of event loop threads.
+	 *
+	 * @param numThreads the number of threads of the group
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public EventLoopGroup(int numThreads) throws IOException {
+		this(numThreads, false);
+	}
+
+	private EventLoopGroup(int numThreads, boolean daemon) throws IOException {
+		if (numThreads <= 0) throw new IllegalArgumentException("Number of threads must be positive");
+		loops = new EventLoop[numThreads];
+		next = new AtomicInteger(0);
+		for (int i=0; i<numThreads; i++) {
+			loops[i] = new EventLoop("TRex-EventLoop-"+i, daemon);
+		}
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Returns the group used by the {@link NioTransportManager}s which are not given one explicitly.
+	 * Its threads are daemon threads, so they do not prevent the JVM from exiting.
+	 */
+	public static synchronized EventLoopGroup getDefault() throws IOException {
+		if (defaultGroup == null) defaultGroup = new EventLoopGroup(DEFAULT_THREADS, true);
+		return defaultGroup;
+	}
+
+	EventLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	public int getNumThreads() {
+		return loops.length;
+	}
+
+	/**
+	 * Stops all the threads of the group. Connections still bound to it stop being served.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Consts.ValType;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.utils.LatencyHistogram;
+
+/**
+ * Measures the round trip time to the server. Since the server does not answer to
+ * {@link polimi.trex.packets.PingPkt}s, probes are publications of a reserved event
+ * type, to which the TransportManager subscribes: the server routes them back,
+ * and the time elapsed since they were sent is recorded in a {@link LatencyHistogram}.
+ * Each probe carries a sequence number; probes not received back are ignored.
+ */
+class LatencyProbe implements Runnable, PacketListener {
+	private final static String SEQ_ATTRIBUTE= "seq";
+	// Number of probes waiting for an answer tracked at the same time
+	private final static int WINDOW= 64;
+
+	private TransportManager manager;
+	private int eventType;
+	private long interval;
+	private LatencyHistogram histogram;
+	private int[] sentSeqs;
+	private long[] sendTimes;
+	private int nextSeq;
+	private volatile boolean stop;
+
+	LatencyProbe(TransportManager manager, int eventType, long interval) {
+		this.manager = manager;
+		this.eventType = eventType;
+		this.interval = interval;
+		this.histogram = new LatencyHistogram();
+		this.sentSeqs = new int[WINDOW];
+		this.sendTimes = new long[WINDOW];
+		this.nextSeq = 0;
+		this.stop = false;
+	}
+
+	int getEventType() {
+		return eventType;
+	}
+
+	LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	void stop() {
+		stop = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			manager.send(new SubPkt(eventType));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		while (! stop) {
+			sendProbe();
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				// interrupted by stop()
+				continue;
+			}
+		}
+	}
+
+	private void sendProbe() {
+		PubPkt pkt = new PubPkt(eventType);
+		synchronized (this) {
+			int seq = nextSeq++;
+			pkt.addAttribute(new Attribute(SEQ_ATTRIBUTE, seq));
+			sentSeqs[seq & (WINDOW-1)] = seq;
+			sendTimes[seq & (WINDOW-1)] = System.nanoTime();
+		}
+		try {
+			manager.send(pkt);
+		} catch (IOException e) {
+			// not connected: the probe is lost, as if the server did not answer
+		}
+	}
+
+	@Override
+	public void notifyPktReceived(TRexPkt pkt) {
+		long receiveTime = System.nanoTime();
+		for (Attribute attr : ((PubPkt) pkt).getAttributes()) {
+			if (! attr.getName().equals(SEQ_ATTRIBUTE) || attr.getValType() != ValType.INT) continue;
+			int seq = attr.getIntVal();
+			synchronized (this) {
+				// Ignore answers to probes already out of the window
+				if (sentSeqs[seq & (WINDOW-1)] != seq || sendTimes[seq & (WINDOW-1)] == 0) return;
+				histogram.record(receiveTime-sendTimes[seq & (WINDOW-1)]);
+				// Record each probe once, even if received twice
+				sendTimes[seq & (WINDOW-1)] = 0;
+			}
+			return;
+		}
+	}
+
+	@Override
+	public void notifyConnectionError() {
+		// nothing to do: the TransportManager stops the probe
+	}
+}
@@ -0,0 +1,219 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import polimi.trex.packets.PooledPubPkt;
+import polimi.trex.packets.TRexPkt;
+
+/**
+ * Wraps a {@link PacketListener} registered with a {@link PacketDispatcher}.
+ * An inline handle calls the listener on the thread that decoded the packets.
+ * A decoupled handle owns a bounded queue and a worker thread (a virtual thread
+ * when the JVM supports them) that calls the listener, in order, for every queued packet:
+ * a slow listener only delays itself. When its queue is full, the {@link ListenerOverflowPolicy}
+ * of the handle applies; connection errors are never dropped.
+ * A decoupled handle retains the {@link PooledPubPkt}s it queues, and releases
+ * them when the listener returns.
+ */
+class ListenerHandle implements Runnable {
+	// Queued in place of a packet to signal a connection error
+	private final static Object CONNECTION_ERROR= new Object();
+	private final static ThreadFactory THREAD_FACTORY= createThreadFactory();
+
+	private PacketListener listener;
+	private ListenerOverflowPolicy policy;
+	private BlockingDeque<Object> queue;
+	private volatile boolean closed;
+	// Set when the listener is failed by a full queue, under the FAIL policy
+	private volatile boolean failed;
+	private Thread t;
+
+	/**
+	 * Creates a handle for the given listener.
+	 * 
+	 * @param listener the wrapped listener
+	 * @param queueCapacity the capacity of the queue of the handle; if 0 the listener is called inline
+	 * @param policy what to do when the queue is full
+	 */
+	ListenerHandle(PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		if (queueCapacity < 0) throw new IllegalArgumentException("Queue capacity must not be negative");
+		if (policy == null) throw new IllegalArgumentException("Overflow policy must not be null");
+		this.listener = listener;
+		this.policy = policy;
+		this.closed = false;
+		this.failed = false;
+		if (queueCapacity > 0) {
+			this.queue = new LinkedBlockingDeque<Object>(queueCapacity);
+			this.t = THREAD_FACTORY.newThread(this);
+			t.start();
+		}
+	}
+
+	PacketListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Delivers the given packet to the listener. If the handle is decoupled and its
+	 * queue is full, applies its overflow policy.
+	 */
+	void deliver(TRexPkt pkt) {
+		if (queue == null) {
+			listener.notifyPktReceived(pkt);
+			return;
+		}
+		if (pkt instanceof PooledPubPkt) ((PooledPubPkt) pkt).retain();
+		if (! enqueue(pkt)) release(pkt);
+	}
+
+	void notifyConnectionError() {
+		if (queue == null) listener.notifyConnectionError();
+		else enqueue(CONNECTION_ERROR);
+	}
+
+	/**
+	 * Stops delivering packets to the listener, without waiting for the queued ones.
+	 */
+	void close() {
+		closed = true;
+		if (t != null) t.interrupt();
+	}
+
+	/**
+	 * Queues the given element, applying the overflow policy if the queue is full.
+	 * 
+	 * @return false if the element was not queued
+	 */
+	private boolean enqueue(Object element) {
+		if (policy == ListenerOverflowPolicy.BLOCK) return put(element);
+		// Producers are serialized, so that room made in the queue is not taken by others
+		synchronized (this) {
+			if (closed) return false;
+			if (queue.offerLast(element)) return true;
+			if (element != CONNECTION_ERROR) {
+				if (policy == ListenerOverflowPolicy.DROP_NEWEST) return false;
+				if (policy == ListenerOverflowPolicy.FAIL) {
+					fail();
+					return false;
+				}
+			}
+			Object oldest = queue.pollFirst();
+			if (oldest == CONNECTION_ERROR) {
+				// Never dropped: the new element is dropped instead
+				queue.offerFirst(oldest);
+				return false;
+			}
+			release(oldest);
+			return queue.offerLast(element);
+		}
+	}
+
+	/**
+	 * Queues the given element, waiting for room in the queue.
+	 * 
+	 * @return false if the handle was closed, or the thread interrupted, before it was queued
+	 */
+	private boolean put(Object element) {
+		try {
+			while (!closed) {
+				if (queue.offerLast(element, 100, TimeUnit.MILLISECONDS)) return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Stops delivering packets: the worker thread discards the queued ones,
+	 * then notifies the listener of a connection error.
+	 */
+	private void fail() {
+		failed = true;
+		close();
+	}
+
+	private static void release(Object element) {
+		if (element instanceof PooledPubPkt) ((PooledPubPkt) element).release();
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			Object element;
+			try {
+				element = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				if (element == CONNECTION_ERROR) listener.notifyConnectionError();
+				else listener.notifyPktReceived((TRexPkt) element);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				release(element);
+			}
+		}
+		Object element;
+		while ((element = queue.poll()) != null) {
+			release(element);
+		}
+		if (failed) {
+			try {
+				listener.notifyConnectionError();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Uses virtual threads if the running JVM provides them (Java 21+),
+	 * daemon platform threads otherwise.
+	 */
+	private static ThreadFactory createThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "TRex-Listener-", 0L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return new ThreadFactory() {
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TRex-Listener-"+(count++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,40 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+/**
+ * What a listener decoupled through a queue of its own (see
+ * {@link TransportManager#addPacketListener(PacketListener, int, ListenerOverflowPolicy)})
+ * does with a packet arriving when its queue is full.
+ */
+public enum ListenerOverflowPolicy {
+	/** Drop the oldest queued packet to make room for the new one */
+	DROP_OLDEST,
+	/** Drop the new packet */
+	DROP_NEWEST,
+	/** Stop delivering packets to the listener, and notify it of a connection error */
+	FAIL,
+	/**
+	 * Wait for room in the queue, delaying the reading of the connection, and so all its listeners.
+	 * Not supported by {@link NioTransportManager}, whose event loop must never block.
+	 */
+	BLOCK
+}
@@ -0,0 +1,118 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import polimi.trex.packets.TRexPkt.PacketType;
+import polimi.trex.utils.LatencyHistogram;
+
+/**
+ * The value of the {@link ConnectionMetrics} of a connection at a given time.
+ * Rates are computed as the difference between two snapshots.
+ */
+public class MetricsSnapshot {
+	private long timestamp;
+	private long bytesIn;
+	private long bytesOut;
+	private long writes;
+	private long[] pktsIn;
+	private long[] pktsOut;
+	private LatencyHistogram.Summary decodeTime;
+	private LatencyHistogram.Summary dispatchTime;
+	private LatencyHistogram.Summary encodeTime;
+	private int outboundQueueDepth;
+
+	MetricsSnapshot(long timestamp, long bytesIn, long bytesOut, long writes, long[] pktsIn, long[] pktsOut,
+			LatencyHistogram.Summary decodeTime, LatencyHistogram.Summary dispatchTime,
+			LatencyHistogram.Summary encodeTime, int outboundQueueDepth) {
+		this.timestamp = timestamp;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.writes = writes;
+		this.pktsIn = pktsIn;
+		this.pktsOut = pktsOut;
+		this.decodeTime = decodeTime;
+		this.dispatchTime = dispatchTime;
+		this.encodeTime = encodeTime;
+		this.outboundQueueDepth = outboundQueueDepth;
+	}
+
+	/**
+	 * Returns the time the snapshot was taken, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getWrites() {
+		return writes;
+	}
+
+	public long getPacketsIn(PacketType type) {
+		return pktsIn[type.ordinal()];
+	}
+
+	public long getPacketsOut(PacketType type) {
+		return pktsOut[type.ordinal()];
+	}
+
+	public LatencyHistogram.Summary getDecodeTime() {
+		return decodeTime;
+	}
+
+	public LatencyHistogram.Summary getDispatchTime() {
+		return dispatchTime;
+	}
+
+	public LatencyHistogram.Summary getEncodeTime() {
+		return encodeTime;
+	}
+
+	public int getOutboundQueueDepth() {
+		return outboundQueueDepth;
+	}
+
+	/**
+	 * Returns the packets of the given type received per second since the given previous snapshot.
+	 */
+	public double getPacketsInRate(MetricsSnapshot previous, PacketType type) {
+		return rate(getPacketsIn(type)-previous.getPacketsIn(type), previous);
+	}
+
+	/**
+	 * Returns the packets of the given type sent per second since the given previous snapshot.
+	 */
+	public double getPacketsOutRate(MetricsSnapshot previous, PacketType type) {
+		return rate(getPacketsOut(type)-previous.getPacketsOut(type), previous);
+	}
+
+	private double rate(long delta, MetricsSnapshot previous) {
+		long elapsed = timestamp-previous.timestamp;
+		return elapsed <= 0 ? 0 : delta*1000.0/elapsed;
+	}
+}
@@ -0,0 +1,518 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import polimi.trex.common.SubscriptionsTable;
+import polimi.trex.common.Consts.EngineType;
+import polimi.trex.marshalling.BufferedPacketUnmarshaller;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.Unmarshaller.PubFormat;
+import polimi.trex.packets.PingPkt;
+import polimi.trex.packets.PooledPubPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.PubPktView;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.UnSubPkt;
+
+/**
+ * A non-blocking alternative to {@link TransportManager}, offering the same API.
+ * Instead of using one reader thread (and one ping thread) per connection, the
+ * connection is served by one of the threads of an {@link EventLoopGroup},
+ * so that any number of connections can be multiplexed on a few threads.
+ *
+ * Packets are delivered to the registered {@link PacketListener}s on the event loop
+ * thread: listeners should not block, as this would delay all the connections of the loop.
+ * Slow listeners should be registered through {@link #addPacketListener(PacketListener, int)}:
+ * when their queue is full, packets are dropped or the listener is failed, as the loop
+ * never waits for them (the {@link ListenerOverflowPolicy#BLOCK} policy is refused).
+ * The name dictionary of {@link TransportManager#setNameDictionary(boolean)} is not supported.
+ */
+public class NioTransportManager {
+
+	private final static long PING_TIMEOUT= 125000;
+
+	private EventLoop loop;
+	private SocketChannel channel;
+	private PacketDispatcher dispatcher;
+	private BufferedPacketUnmarshaller unmarshaller;
+	// The packets to write on the current connection: each connection has a queue of its own
+	private volatile ConcurrentLinkedQueue<ByteBuffer> outQueue;
+	// Loop thread only: the key of the current connection, and the queue written through it
+	private SelectionKey key;
+	private ConcurrentLinkedQueue<ByteBuffer> keyQueue;
+	private AtomicBoolean flushScheduled;
+	private Runnable flushTask;
+	private boolean usePing;
+	private long lastPingTime;
+	private volatile boolean connected;
+	private boolean started;
+	private SubscriptionsTable sTable;
+	// Sends the subscriptions made through subscribe, merged
+	private SubscriptionMerger merger;
+
+	/**
+	 * Initializes the NioTransportManager on the default {@link EventLoopGroup}.
+	 * If usePing is set to true, also send periodic ping packets to the server
+	 *
+	 * @param usePing if true, the NioTransportManager sends periodic ping packets to the server
+	 * @throws IOException if the default group cannot be created
+	 */
+	public NioTransportManager(boolean usePing) throws IOException {
+		this(EventLoopGroup.getDefault(), usePing);
+	}
+
+	/**
+	 * Initializes the NioTransportManager on the given {@link EventLoopGroup}.
+	 * If usePing is set to true, also send periodic ping packets to the server
+	 *
+	 * @param group the group providing the thread serving this connection
+	 * @param usePing if true, the NioTransportManager sends periodic ping packets to the server
+	 */
+	public NioTransportManager(EventLoopGroup group, boolean usePing) {
+		this.loop = group.next();
+		this.sTable = new SubscriptionsTable();
+		this.dispatcher = new PacketDispatcher(sTable);
+		this.merger = new SubscriptionMerger(new SubscriptionMerger.Sender() {
+			@Override
+			public void send(TRexPkt pkt) throws IOException {
+				NioTransportManager.this.send(pkt);
+			}
+		}, dispatcher);
+		this.unmarshaller = new BufferedPacketUnmarshaller();
+		this.outQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.flushScheduled = new AtomicBoolean(false);
+		this.flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flush(key);
+			}
+		};
+		this.usePing = usePing;
+		this.connected = false;
+	}
+
+	/**
+	 * Connects with the server having the given address and port.
+	 * The connection is established synchronously, then handed to the event loop.
+	 *
+	 * @param address The address of the server
+	 * @param port the port of the server
+	 * @throws IOException
+	 */
+	public synchronized void connect(String address, int port) throws IOException {
+		if (connected) return;
+		final SocketChannel ch = SocketChannel.open(new InetSocketAddress(address, port));
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		channel = ch;
+		// The loop may still be serving the previous connection: it is reset by the loop itself
+		final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+		outQueue = queue;
+		lastPingTime = System.currentTimeMillis();
+		connected = true;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				unmarshaller.clear();
+				try {
+					key = ch.register(loop.getSelector(), 0, NioTransportManager.this);
+				} catch (IOException e) {
+					// channel already closed by stop()
+					return;
+				}
+				keyQueue = queue;
+				// Packets may have been queued before registering
+				flush(key);
+			}
+		});
+	}
+
+	/**
+	 * Starts listening for new packets from the server
+	 */
+	public synchronized void start() {
+		if (started || !connected) return;
+		final SocketChannel ch = channel;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (key != null && key.isValid() && key.channel() == ch) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			}
+		});
+		started = true;
+	}
+
+	/**
+	 * Stops listening for new packets from the server and closes the connection.
+	 * Packets not yet written are discarded.
+	 */
+	public synchronized void stop() {
+		connected = false;
+		started = false;
+		closeChannel();
+		outQueue.clear();
+	}
+
+	/**
+	 * Registers a listener for receiving packets from the server
+	 *
+	 * @param listener The listener to register
+	 */
+	public void addPacketListener(PacketListener listener) {
+		dispatcher.addPacketListener(listener);
+	}
+
+	/**
+	 * Registers a listener for receiving packets from the server, decoupled from the
+	 * thread reading from the connection. Packets are queued for the listener and
+	 * delivered, in order, by a thread of its own (a virtual thread, if available).
+	 * When the queue is full, the oldest queued packet is dropped.
+	 * 
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 */
+	public void addPacketListener(PacketListener listener, int queueCapacity) {
+		addPacketListener(listener, queueCapacity, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addPacketListener(PacketListener, int)}, with the given policy applied
+	 * when the queue of the listener is full.
+	 * 
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 * @param policy What to do with the packets arriving when the queue is full
+	 * @throws IllegalArgumentException if the policy is {@link ListenerOverflowPolicy#BLOCK}
+	 */
+	public void addPacketListener(PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		checkPolicy(policy);
+		dispatcher.addPacketListener(listener, queueCapacity, policy);
+	}
+
+	/**
+	 * Removes one listener of packets
+	 *
+	 * @param listener The listener to remove
+	 */
+	public void removePacketListener(PacketListener listener) {
+		dispatcher.removePacketListener(listener);
+	}
+
+	/**
+	 * Registers a listener for receiving only the publications with the given event type.
+	 * A listener can be registered for more than one event type. Publications of other types,
+	 * and packets other than publications, are not delivered to it.
+	 * 
+	 * @param eventType The event type of the publications to receive
+	 * @param listener The listener to register
+	 */
+	public void addPubListener(int eventType, PacketListener listener) {
+		dispatcher.addPubListener(eventType, listener, 0, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addPubListener(int, PacketListener)}, but publications are delivered
+	 * to the listener by a thread of its own, as in {@link #addPacketListener(PacketListener, int)}.
+	 * The queue capacity of the first registration of the listener applies to all its event types.
+	 * 
+	 * @param eventType The event type of the publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 */
+	public void addPubListener(int eventType, PacketListener listener, int queueCapacity) {
+		addPubListener(eventType, listener, queueCapacity, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addPubListener(int, PacketListener, int)}, with the given policy applied when
+	 * the queue of the listener is full. The policy of the first registration applies too.
+	 * 
+	 * @param eventType The event type of the publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 * @param policy What to do with the packets arriving when the queue is full
+	 * @throws IllegalArgumentException if the policy is {@link ListenerOverflowPolicy#BLOCK}
+	 */
+	public void addPubListener(int eventType, PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		checkPolicy(policy);
+		dispatcher.addPubListener(eventType, listener, queueCapacity, policy);
+	}
+
+	/**
+	 * Stops delivering the publications with the given event type to the given listener
+	 * 
+	 * @param eventType The event type of the publications
+	 * @param listener The listener to remove
+	 */
+	public void removePubListener(int eventType, PacketListener listener) {
+		dispatcher.removePubListener(eventType, listener);
+	}
+
+	/**
+	 * Registers a listener for receiving only the publications satisfying the given subscription,
+	 * which is compared by identity, among the ones delivered by the server: the subscription is
+	 * usually sent too, with {@link #send(TRexPkt)}, or see {@link #subscribe(SubPkt, PacketListener)}.
+	 * Publications are routed by the same index that post-filters them against custom matchers,
+	 * so each subscription is evaluated once per publication. A listener can be registered for
+	 * more than one subscription, and receives a publication once, however many of them it satisfies.
+	 * 
+	 * @param sub The subscription whose publications to receive
+	 * @param listener The listener to register
+	 */
+	public void addSubListener(SubPkt sub, PacketListener listener) {
+		dispatcher.addSubListener(sub, listener, 0, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addSubListener(SubPkt, PacketListener)}, but publications are delivered
+	 * to the listener by a thread of its own, as in {@link #addPacketListener(PacketListener, int)}.
+	 * The queue capacity of the first registration of the listener applies to all its subscriptions.
+	 * 
+	 * @param sub The subscription whose publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 */
+	public void addSubListener(SubPkt sub, PacketListener listener, int queueCapacity) {
+		addSubListener(sub, listener, queueCapacity, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addSubListener(SubPkt, PacketListener, int)}, with the given policy applied when
+	 * the queue of the listener is full. The policy of the first registration applies too.
+	 * 
+	 * @param sub The subscription whose publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 * @param policy What to do with the packets arriving when the queue is full
+	 * @throws IllegalArgumentException if the policy is {@link ListenerOverflowPolicy#BLOCK}
+	 */
+	public void addSubListener(SubPkt sub, PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		checkPolicy(policy);
+		dispatcher.addSubListener(sub, listener, queueCapacity, policy);
+	}
+
+	/**
+	 * Stops delivering the publications satisfying the given subscription to the given listener
+	 * 
+	 * @param sub The subscription
+	 * @param listener The listener to remove
+	 */
+	public void removeSubListener(SubPkt sub, PacketListener listener) {
+		dispatcher.removeSubListener(sub, listener);
+	}
+
+	/**
+	 * Subscribes the given listener to the publications satisfying the given subscription,
+	 * merging it with the other subscriptions made this way: only a minimal set of them,
+	 * covering all the others, is sent to the server, and the publications received are
+	 * routed to the listeners of the subscriptions they satisfy, as by
+	 * {@link #addSubListener(SubPkt, PacketListener)}. Equal subscriptions are sent once,
+	 * and removed from the server once all their subscribers unsubscribed.
+	 * Custom matchers are evaluated on the client only, to route publications.
+	 * 
+	 * @param sub The subscription, which must not be modified afterwards
+	 * @param listener The listener receiving the publications satisfying it
+	 * @throws IOException if the server could not be updated; the subscription
+	 * is kept, and the server updated again by the next change
+	 */
+	public void subscribe(SubPkt sub, PacketListener listener) throws IOException {
+		merger.subscribe(sub, listener);
+	}
+
+	/**
+	 * Removes a subscription made with {@link #subscribe(SubPkt, PacketListener)}
+	 * 
+	 * @param sub The subscription, or an equal one with the same custom matcher
+	 * @param listener The listener that subscribed
+	 * @throws IOException if the server could not be updated; it is updated again by the next change
+	 */
+	public void unsubscribe(SubPkt sub, PacketListener listener) throws IOException {
+		merger.unsubscribe(sub, listener);
+	}
+
+	public void sendRule(TRexPkt pkt, EngineType eType) throws IOException {
+		enqueue(Marshaller.marshalRule(pkt, eType));
+	}
+
+	/**
+	 * Sends a packet to the server. The packet is queued and written by the event loop,
+	 * so this method never blocks on the network.
+	 *
+	 * @param pkt The packet to send
+	 * @throws IOException if the connection is closed
+	 */
+	public void send(TRexPkt pkt) throws IOException {
+		enqueue(Marshaller.marshal(pkt));
+		if (pkt instanceof SubPkt) this.sTable.addSubscription((SubPkt) pkt);
+		if (pkt instanceof UnSubPkt) this.sTable.removeSubscription(((UnSubPkt)pkt).getSubPkt());
+	}
+
+	/**
+	 * If enabled, received publications are delivered as read-only {@link PubPktView}s,
+	 * which decode event type, timestamp and attributes only when accessed, instead
+	 * of fully decoded {@link PubPkt}s. Disabled by default.
+	 * 
+	 * @param enabled true to deliver publications as views
+	 */
+	public void setPubPktViews(boolean enabled) {
+		unmarshaller.setPubViews(enabled);
+	}
+
+	/**
+	 * If enabled, received publications are decoded into {@link PooledPubPkt}s, which are
+	 * recycled, with their attributes, as soon as the listeners are done with them.
+	 * Listeners must not keep them, or their attributes, after returning, unless they
+	 * call {@link PooledPubPkt#retain()} and later {@link PooledPubPkt#release()}.
+	 * Disabled by default; enabling it disables publication views.
+	 * 
+	 * @param enabled true to deliver pooled publications
+	 */
+	public void setPooledPubPkts(boolean enabled) {
+		unmarshaller.setPubFormat(enabled ? PubFormat.POOLED : PubFormat.PACKET);
+	}
+
+	/**
+	 * The library user may be interested in the subTable to make unsubscriptions
+	 * @return reference to the subscription table
+	 */
+	public SubscriptionsTable getSubscriptionsTable() {
+		return this.sTable;
+	}
+
+	private void enqueue(byte[] bytes) throws IOException {
+		if (!connected) throw new IOException("Not connected");
+		outQueue.add(ByteBuffer.wrap(bytes));
+		if (flushScheduled.compareAndSet(false, true)) loop.execute(flushTask);
+	}
+
+	/**
+	 * Writes as many packets queued for the connection of the given key as the socket accepts.
+	 * Keys of previous connections are ignored. Called on the loop thread only.
+	 */
+	void flush(SelectionKey k) {
+		flushScheduled.set(false);
+		if (k == null || k != key || !k.isValid()) return;
+		SocketChannel ch = (SocketChannel) k.channel();
+		try {
+			ByteBuffer buf;
+			while ((buf = keyQueue.peek()) != null) {
+				ch.write(buf);
+				if (buf.hasRemaining()) {
+					// Socket buffer full: wait for the channel to become writable
+					k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				keyQueue.poll();
+			}
+			k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			connectionLost(ch, e);
+		}
+	}
+
+	/**
+	 * Reads the bytes available on the connection of the given key and delivers the decoded
+	 * packets. Keys of previous connections are ignored. Called on the loop thread only.
+	 */
+	void handleRead(SelectionKey k, ByteBuffer readBuffer) {
+		if (k != key) return;
+		SocketChannel ch = (SocketChannel) k.channel();
+		try {
+			while (true) {
+				readBuffer.clear();
+				int numRead = ch.read(readBuffer);
+				if (numRead < 0) throw new IOException("End of stream reached");
+				if (numRead == 0) break;
+				TRexPkt[] pkts = unmarshaller.unmarshal(readBuffer.array(), 0, numRead);
+				dispatcher.dispatch(pkts);
+				if (readBuffer.hasRemaining()) break;
+			}
+		} catch (IOException e) {
+			connectionLost(ch, e);
+		}
+	}
+
+	/**
+	 * Sends a ping packet if needed. Called on the loop thread only.
+	 */
+	void checkPing(long currentTime) {
+		if (!usePing || currentTime-lastPingTime < PING_TIMEOUT/2) return;
+		lastPingTime = currentTime;
+		try {
+			send(new PingPkt());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes the connection of the given channel after an error, discarding the packets
+	 * not yet written, and notifies the listeners if it was connected. Nothing is done
+	 * if the channel belongs to a previous connection.
+	 */
+	void connectionLost(SelectableChannel ch, IOException e) {
+		boolean wasConnected;
+		synchronized (this) {
+			if (ch != channel) return;
+			wasConnected = connected;
+			connected = false;
+			started = false;
+			closeChannel();
+			outQueue.clear();
+		}
+		if (wasConnected) {
+			// error with connection: signal error
+			e.printStackTrace();
+			dispatcher.notifyConnectionError();
+		}
+	}
+
+	/**
+	 * The event loop must never wait for a listener.
+	 */
+	private static void checkPolicy(ListenerOverflowPolicy policy) {
+		if (policy == ListenerOverflowPolicy.BLOCK) {
+			throw new IllegalArgumentException("Listeners cannot block the event loop");
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			if (channel != null && channel.isOpen()) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
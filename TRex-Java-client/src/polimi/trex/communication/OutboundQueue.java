@@ -0,0 +1,204 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+import polimi.trex.communication.TransportManager.OverflowPolicy;
+import polimi.trex.packets.TRexPkt;
+
+/**
+ * A bounded queue of marshalled packets waiting to be written by a dedicated writer
+ * thread, which backs {@link TransportManager#sendAsync(TRexPkt)}.
+ * When the queue is full, the configured {@link OverflowPolicy} decides what happens
+ * to new packets.
+ *
+ * Each time it wakes up, the writer takes all the queued packets, up to {@link #MAX_GATHER},
+ * and writes them to the connection at once, through a gathering write of their bytes:
+ * under contention, many packets are sent with a single system call, and without copies.
+ */
+class OutboundQueue implements Runnable {
+	/** The maximum number of packets written at once */
+	final static int MAX_GATHER= 128;
+
+	/**
+	 * A packet waiting to be written, together with the future to complete.
+	 */
+	static class OutboundPkt {
+		final TRexPkt pkt;
+		final byte[] bytes;
+		final CompletableFuture<Void> future;
+
+		OutboundPkt(TRexPkt pkt, byte[] bytes) {
+			this.pkt = pkt;
+			this.bytes = bytes;
+			this.future = new CompletableFuture<Void>();
+		}
+	}
+
+	private TransportManager manager;
+	private BlockingQueue<OutboundPkt> queue;
+	private OverflowPolicy policy;
+	private volatile boolean stop;
+	private Thread t;
+
+	OutboundQueue(TransportManager manager, int capacity, OverflowPolicy policy) {
+		this.manager = manager;
+		this.queue = new ArrayBlockingQueue<OutboundPkt>(capacity);
+		this.policy = policy;
+		this.stop = false;
+	}
+
+	synchronized void start() {
+		if (t != null) return;
+		stop = false;
+		t = new Thread(this, "TRex-OutboundQueue");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Stops the writer thread; packets still in the queue are failed.
+	 */
+	void stop() {
+		Thread writer;
+		synchronized (this) {
+			stop = true;
+			writer = t;
+			t = null;
+		}
+		if (writer != null) {
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		failPending(new IOException("Connection closed"));
+	}
+
+	/**
+	 * Adds the given packet to the queue, applying the overflow policy if it is full.
+	 *
+	 * @return the future completed when the packet is written
+	 */
+	CompletableFuture<Void> add(TRexPkt pkt, byte[] bytes) {
+		OutboundPkt entry = new OutboundPkt(pkt, bytes);
+		switch (policy) {
+		case BLOCK:
+			try {
+				queue.put(entry);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				entry.future.completeExceptionally(e);
+			}
+			break;
+		case FAIL:
+			if (!queue.offer(entry)) entry.future.completeExceptionally(new IOException("Outbound queue full"));
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(entry)) {
+				OutboundPkt oldest = queue.poll();
+				if (oldest != null) oldest.future.completeExceptionally(new IOException("Dropped: outbound queue full"));
+			}
+			break;
+		}
+		return entry.future;
+	}
+
+	int size() {
+		return queue.size();
+	}
+
+	int capacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+
+	@Override
+	public void run() {
+		List<OutboundPkt> batch = new ArrayList<OutboundPkt>(MAX_GATHER);
+		TRexPkt[] pkts = new TRexPkt[MAX_GATHER];
+		ByteBuffer[] buffers = new ByteBuffer[MAX_GATHER];
+		while (!stop) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, MAX_GATHER-1);
+			int num = batch.size();
+			for (int i=0; i<num; i++) {
+				pkts[i] = batch.get(i).pkt;
+				buffers[i] = ByteBuffer.wrap(batch.get(i).bytes);
+			}
+			try {
+				manager.transmit(pkts, buffers, num);
+				for (OutboundPkt entry : batch) {
+					entry.future.complete(null);
+				}
+			} catch (IOException e) {
+				retransmit(batch, buffers, e);
+			}
+			batch.clear();
+			for (int i=0; i<num; i++) {
+				pkts[i] = null;
+				buffers[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Handles a failed gathering write: packets written in full are done, while the others
+	 * are written one by one, so that publications are buffered if the connection is being
+	 * re-established, or failed with the given exception otherwise.
+	 */
+	private void retransmit(List<OutboundPkt> batch, ByteBuffer[] buffers, IOException e) {
+		for (int i=0; i<batch.size(); i++) {
+			OutboundPkt entry = batch.get(i);
+			if (!buffers[i].hasRemaining()) {
+				entry.future.complete(null);
+			} else if (!manager.isReconnecting()) {
+				entry.future.completeExceptionally(e);
+			} else {
+				try {
+					manager.transmit(entry.pkt, entry.bytes);
+					entry.future.complete(null);
+				} catch (IOException retryException) {
+					entry.future.completeExceptionally(retryException);
+				}
+			}
+		}
+	}
+
+	private void failPending(IOException e) {
+		OutboundPkt entry;
+		while ((entry = queue.poll()) != null) {
+			entry.future.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import polimi.trex.common.SubscriptionsTable;
+import polimi.trex.packets.PooledPubPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.utils.IntHashMap;
+
+/**
+ * Delivers the packets decoded from a connection to the registered {@link PacketListener}s,
+ * after post-filtering publications against the custom matchers of the {@link SubscriptionsTable}.
+ * It is shared by the blocking {@link PacketReader} and by the {@link NioTransportManager}.
+ * 
+ * Listeners are either called inline, on the thread that decoded the packets, or decoupled
+ * from it through a bounded queue of their own (see {@link ListenerHandle}).
+ * 
+ * Listeners interested only in some event types are kept in a table indexed by event type,
+ * so that a publication is delivered only to the listeners of its type (plus the ones
+ * receiving all packets) without scanning the others.
+ * 
+ * Listeners can also be registered for a subscription: the publications satisfying it are
+ * found by the {@link SubscriptionsTable}, in the same pass that post-filters them, and
+ * delivered once to each listener of the satisfied subscriptions.
+ * 
+ * The list of listeners and the tables are all copied on write, so adding or removing
+ * a listener never blocks the delivery of packets.
+ * 
+ * {@link PooledPubPkt}s are released once delivered: queued handles retain them
+ * until their listener is done with them.
+ */
+class PacketDispatcher {
+	private final static ListenerHandle[] NO_HANDLES= new ListenerHandle[0];
+	private final static int[] NO_TYPES= new int[0];
+
+	private CopyOnWriteArrayList<ListenerHandle> handles;
+	// Immutable once published: replaced by a modified copy on each change
+	private volatile IntHashMap<ListenerHandle[]> pubHandles;
+	// Handles of the listeners registered by event type, shared by all their types
+	private IdentityHashMap<PacketListener, ListenerHandle> pubListeners;
+	// Immutable once published: handles of the listeners registered by subscription, compared by identity
+	private volatile IdentityHashMap<SubPkt, ListenerHandle[]> subHandles;
+	private IdentityHashMap<PacketListener, ListenerHandle> subListeners;
+	// Event types used internally, whose publications are not delivered to all listeners
+	private volatile int[] reservedTypes;
+	private SubscriptionsTable sTable;
+
+	PacketDispatcher(SubscriptionsTable sT) {
+		this.handles = new CopyOnWriteArrayList<ListenerHandle>();
+		this.pubHandles = new IntHashMap<ListenerHandle[]>();
+		this.pubListeners = new IdentityHashMap<PacketListener, ListenerHandle>();
+		this.subHandles = new IdentityHashMap<SubPkt, ListenerHandle[]>();
+		this.subListeners = new IdentityHashMap<PacketListener, ListenerHandle>();
+		this.reservedTypes = NO_TYPES;
+		this.sTable = sT;
+	}
+	
+	/**
+	 * Reserves the given event type for internal use: its publications are delivered
+	 * only to the listeners registered for it, and not to the ones receiving all packets.
+	 */
+	synchronized void reserveEventType(int eventType) {
+		if (isReserved(reservedTypes, eventType)) return;
+		int[] newReservedTypes = Arrays.copyOf(reservedTypes, reservedTypes.length+1);
+		newReservedTypes[reservedTypes.length] = eventType;
+		reservedTypes = newReservedTypes;
+	}
+
+	void addPacketListener(PacketListener packetListener) {
+		addPacketListener(packetListener, 0, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * Adds a listener. If queueCapacity is greater than 0, packets are delivered
+	 * to the listener by a thread of its own, through a queue with the given capacity
+	 * and overflow policy.
+	 */
+	void addPacketListener(PacketListener packetListener, int queueCapacity, ListenerOverflowPolicy policy) {
+		handles.add(new ListenerHandle(packetListener, queueCapacity, policy));
+	}
+
+	void removePacketListener(PacketListener packetListener) {
+		for (ListenerHandle handle : handles) {
+			if (handle.getListener() == packetListener) {
+				handles.remove(handle);
+				handle.close();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds a listener receiving only the publications with the given event type.
+	 * A listener can be added for more than one event type; if queueCapacity is
+	 * greater than 0, the same queue, policy and thread serve all its event types.
+	 */
+	synchronized void addPubListener(int eventType, PacketListener packetListener, int queueCapacity, ListenerOverflowPolicy policy) {
+		ListenerHandle handle = pubListeners.get(packetListener);
+		if (handle == null) {
+			handle = new ListenerHandle(packetListener, queueCapacity, policy);
+			pubListeners.put(packetListener, handle);
+		}
+		IntHashMap<ListenerHandle[]> newPubHandles = new IntHashMap<ListenerHandle[]>(pubHandles);
+		ListenerHandle[] typeHandles = newPubHandles.get(eventType);
+		if (typeHandles == null) typeHandles = NO_HANDLES;
+		for (ListenerHandle h : typeHandles) {
+			if (h == handle) return;
+		}
+		typeHandles = Arrays.copyOf(typeHandles, typeHandles.length+1);
+		typeHandles[typeHandles.length-1] = handle;
+		newPubHandles.put(eventType, typeHandles);
+		pubHandles = newPubHandles;
+	}
+
+	/**
+	 * Removes a listener from the ones receiving the publications with the given event type.
+	 */
+	synchronized void removePubListener(int eventType, PacketListener packetListener) {
+		ListenerHandle handle = pubListeners.get(packetListener);
+		if (handle == null) return;
+		IntHashMap<ListenerHandle[]> newPubHandles = new IntHashMap<ListenerHandle[]>(pubHandles);
+		ListenerHandle[] typeHandles = newPubHandles.get(eventType);
+		if (typeHandles == null) return;
+		int index = Arrays.asList(typeHandles).indexOf(handle);
+		if (index < 0) return;
+		if (typeHandles.length == 1) {
+			newPubHandles.remove(eventType);
+		} else {
+			ListenerHandle[] newTypeHandles = new ListenerHandle[typeHandles.length-1];
+			System.arraycopy(typeHandles, 0, newTypeHandles, 0, index);
+			System.arraycopy(typeHandles, index+1, newTypeHandles, index, newTypeHandles.length-index);
+			newPubHandles.put(eventType, newTypeHandles);
+		}
+		pubHandles = newPubHandles;
+		// Close the handle when the listener is not registered for any other type
+		for (ListenerHandle[] otherHandles : newPubHandles.values()) {
+			if (Arrays.asList(otherHandles).contains(handle)) return;
+		}
+		pubListeners.remove(packetListener);
+		handle.close();
+	}
+
+	/**
+	 * Adds a listener receiving only the publications satisfying the given subscription,
+	 * compared by identity, whether or not it was sent to the server. A listener can be
+	 * added for more than one subscription, and receives a publication once, however many of
+	 * them it satisfies; if queueCapacity is greater than 0, the same queue, policy and thread
+	 * serve all its subscriptions.
+	 *
+	 * @throws IllegalStateException if there is no subscriptions table
+	 */
+	synchronized void addSubListener(SubPkt sub, PacketListener packetListener, int queueCapacity, ListenerOverflowPolicy policy) {
+		if (sTable == null) throw new IllegalStateException("No subscriptions table to route publications");
+		ListenerHandle handle = subListeners.get(packetListener);
+		if (handle == null) {
+			handle = new ListenerHandle(packetListener, queueCapacity, policy);
+			subListeners.put(packetListener, handle);
+		}
+		ListenerHandle[] routeHandles = subHandles.get(sub);
+		if (routeHandles == null) routeHandles = NO_HANDLES;
+		for (ListenerHandle h : routeHandles) {
+			if (h == handle) return;
+		}
+		IdentityHashMap<SubPkt, ListenerHandle[]> newSubHandles = new IdentityHashMap<SubPkt, ListenerHandle[]>(subHandles);
+		routeHandles = Arrays.copyOf(routeHandles, routeHandles.length+1);
+		routeHandles[routeHandles.length-1] = handle;
+		newSubHandles.put(sub, routeHandles);
+		subHandles = newSubHandles;
+		// Routed once its handles are published
+		if (routeHandles.length == 1) sTable.addRoute(sub);
+	}
+
+	/**
+	 * Removes a listener from the ones receiving the publications satisfying the given subscription.
+	 */
+	synchronized void removeSubListener(SubPkt sub, PacketListener packetListener) {
+		ListenerHandle handle = subListeners.get(packetListener);
+		if (handle == null) return;
+		ListenerHandle[] routeHandles = subHandles.get(sub);
+		if (routeHandles == null) return;
+		int index = Arrays.asList(routeHandles).indexOf(handle);
+		if (index < 0) return;
+		IdentityHashMap<SubPkt, ListenerHandle[]> newSubHandles = new IdentityHashMap<SubPkt, ListenerHandle[]>(subHandles);
+		if (routeHandles.length == 1) {
+			sTable.removeRoute(sub);
+			newSubHandles.remove(sub);
+		} else {
+			ListenerHandle[] newRouteHandles = new ListenerHandle[routeHandles.length-1];
+			System.arraycopy(routeHandles, 0, newRouteHandles, 0, index);
+			System.arraycopy(routeHandles, index+1, newRouteHandles, index, newRouteHandles.length-index);
+			newSubHandles.put(sub, newRouteHandles);
+		}
+		subHandles = newSubHandles;
+		// Close the handle when the listener is not registered for any other subscription
+		for (ListenerHandle[] otherHandles : newSubHandles.values()) {
+			if (Arrays.asList(otherHandles).contains(handle)) return;
+		}
+		subListeners.remove(packetListener);
+		handle.close();
+	}
+
+	/**
+	 * Delivers the given packets, in order, to all the connected listeners.
+	 */
+	void dispatch(TRexPkt[] pkts) {
+		IntHashMap<ListenerHandle[]> currentPubHandles = pubHandles;
+		IdentityHashMap<SubPkt, ListenerHandle[]> currentSubHandles = subHandles;
+		int[] currentReservedTypes = reservedTypes;
+		// Routed subscriptions satisfied by each publication, if any is routed
+		List<SubPkt> routed = currentSubHandles.isEmpty() ? null : new ArrayList<SubPkt>();
+		for (TRexPkt pkt: pkts){
+			try {
+				dispatch(pkt, currentPubHandles, currentSubHandles, routed, currentReservedTypes);
+			} finally {
+				if (pkt instanceof PooledPubPkt) ((PooledPubPkt) pkt).release();
+			}
+		}
+	}
+
+	private void dispatch(TRexPkt pkt, IntHashMap<ListenerHandle[]> currentPubHandles,
+			IdentityHashMap<SubPkt, ListenerHandle[]> currentSubHandles, List<SubPkt> routed, int[] currentReservedTypes) {
+		if (pkt instanceof PubPkt) {
+			PubPkt pubPkt = (PubPkt) pkt;
+			//if the packet is a PubPkt and I have any custom matcher I need to redo all the post filtering process
+			if (routed != null) routed.clear();
+			if (sTable != null && !sTable.match(pubPkt, routed)) return;
+			if (routed != null) deliverRouted(pkt, routed, currentSubHandles);
+			ListenerHandle[] typeHandles = currentPubHandles.get(pubPkt.getEventType());
+			if (typeHandles != null) {
+				for (ListenerHandle handle : typeHandles) {
+					handle.deliver(pkt);
+				}
+			}
+			if (isReserved(currentReservedTypes, pubPkt.getEventType())) return;
+		}
+		// Deliver received packet to all connected listeners
+		for (ListenerHandle handle : handles) {
+			handle.deliver(pkt);
+		}
+	}
+
+	/**
+	 * Delivers a publication to the listeners of the given subscriptions, once to each listener.
+	 */
+	private static void deliverRouted(TRexPkt pkt, List<SubPkt> routed, IdentityHashMap<SubPkt, ListenerHandle[]> currentSubHandles) {
+		for (int i=0; i<routed.size(); i++) {
+			ListenerHandle[] routeHandles = currentSubHandles.get(routed.get(i));
+			// Routed after the handles were read
+			if (routeHandles == null) continue;
+			for (ListenerHandle handle : routeHandles) {
+				if (!isDelivered(handle, routed, i, currentSubHandles)) handle.deliver(pkt);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the given handle is registered for one of the first end routed subscriptions.
+	 */
+	private static boolean isDelivered(ListenerHandle handle, List<SubPkt> routed, int end,
+			IdentityHashMap<SubPkt, ListenerHandle[]> currentSubHandles) {
+		for (int i=0; i<end; i++) {
+			ListenerHandle[] routeHandles = currentSubHandles.get(routed.get(i));
+			if (routeHandles == null) continue;
+			for (ListenerHandle other : routeHandles) {
+				if (other == handle) return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isReserved(int[] types, int eventType) {
+		for (int type : types) {
+			if (type == eventType) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Signals all the connected listeners that the connection was lost.
+	 */
+	void notifyConnectionError() {
+		for (ListenerHandle handle : handles) {
+			handle.notifyConnectionError();
+		}
+		synchronized (this) {
+			for (ListenerHandle handle : pubListeners.values()) {
+				handle.notifyConnectionError();
+			}
+			for (ListenerHandle handle : subListeners.values()) {
+				handle.notifyConnectionError();
+			}
+		}
+	}
+}
@@ -22,19 +22,24 @@ package polimi.trex.communication;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.util.ArrayList;
-import java.util.Collection;
 
 import polimi.trex.common.SubscriptionsTable;
 import polimi.trex.marshalling.BufferedPacketUnmarshaller;
-import polimi.trex.packets.PubPkt;
+import polimi.trex.marshalling.Unmarshaller.PubFormat;
+import polimi.trex.packets.PooledPubPkt;
+import polimi.trex.packets.PubPktView;
+import polimi.trex.packets.SubPkt;
 import polimi.trex.packets.TRexPkt;
 
+/**
+ * Reads packets from the connection with the server, on a thread of its own, and delivers them
+ * to the registered listeners. Reads block without timeout: to stop the reader, the connection
+ * must be closed after {@link #stopReader()}, which makes the pending read fail immediately.
+ */
 public class PacketReader implements Runnable {
 
 	private InputStream inputStream;
-	private Collection<PacketListener> listeners;
+	private PacketDispatcher dispatcher;
 	private volatile boolean running;
 	private volatile boolean stop;
 	private Thread t;
@@ -42,14 +47,13 @@ public class PacketReader implements Runnable {
 	private final static int BUFFER_LENGTH= 1024;
 	private byte[] buffer;
 	private BufferedPacketUnmarshaller unmarshaller;
-	
-	private SubscriptionsTable sTable;
+	private TransportManager manager;
+	private ConnectionMetrics metrics;
 	
 	public PacketReader(SubscriptionsTable sT) {
-		this.listeners = new ArrayList<PacketListener>();
+		this.dispatcher = new PacketDispatcher(sT);
 		this.running = false;
 		this.stop = false;
-		this.sTable = sT;
 		buffer= new byte[BUFFER_LENGTH];
 		unmarshaller= new BufferedPacketUnmarshaller();
 	}
@@ -62,76 +66,154 @@ public class PacketReader implements Runnable {
 	public synchronized void startReader() {
 		stop = false;
 		if (! running) {
-			t = new Thread(this);
+			running = true;
+			t = new Thread(this, "TRex-PacketReader");
 			t.start();
 		}
 	}
 	
+	/**
+	 * Marks the reader as stopped, so that the failure of the pending read,
+	 * caused by closing the connection, is not reported as a connection error.
+	 */
 	public synchronized void stopReader() {
 		stop = true;
 	}
 	
-	public void addPacketListener(PacketListener packetListener) {
-		synchronized(listeners) {
-			listeners.add(packetListener);
+	/**
+	 * Waits for the reader thread to exit. Does nothing if called by the reader thread itself
+	 * (for example by a listener stopping the TransportManager).
+	 */
+	void awaitTermination() {
+		Thread thread;
+		synchronized (this) {
+			thread = t;
 		}
+		if (thread == null || thread == Thread.currentThread()) return;
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	public void addPacketListener(PacketListener packetListener) {
+		dispatcher.addPacketListener(packetListener);
+	}
+	
+	/**
+	 * Adds a listener served by a thread of its own through a bounded queue,
+	 * so that it does not delay the reading of packets.
+	 */
+	public void addPacketListener(PacketListener packetListener, int queueCapacity, ListenerOverflowPolicy policy) {
+		dispatcher.addPacketListener(packetListener, queueCapacity, policy);
 	}
 	
 	public void removePacketListener(PacketListener packetListener) {
-		synchronized(listeners) {
-			listeners.remove(packetListener);
-		}
+		dispatcher.removePacketListener(packetListener);
+	}
+	
+	/**
+	 * Adds a listener receiving only the publications with the given event type.
+	 */
+	public void addPubListener(int eventType, PacketListener packetListener, int queueCapacity, ListenerOverflowPolicy policy) {
+		dispatcher.addPubListener(eventType, packetListener, queueCapacity, policy);
+	}
+	
+	public void removePubListener(int eventType, PacketListener packetListener) {
+		dispatcher.removePubListener(eventType, packetListener);
+	}
+	
+	/**
+	 * Adds a listener receiving only the publications satisfying the given subscription.
+	 */
+	public void addSubListener(SubPkt sub, PacketListener packetListener, int queueCapacity, ListenerOverflowPolicy policy) {
+		dispatcher.addSubListener(sub, packetListener, queueCapacity, policy);
+	}
+	
+	public void removeSubListener(SubPkt sub, PacketListener packetListener) {
+		dispatcher.removeSubListener(sub, packetListener);
+	}
+	
+	PacketDispatcher getDispatcher() {
+		return dispatcher;
 	}
 	
 	public void setInputStream(InputStream inputStream) {
 		this.inputStream = inputStream;
+		unmarshaller.clear();
+	}
+	
+	/**
+	 * If enabled, publications are delivered as {@link PubPktView}s instead of being decoded.
+	 */
+	public void setPubViews(boolean pubViews) {
+		unmarshaller.setPubViews(pubViews);
+	}
+	
+	/**
+	 * If enabled, publications are decoded into {@link PooledPubPkt}s.
+	 */
+	public void setPooledPubs(boolean pooledPubs) {
+		unmarshaller.setPubFormat(pooledPubs ? PubFormat.POOLED : PubFormat.PACKET);
+	}
+	
+	/**
+	 * Sets the TransportManager to inform when the connection is lost, so that it can reconnect.
+	 */
+	void setTransportManager(TransportManager manager) {
+		this.manager = manager;
+	}
+	
+	/**
+	 * Sets the metrics updated with received bytes and packets, and decoding and dispatching times.
+	 */
+	void setMetrics(ConnectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	void reserveEventType(int eventType) {
+		dispatcher.reserveEventType(eventType);
+	}
+	
+	void notifyConnectionError() {
+		dispatcher.notifyConnectionError();
 	}
 
 	@Override
 	public void run() {
 		
 		try {
-			while (true) {
-				try {
-					// Read bytes from input stream
-					int numRead= inputStream.read(buffer);
-					if (numRead < 0) throw new IOException("End of stream reached");
-					
-					TRexPkt[] pkts= unmarshaller.unmarshal(buffer, 0, numRead);
-					boolean matched = true;
-					synchronized (listeners) {
-						for (TRexPkt pkt: pkts){
-							//if the packet is a PubPkt and I have any custom matcher I need to redo all the post filtering process
-							if (this.sTable != null && pkt instanceof PubPkt) {
-								matched = false;
-								if (this.sTable.match((PubPkt) pkt)) {
-									matched = true;
-								}
-							}
-							if (!matched) continue;
-							// Deliver received packet to all connected listeners
-							for (PacketListener listener : listeners) {
-								listener.notifyPktReceived(pkt);
-							}
-						}
-						
-					}
-				} catch (InterruptedIOException e) {
-					// timeout for blocking receive expired: do nothing
-				}
-				// Check whether it should stop
-				synchronized (this) {
-					if (stop) {
-						running = false;
-						break;
-					}
+			while (! stop) {
+				// Read bytes from input stream
+				int numRead= inputStream.read(buffer);
+				if (numRead < 0) throw new IOException("End of stream reached");
+				
+				long decodeStart= System.nanoTime();
+				TRexPkt[] pkts= unmarshaller.unmarshal(buffer, 0, numRead);
+				long dispatchStart= System.nanoTime();
+				dispatcher.dispatch(pkts);
+				if (metrics != null) {
+					metrics.dispatched(System.nanoTime()-dispatchStart);
+					metrics.decoded(dispatchStart-decodeStart);
+					metrics.bytesReceived(numRead);
+					metrics.packetsReceived(pkts);
 				}
 			}
 		} catch (IOException e) {
-			// error with connection: signal error and exit
+			// connection closed by stop(): exit silently
+			if (stop) return;
+			// error with connection: reconnect, if possible, or signal error and exit
+			if (manager != null && manager.connectionLost()) return;
 			e.printStackTrace();
-			for (PacketListener listener : listeners) {
-				listener.notifyConnectionError();
+			dispatcher.notifyConnectionError();
+		} finally {
+			synchronized (this) {
+				running = false;
 			}
 		}
 	}
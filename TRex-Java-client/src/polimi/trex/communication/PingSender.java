@@ -73,7 +73,8 @@ class PingSender implements Runnable {
 			try {
 				Thread.sleep(timeToSleep);
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				// interrupted by stop()
+				continue;
 			}
 		}
 	}
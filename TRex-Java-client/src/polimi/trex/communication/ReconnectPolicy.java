@@ -0,0 +1,97 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Defines how a {@link TransportManager} reconnects to the server after losing the
+ * connection: delays between attempts grow exponentially, with random jitter so that
+ * many clients do not reconnect all at the same time, up to a maximum delay.
+ */
+public class ReconnectPolicy {
+	private final static long DEFAULT_INITIAL_DELAY= 100;
+	private final static long DEFAULT_MAX_DELAY= 30000;
+	private final static int DEFAULT_MAX_BUFFERED_BYTES= 1024*1024;
+
+	private long initialDelay;
+	private long maxDelay;
+	private int maxAttempts;
+	private int maxBufferedBytes;
+
+	/**
+	 * Creates a policy retrying forever, with delays from 100 ms to 30 s,
+	 * and buffering up to 1 MB of publications while reconnecting.
+	 */
+	public ReconnectPolicy() {
+		this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, 0, DEFAULT_MAX_BUFFERED_BYTES);
+	}
+
+	/**
+	 * Creates a policy.
+	 * 
+	 * @param initialDelay the delay before the first attempt, in milliseconds
+	 * @param maxDelay the maximum delay between two attempts, in milliseconds
+	 * @param maxAttempts the number of attempts before giving up; 0 means retrying forever
+	 * @param maxBufferedBytes the maximum number of bytes of publications kept while reconnecting
+	 */
+	public ReconnectPolicy(long initialDelay, long maxDelay, int maxAttempts, int maxBufferedBytes) {
+		if (initialDelay <= 0 || maxDelay < initialDelay) throw new IllegalArgumentException("Invalid delays");
+		if (maxAttempts < 0 || maxBufferedBytes < 0) throw new IllegalArgumentException("Invalid limits");
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public int getMaxBufferedBytes() {
+		return maxBufferedBytes;
+	}
+
+	/**
+	 * Returns true if another attempt should be done after the given number of failed ones.
+	 */
+	boolean shouldRetry(int failedAttempts) {
+		return maxAttempts == 0 || failedAttempts < maxAttempts;
+	}
+
+	/**
+	 * Returns the delay before the given attempt (starting from 0): half of the
+	 * exponential delay is fixed, the other half is random.
+	 */
+	long getDelay(int attempt) {
+		long delay = initialDelay << Math.min(attempt, 30);
+		if (delay <= 0 || delay > maxDelay) delay = maxDelay;
+		return delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+	}
+}
@@ -0,0 +1,204 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.communication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import polimi.trex.common.SubscriptionCovering;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.UnSubPkt;
+
+/**
+ * Merges the subscriptions of the local subscribers, so that only a minimal set of them,
+ * covering all the others (see {@link SubscriptionCovering}), is sent to the server.
+ * Equal subscriptions, with the same custom matcher, are kept once, with the count of their
+ * subscribers. Each subscription is routed to its subscribers by the {@link PacketDispatcher},
+ * which filters the publications received for the covering subscriptions against the finer
+ * ones on the client.
+ *
+ * The server receives copies of the covering subscriptions without custom matchers, so that
+ * the matcher of a coarse subscription never discards the publications of a finer one: custom
+ * matchers only decide the routing of their subscriptions. When subscriptions change, new
+ * covering subscriptions are sent before the ones they replace are removed, so that no
+ * publication is missed in between.
+ */
+class SubscriptionMerger {
+
+	/**
+	 * Sends packets to the server.
+	 */
+	interface Sender {
+		void send(TRexPkt pkt) throws IOException;
+	}
+
+	private final Sender sender;
+	private final PacketDispatcher dispatcher;
+	// Local subscriptions, in order of arrival, kept until their copies are removed from the server
+	private final List<Entry> entries;
+
+	SubscriptionMerger(Sender sender, PacketDispatcher dispatcher) {
+		this.sender = sender;
+		this.dispatcher = dispatcher;
+		this.entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Routes the publications satisfying the given subscription to the given listener,
+	 * sending the subscription to the server unless it is covered by another one.
+	 *
+	 * @throws IOException if the server could not be updated; the subscription is kept,
+	 * and the server updated again by the next change
+	 */
+	synchronized void subscribe(SubPkt sub, PacketListener listener) throws IOException {
+		Entry entry = find(sub);
+		if (entry == null) {
+			entry = new Entry(sub);
+			entries.add(entry);
+		}
+		if (!containsInstance(entry.listeners, listener)) dispatcher.addSubListener(entry.sub, listener, 0, ListenerOverflowPolicy.DROP_OLDEST);
+		entry.listeners.add(listener);
+		update();
+	}
+
+	/**
+	 * Removes a subscription made with {@link #subscribe(SubPkt, PacketListener)}, removing it
+	 * from the server once it has no subscribers, and sending the subscriptions it covered.
+	 *
+	 * @throws IOException if the server could not be updated; it is updated again by the next change
+	 */
+	synchronized void unsubscribe(SubPkt sub, PacketListener listener) throws IOException {
+		Entry entry = find(sub);
+		if (entry == null) return;
+		for (Iterator<PacketListener> it = entry.listeners.iterator(); it.hasNext(); ) {
+			if (it.next() == listener) {
+				it.remove();
+				if (!containsInstance(entry.listeners, listener)) dispatcher.removeSubListener(entry.sub, listener);
+				update();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of subscriptions sent to the server, out of the local ones.
+	 */
+	synchronized int getNumSent() {
+		int numSent = 0;
+		for (Entry entry : entries) {
+			if (entry.sent != null) numSent++;
+		}
+		return numSent;
+	}
+
+	private Entry find(SubPkt sub) {
+		for (Entry entry : entries) {
+			if (!entry.listeners.isEmpty() && entry.sub.getCustomMatcher() == sub.getCustomMatcher() && entry.sub.equals(sub)) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends the subscriptions that joined the covering set, then
+	 * removes from the server the ones that left it.
+	 */
+	private void update() throws IOException {
+		List<Entry> live = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (!entry.listeners.isEmpty()) live.add(entry);
+		}
+		boolean[] covering = findCovering(live);
+		for (int i=0; i<live.size(); i++) {
+			Entry entry = live.get(i);
+			entry.covering = covering[i];
+			if (entry.covering && entry.sent == null) {
+				SubPkt copy = new SubPkt(entry.sub.getEventType(), entry.sub.getConstraints());
+				sender.send(copy);
+				entry.sent = copy;
+			}
+		}
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			boolean needed = entry.covering && !entry.listeners.isEmpty();
+			if (entry.sent != null && !needed) {
+				sender.send(new UnSubPkt(entry.sent));
+				entry.sent = null;
+			}
+			if (entry.listeners.isEmpty()) it.remove();
+		}
+	}
+
+	/**
+	 * Returns which of the given subscriptions form the covering set: the ones not covered by
+	 * any other, or by an earlier one covering each other, plus any left uncovered by them.
+	 */
+	private static boolean[] findCovering(List<Entry> live) {
+		int size = live.size();
+		boolean[] covering = new boolean[size];
+		for (int i=0; i<size; i++) {
+			covering[i] = true;
+			SubPkt sub = live.get(i).sub;
+			for (int j=0; j<size && covering[i]; j++) {
+				if (j == i) continue;
+				SubPkt other = live.get(j).sub;
+				if (SubscriptionCovering.covers(other, sub) && (j < i || !SubscriptionCovering.covers(sub, other))) covering[i] = false;
+			}
+		}
+		// Covering is transitive, so this only guards against the limits of the analysis
+		for (int i=0; i<size; i++) {
+			if (!covering[i] && !isCovered(live, covering, i)) covering[i] = true;
+		}
+		return covering;
+	}
+
+	private static boolean isCovered(List<Entry> live, boolean[] covering, int index) {
+		for (int j=0; j<live.size(); j++) {
+			if (covering[j] && SubscriptionCovering.covers(live.get(j).sub, live.get(index).sub)) return true;
+		}
+		return false;
+	}
+
+	private static boolean containsInstance(List<PacketListener> listeners, PacketListener listener) {
+		for (PacketListener other : listeners) {
+			if (other == listener) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A local subscription and its subscribers, one for each subscribe call.
+	 */
+	private static class Entry {
+		final SubPkt sub;
+		final List<PacketListener> listeners;
+		// The copy sent to the server, if any
+		SubPkt sent;
+		boolean covering;
+
+		Entry(SubPkt sub) {
+			this.sub = sub;
+			this.listeners = new ArrayList<PacketListener>();
+		}
+	}
+}
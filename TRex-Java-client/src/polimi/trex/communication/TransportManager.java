@@ -20,35 +20,111 @@
 
 package polimi.trex.communication;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import polimi.trex.common.SubscriptionsTable;
 import polimi.trex.common.Consts.EngineType;
+import polimi.trex.marshalling.BufferMarshaller;
 import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.NameDictionary;
+import polimi.trex.marshalling.StreamMarshaller;
+import polimi.trex.marshalling.Unmarshaller;
+import polimi.trex.packets.HelloPkt;
+import polimi.trex.packets.PooledPubPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.PubPktView;
 import polimi.trex.packets.RulePkt;
 import polimi.trex.packets.SubPkt;
 import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.TRexPkt.PacketType;
 import polimi.trex.packets.UnSubPkt;
+import polimi.trex.utils.LatencyHistogram;
 
 /**
  * A TransportManager manages the connection with a T-Rex server.
  * Sends out packets and forwards received ones to connected PacketListeners.
+ * 
+ * If a {@link ReconnectPolicy} is set, a lost connection is re-established in background:
+ * the rules and subscriptions sent so far are sent again, while publications sent in the
+ * meanwhile are buffered, up to a bound, and written once the connection is back.
+ * Listeners are notified of the connection error only if the TransportManager gives up.
+ * 
+ * If the name dictionary is enabled, and the server accepts it when connecting, attribute
+ * names are sent once and then referred to by id (see {@link HelloPkt#NAME_DICTIONARY}).
+ * Likewise, if compression is enabled and accepted, {@link BatchPublisher}s may send
+ * their batches compressed (see {@link HelloPkt#COMPRESSION}).
  */
 public class TransportManager {
 
-	private static final int RECEIVE_TIMEOUT= 2000;
+	/**
+	 * What {@link TransportManager#sendAsync(TRexPkt)} does when the outbound queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** Block the caller until there is room in the queue */
+		BLOCK,
+		/** Fail the returned future immediately */
+		FAIL,
+		/** Fail the oldest queued packet to make room for the new one */
+		DROP_OLDEST
+	}
+
+	private static final int DEFAULT_QUEUE_CAPACITY= 1024;
+	// Time waited for the reply to the handshake, in milliseconds
+	private static final int HANDSHAKE_TIMEOUT= 5000;
+	// Length of the body of a HelloPkt: version and flags
+	private static final int HELLO_BODY_LENGTH= 8;
+	/** The event type of the latency probes, if not given explicitly */
+	public static final int DEFAULT_PROBE_EVENT_TYPE= Integer.MAX_VALUE;
 
 	private Socket sock;
+	private SocketChannel channel;
 	private OutputStream out;
 	private PacketReader reader;
 	private PingSender pingSender;
 	private Thread pingSenderThread;
+	private LatencyProbe probe;
+	private Thread probeThread;
 	private boolean usePing;
-	private boolean connected;
-	private boolean started;
+	private volatile boolean connected;
+	private volatile boolean started;
 	private SubscriptionsTable sTable;
+	// Sends the subscriptions made through subscribe, merged
+	private SubscriptionMerger merger;
+	private OutboundQueue outbound;
+	private ConnectionMetrics metrics;
+	private String address;
+	private int port;
+	private volatile ReconnectPolicy reconnectPolicy;
+	// The policy of the reconnection in progress, guarded by the write lock
+	private ReconnectPolicy activePolicy;
+	private volatile boolean reconnecting;
+	private Thread reconnectThread;
+	// Rules sent to the server, sent again after reconnecting
+	private List<RulePkt> installedRules;
+	// Publications sent while reconnecting, written after reconnecting
+	private ArrayDeque<byte[]> pendingPubs;
+	private int pendingBytes;
+	private volatile boolean nameDictionaryEnabled;
+	private volatile boolean compressionEnabled;
+	// The protocol extensions accepted by the server, as HelloPkt flags
+	private volatile int features;
+	// Names sent on the connection, if the server accepted the name dictionary
+	private volatile NameDictionary sentNames;
+	// Guards the output stream, so that concurrently sent packets are never interleaved
+	private final Object writeLock = new Object();
+	// Writes rules in chunks, without marshalling them in full; used holding the write lock
+	private final StreamMarshaller ruleMarshaller = new StreamMarshaller();
     
 	/**
 	 * Initializes the TransportManager.
@@ -57,10 +133,35 @@ public class TransportManager {
 	 * @param usePing if true, the TransportManager sends periodic ping packets to the server
 	 */
 	public TransportManager(boolean usePing) {
+		this(usePing, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Initializes the TransportManager.
+	 * If usePing is set to true, also send periodic ping packets to the server
+	 * 
+	 * @param usePing if true, the TransportManager sends periodic ping packets to the server
+	 * @param queueCapacity the maximum number of packets waiting to be written by {@link #sendAsync(TRexPkt)}
+	 * @param policy what {@link #sendAsync(TRexPkt)} does when the queue is full
+	 */
+	public TransportManager(boolean usePing, int queueCapacity, OverflowPolicy policy) {
+		this.outbound = new OutboundQueue(this, queueCapacity, policy);
 		this.sTable = new SubscriptionsTable();
 		this.reader = new PacketReader(this.sTable);
+		this.reader.setTransportManager(this);
+		this.metrics = new ConnectionMetrics(outbound);
+		this.reader.setMetrics(metrics);
+		this.merger = new SubscriptionMerger(new SubscriptionMerger.Sender() {
+			@Override
+			public void send(TRexPkt pkt) throws IOException {
+				TransportManager.this.send(pkt);
+			}
+		}, reader.getDispatcher());
 		this.usePing = usePing;
 		this.connected = false;
+		this.reconnecting = false;
+		this.installedRules = new ArrayList<RulePkt>();
+		this.pendingPubs = new ArrayDeque<byte[]>();
 		if (usePing) {
 			pingSender = new PingSender(this);
 			pingSenderThread = new Thread(pingSender);
@@ -76,13 +177,78 @@ public class TransportManager {
 	 */
 	public synchronized void connect(String address, int port) throws IOException {
 		if (connected) return;
-		sock = new Socket(address, port);
-		sock.setSoTimeout(RECEIVE_TIMEOUT);
-		out= sock.getOutputStream();
-		reader.setInputStream(sock.getInputStream());
+		this.address = address;
+		this.port = port;
+		sentNames = null;
+		features = 0;
+		openSocket();
 		connected = true;
 	}
 
+	/**
+	 * Enables or disables the name dictionary for the next connection. When connecting,
+	 * the TransportManager then asks the server to use it, sending a {@link HelloPkt}, and
+	 * does not use it if the server refuses. Enable it only with servers known to support
+	 * the handshake: servers not knowing it may fail on the unknown packet.
+	 * Only the names of the packets sent through {@link #send(TRexPkt)}, {@link #sendAsync(TRexPkt)}
+	 * and {@link BatchPublisher}s are sent as references.
+	 * 
+	 * @param enabled true to ask the server for the name dictionary
+	 */
+	public void setNameDictionary(boolean enabled) {
+		this.nameDictionaryEnabled = enabled;
+	}
+
+	/**
+	 * Returns true if the name dictionary is used on the current connection.
+	 */
+	public boolean isNameDictionaryActive() {
+		return sentNames != null;
+	}
+
+	/**
+	 * Enables or disables compression for the next connection: if the server accepts it
+	 * when connecting, {@link BatchPublisher}s compress the batches above their compression
+	 * threshold. As for {@link #setNameDictionary(boolean)}, enable it only with servers
+	 * known to support the handshake.
+	 * 
+	 * @param enabled true to ask the server for compression
+	 */
+	public void setCompression(boolean enabled) {
+		this.compressionEnabled = enabled;
+	}
+
+	/**
+	 * Returns true if compression is accepted on the current connection.
+	 */
+	public boolean isCompressionActive() {
+		return (features & HelloPkt.COMPRESSION) != 0;
+	}
+
+	/**
+	 * Returns the names sent on the current connection, or null if the name dictionary is not used.
+	 */
+	NameDictionary getNameDictionary() {
+		return sentNames;
+	}
+
+	/**
+	 * Enables (or, if the given policy is null, disables) the automatic reconnection
+	 * to the server when the connection is lost.
+	 * 
+	 * @param policy the policy defining delays and limits of reconnection
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy) {
+		this.reconnectPolicy = policy;
+	}
+
+	/**
+	 * Returns true while the connection is being re-established.
+	 */
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
 	/**
 	 * Starts listening for new packets from the server
 	 */
@@ -90,18 +256,73 @@ public class TransportManager {
 		if (started) return;
 		reader.startReader();
 		if (usePing) pingSenderThread.start();
+		if (probe != null) probeThread.start();
 		started = true;
 	}
 
 	/**
-	 * Stops listening for new packets from the server
+	 * As {@link #enableLatencyProbe(long, int)}, using {@link #DEFAULT_PROBE_EVENT_TYPE}.
+	 */
+	public void enableLatencyProbe(long intervalMillis) {
+		enableLatencyProbe(intervalMillis, DEFAULT_PROBE_EVENT_TYPE);
+	}
+
+	/**
+	 * Enables the measurement of the round trip time to the server. Every given interval,
+	 * a probe is published with the given event type, which must be reserved to this purpose:
+	 * the TransportManager subscribes to it, and its publications are not delivered to listeners.
+	 * Round trip times are collected in the histogram returned by {@link #getLatencyHistogram()}.
+	 * 
+	 * @param intervalMillis the time between two probes, in milliseconds
+	 * @param eventType the event type of probes
+	 */
+	public synchronized void enableLatencyProbe(long intervalMillis, int eventType) {
+		if (probe != null) return;
+		if (intervalMillis <= 0) throw new IllegalArgumentException("Invalid interval: "+intervalMillis);
+		probe = new LatencyProbe(this, eventType, intervalMillis);
+		reader.reserveEventType(eventType);
+		reader.addPubListener(eventType, probe, 0, ListenerOverflowPolicy.DROP_OLDEST);
+		probeThread = new Thread(probe, "TRex-LatencyProbe");
+		probeThread.setDaemon(true);
+		if (started) probeThread.start();
+	}
+
+	/**
+	 * Returns the round trip times measured so far, or null if the latency probe is not enabled.
+	 */
+	public LatencyHistogram getLatencyHistogram() {
+		LatencyProbe currentProbe = probe;
+		return currentProbe == null ? null : currentProbe.getHistogram();
+	}
+
+	/**
+	 * Stops listening for new packets from the server and closes the connection.
+	 * Closing the connection wakes up the reader thread immediately: this method
+	 * returns once it has exited.
 	 */
 	public synchronized void stop() {
-		if (usePing) pingSender.stop();
-		reader.stopReader();
-		closeSocket();
 		started = false;
 		connected = false;
+		if (usePing) {
+			pingSender.stop();
+			pingSenderThread.interrupt();
+		}
+		if (probe != null) {
+			probe.stop();
+			probeThread.interrupt();
+		}
+		outbound.stop();
+		reader.stopReader();
+		synchronized (writeLock) {
+			if (reconnectThread != null) reconnectThread.interrupt();
+			reconnectThread = null;
+			reconnecting = false;
+			activePolicy = null;
+			pendingPubs.clear();
+			pendingBytes = 0;
+			closeSocket();
+		}
+		reader.awaitTermination();
 	}
 
 	/**
@@ -113,6 +334,31 @@ public class TransportManager {
 		reader.addPacketListener(listener);
 	}
 
+	/**
+	 * Registers a listener for receiving packets from the server, decoupled from the
+	 * thread reading from the connection. Packets are queued for the listener and
+	 * delivered, in order, by a thread of its own (a virtual thread, if available).
+	 * When the queue is full, the oldest queued packet is dropped.
+	 * 
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 */
+	public void addPacketListener(PacketListener listener, int queueCapacity) {
+		addPacketListener(listener, queueCapacity, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addPacketListener(PacketListener, int)}, with the given policy applied
+	 * when the queue of the listener is full.
+	 * 
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 * @param policy What to do with the packets arriving when the queue is full
+	 */
+	public void addPacketListener(PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		reader.addPacketListener(listener, queueCapacity, policy);
+	}
+
 	/**
 	 * Removes one listener of packets
 	 * 
@@ -122,12 +368,156 @@ public class TransportManager {
 		reader.removePacketListener(listener);
 	}
 
-	
+	/**
+	 * Registers a listener for receiving only the publications with the given event type.
+	 * A listener can be registered for more than one event type. Publications of other types,
+	 * and packets other than publications, are not delivered to it.
+	 * 
+	 * @param eventType The event type of the publications to receive
+	 * @param listener The listener to register
+	 */
+	public void addPubListener(int eventType, PacketListener listener) {
+		reader.addPubListener(eventType, listener, 0, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addPubListener(int, PacketListener)}, but publications are delivered
+	 * to the listener by a thread of its own, as in {@link #addPacketListener(PacketListener, int)}.
+	 * The queue capacity of the first registration of the listener applies to all its event types.
+	 * 
+	 * @param eventType The event type of the publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 */
+	public void addPubListener(int eventType, PacketListener listener, int queueCapacity) {
+		addPubListener(eventType, listener, queueCapacity, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addPubListener(int, PacketListener, int)}, with the given policy applied when
+	 * the queue of the listener is full. The policy of the first registration applies too.
+	 * 
+	 * @param eventType The event type of the publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 * @param policy What to do with the packets arriving when the queue is full
+	 */
+	public void addPubListener(int eventType, PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		reader.addPubListener(eventType, listener, queueCapacity, policy);
+	}
+
+	/**
+	 * Stops delivering the publications with the given event type to the given listener
+	 * 
+	 * @param eventType The event type of the publications
+	 * @param listener The listener to remove
+	 */
+	public void removePubListener(int eventType, PacketListener listener) {
+		reader.removePubListener(eventType, listener);
+	}
+
+	/**
+	 * Registers a listener for receiving only the publications satisfying the given subscription,
+	 * which is compared by identity, among the ones delivered by the server: the subscription is
+	 * usually sent too, with {@link #send(TRexPkt)}, or see {@link #subscribe(SubPkt, PacketListener)}.
+	 * Publications are routed by the same index that post-filters them against custom matchers,
+	 * so each subscription is evaluated once per publication. A listener can be registered for
+	 * more than one subscription, and receives a publication once, however many of them it satisfies.
+	 * 
+	 * @param sub The subscription whose publications to receive
+	 * @param listener The listener to register
+	 */
+	public void addSubListener(SubPkt sub, PacketListener listener) {
+		reader.addSubListener(sub, listener, 0, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addSubListener(SubPkt, PacketListener)}, but publications are delivered
+	 * to the listener by a thread of its own, as in {@link #addPacketListener(PacketListener, int)}.
+	 * The queue capacity of the first registration of the listener applies to all its subscriptions.
+	 * 
+	 * @param sub The subscription whose publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 */
+	public void addSubListener(SubPkt sub, PacketListener listener, int queueCapacity) {
+		addSubListener(sub, listener, queueCapacity, ListenerOverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * As {@link #addSubListener(SubPkt, PacketListener, int)}, with the given policy applied when
+	 * the queue of the listener is full. The policy of the first registration applies too.
+	 * 
+	 * @param sub The subscription whose publications to receive
+	 * @param listener The listener to register
+	 * @param queueCapacity The maximum number of packets queued for the listener
+	 * @param policy What to do with the packets arriving when the queue is full
+	 */
+	public void addSubListener(SubPkt sub, PacketListener listener, int queueCapacity, ListenerOverflowPolicy policy) {
+		reader.addSubListener(sub, listener, queueCapacity, policy);
+	}
+
+	/**
+	 * Stops delivering the publications satisfying the given subscription to the given listener
+	 * 
+	 * @param sub The subscription
+	 * @param listener The listener to remove
+	 */
+	public void removeSubListener(SubPkt sub, PacketListener listener) {
+		reader.removeSubListener(sub, listener);
+	}
+
+	/**
+	 * Subscribes the given listener to the publications satisfying the given subscription,
+	 * merging it with the other subscriptions made this way: only a minimal set of them,
+	 * covering all the others, is sent to the server, and the publications received are
+	 * routed to the listeners of the subscriptions they satisfy, as by
+	 * {@link #addSubListener(SubPkt, PacketListener)}. Equal subscriptions are sent once,
+	 * and removed from the server once all their subscribers unsubscribed.
+	 * Custom matchers are evaluated on the client only, to route publications.
+	 * 
+	 * @param sub The subscription, which must not be modified afterwards
+	 * @param listener The listener receiving the publications satisfying it
+	 * @throws IOException if the server could not be updated; the subscription
+	 * is kept, and the server updated again by the next change
+	 */
+	public void subscribe(SubPkt sub, PacketListener listener) throws IOException {
+		merger.subscribe(sub, listener);
+	}
+
+	/**
+	 * Removes a subscription made with {@link #subscribe(SubPkt, PacketListener)}
+	 * 
+	 * @param sub The subscription, or an equal one with the same custom matcher
+	 * @param listener The listener that subscribed
+	 * @throws IOException if the server could not be updated; it is updated again by the next change
+	 */
+	public void unsubscribe(SubPkt sub, PacketListener listener) throws IOException {
+		merger.unsubscribe(sub, listener);
+	}
+
+
+	/**
+	 * Sends a rule to the server. The rule is encoded while it is written, a chunk at
+	 * a time, so that large rules are never held in memory in their marshalled form.
+	 * If a {@link ReconnectPolicy} is set, the rule is kept, and encoded again when
+	 * reconnecting: it must not be modified afterwards.
+	 * 
+	 * @param pkt The {@link RulePkt} to send
+	 * @param eType The engine meant to process the rule
+	 * @throws IOException
+	 */
 	public void sendRule(TRexPkt pkt, EngineType eType) throws IOException {
 		if (out != null) {
-			byte[] bytes;
-			bytes = Marshaller.marshalRule(pkt, eType);
-			out.write(bytes);
+			if (!(pkt instanceof RulePkt)) throw new IllegalArgumentException("Cannot marshal rule "+pkt);
+			RulePkt rule = (RulePkt) pkt;
+			if (reconnectPolicy != null) {
+				synchronized (installedRules) {
+					installedRules.add(rule);
+				}
+			}
+			writeRule(rule);
+			metrics.packetsSent(PacketType.RULE_PACKET, 1);
 			// TODO: for future usage (when the server recognizes every packet as valid ping)
 			// if (usePing) pingSender.updateLastSendTime();
 		}
@@ -140,16 +530,136 @@ public class TransportManager {
 	 */
 	public void send(TRexPkt pkt) throws IOException {
 		if (out != null) {
-			byte[] bytes;
-			bytes = Marshaller.marshal(pkt);
-			out.write(bytes);
+			transmit(pkt, marshal(pkt));
 			// TODO: for future usage (when the server recognizes every packet as valid ping)
 			// if (usePing) pingSender.updateLastSendTime();
-			if (pkt instanceof SubPkt) this.sTable.addSubscription((SubPkt) pkt);
-			if (pkt instanceof UnSubPkt) this.sTable.removeSubscription(((UnSubPkt)pkt).getSubPkt());
 		}
 	}
 
+	/**
+	 * Sends a packet to the server without waiting for the network.
+	 * The packet is marshalled by the caller and queued, then written by a dedicated
+	 * writer thread in the order it was queued. If the queue is full, the
+	 * {@link OverflowPolicy} given at construction time is applied.
+	 * 
+	 * @param pkt The packet to send
+	 * @return a future completed when the packet has been written, or completed
+	 * exceptionally if the write fails or the packet is rejected or dropped
+	 */
+	public CompletableFuture<Void> sendAsync(TRexPkt pkt) {
+		if (out == null) {
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			future.completeExceptionally(new IOException("Not connected"));
+			return future;
+		}
+		outbound.start();
+		return outbound.add(pkt, marshal(pkt));
+	}
+
+	private byte[] marshal(TRexPkt pkt) {
+		long encodeStart = System.nanoTime();
+		NameDictionary names = sentNames;
+		byte[] bytes = names == null ? Marshaller.marshal(pkt) : BufferMarshaller.marshal(pkt, names);
+		metrics.encoded(System.nanoTime()-encodeStart);
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of packets queued by {@link #sendAsync(TRexPkt)} and not yet written.
+	 */
+	public int getOutboundQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Returns the maximum number of packets that can be queued by {@link #sendAsync(TRexPkt)}.
+	 */
+	public int getOutboundQueueCapacity() {
+		return outbound.capacity();
+	}
+
+	/**
+	 * If enabled, received publications are delivered as read-only {@link PubPktView}s,
+	 * which decode event type, timestamp and attributes only when accessed, instead
+	 * of fully decoded {@link PubPkt}s. Disabled by default.
+	 * 
+	 * @param enabled true to deliver publications as views
+	 */
+	public void setPubPktViews(boolean enabled) {
+		reader.setPubViews(enabled);
+	}
+
+	/**
+	 * If enabled, received publications are decoded into {@link PooledPubPkt}s, which are
+	 * recycled, with their attributes, as soon as the listeners are done with them.
+	 * Listeners must not keep them, or their attributes, after returning, unless they
+	 * call {@link PooledPubPkt#retain()} and later {@link PooledPubPkt#release()}.
+	 * Disabled by default; enabling it disables publication views.
+	 * 
+	 * @param enabled true to deliver pooled publications
+	 */
+	public void setPooledPubPkts(boolean enabled) {
+		reader.setPooledPubs(enabled);
+	}
+
+	/**
+	 * Returns the traffic and timing metrics of the connection.
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Writes the given packet, already marshalled, to the server.
+	 */
+	void transmit(TRexPkt pkt, byte[] bytes) throws IOException {
+		write(bytes, 0, bytes.length, pkt);
+		metrics.packetSent(pkt);
+	}
+
+	/**
+	 * Writes the given packets, already marshalled, to the server with as few writes as
+	 * possible: the socket is handed all the buffers at once, in a single gathering write
+	 * unless it does not accept all of them. Unlike {@link #transmit(TRexPkt, byte[])},
+	 * publications are not buffered while reconnecting: if the write fails, the packets
+	 * whose buffers have bytes remaining are not sent, and the caller may transmit them again.
+	 */
+	void transmit(TRexPkt[] pkts, ByteBuffer[] buffers, int num) throws IOException {
+		synchronized (writeLock) {
+			if (reconnecting || channel == null) throw new IOException("Not connected");
+			boolean interrupted = Thread.interrupted();
+			try {
+				writeDefinitions();
+				int first = 0;
+				while (first < num) {
+					metrics.bytesSent((int) channel.write(buffers, first, num-first));
+					while (first < num && !buffers[first].hasRemaining()) first++;
+				}
+			} catch (IOException e) {
+				connectionLost();
+				throw e;
+			} finally {
+				if (interrupted) Thread.currentThread().interrupt();
+				// Still under the lock, so that a reconnection sees the subscriptions written so far
+				for (int i=0; i<num; i++) {
+					if (buffers[i].hasRemaining()) break;
+					packetSent(pkts[i]);
+					metrics.packetSent(pkts[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps track of the subscriptions sent to the server. Called holding the write lock,
+	 * together with the write of the packet, so that a reconnection neither misses nor
+	 * replays it.
+	 */
+	private void packetSent(TRexPkt pkt) {
+		if (pkt instanceof SubPkt) this.sTable.addSubscription((SubPkt) pkt);
+		if (pkt instanceof UnSubPkt) this.sTable.removeSubscription(((UnSubPkt)pkt).getSubPkt());
+	}
+
 	/**
 	 * There is a separate method other than {@link #send(Packet)}
 	 * just for {@link RulePkt} as {@link RulePkt}s are not
@@ -166,6 +676,226 @@ public class TransportManager {
 	}
 	*/
 
+	/**
+	 * Writes already marshalled publications to the server.
+	 */
+	void write(byte[] bytes, int offset, int length) throws IOException {
+		write(bytes, offset, length, null);
+	}
+
+	/**
+	 * Writes already marshalled packets to the server. While reconnecting, publications
+	 * are buffered, while other packets are skipped, since the rules and subscriptions
+	 * they install are sent again after reconnecting anyway.
+	 * 
+	 * @param pkt the packet written, or null if the bytes contain publications only
+	 */
+	private void write(byte[] bytes, int offset, int length, TRexPkt pkt) throws IOException {
+		synchronized (writeLock) {
+			if (!reconnecting) {
+				if (out == null) throw new IOException("Not connected");
+				// Interrupting a thread writing to a channel closes it: a pending interrupt is set aside
+				boolean interrupted = Thread.interrupted();
+				try {
+					writeDefinitions();
+					out.write(bytes, offset, length);
+					metrics.bytesSent(length);
+					if (pkt != null) packetSent(pkt);
+					return;
+				} catch (IOException e) {
+					if (!connectionLost()) throw e;
+				} finally {
+					if (interrupted) Thread.currentThread().interrupt();
+				}
+			}
+			if (pkt != null) packetSent(pkt);
+			if (pkt != null && !(pkt instanceof PubPkt)) return;
+			if (pendingBytes+length > activePolicy.getMaxBufferedBytes()) {
+				throw new IOException("Reconnecting: buffer of pending publications full");
+			}
+			byte[] copy = new byte[length];
+			System.arraycopy(bytes, offset, copy, 0, length);
+			pendingPubs.add(copy);
+			pendingBytes += length;
+		}
+	}
+
+	/**
+	 * Streams the given rule to the server. While reconnecting, the rule is skipped,
+	 * as installed rules are sent again after reconnecting anyway.
+	 */
+	private void writeRule(RulePkt rule) throws IOException {
+		synchronized (writeLock) {
+			if (reconnecting) return;
+			if (out == null) throw new IOException("Not connected");
+			boolean interrupted = Thread.interrupted();
+			try {
+				metrics.bytesSent((int) ruleMarshaller.marshal(rule, channel));
+			} catch (IOException e) {
+				if (!connectionLost()) throw e;
+			} finally {
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes the definitions of the names recorded since the last write, if any,
+	 * so that they precede the packets referring to them. Called holding the write lock.
+	 */
+	private void writeDefinitions() throws IOException {
+		NameDictionary names = sentNames;
+		if (names == null) return;
+		byte[] definitions = names.takeDefinitions();
+		if (definitions == null) return;
+		out.write(definitions);
+		metrics.bytesSent(definitions.length);
+	}
+
+	/**
+	 * Called when the connection is found broken. If a {@link ReconnectPolicy}
+	 * is set, starts reconnecting in background.
+	 * 
+	 * @return true if the TransportManager is reconnecting
+	 */
+	boolean connectionLost() {
+		synchronized (writeLock) {
+			if (reconnecting) return true;
+			// Read once: the policy may be changed concurrently
+			final ReconnectPolicy policy = reconnectPolicy;
+			if (policy == null || !connected) return false;
+			activePolicy = policy;
+			reconnecting = true;
+			closeSocket();
+			reconnectThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					reconnect(policy);
+				}
+			}, "TRex-Reconnect");
+			reconnectThread.setDaemon(true);
+			reconnectThread.start();
+			return true;
+		}
+	}
+
+	/**
+	 * Tries to connect again, waiting between attempts as defined by the policy.
+	 * On success, sends again installed rules and subscriptions, then the pending publications.
+	 */
+	private void reconnect(ReconnectPolicy policy) {
+		// The reader of the closed connection exits immediately
+		reader.awaitTermination();
+		for (int attempt = 0; ; attempt++) {
+			try {
+				Thread.sleep(policy.getDelay(attempt));
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (!connected) return;
+			try {
+				synchronized (writeLock) {
+					if (!reconnecting) return;
+					openSocket();
+					// Pending publications may refer to the names defined so far
+					if (sentNames != null) out.write(sentNames.getDefinitions());
+					synchronized (installedRules) {
+						for (RulePkt rule : installedRules) {
+							ruleMarshaller.marshal(rule, channel);
+						}
+					}
+					for (SubPkt sub : sTable.getSubscriptions()) {
+						out.write(Marshaller.marshal(sub));
+					}
+					while (!pendingPubs.isEmpty()) {
+						out.write(pendingPubs.peek());
+						pendingBytes -= pendingPubs.poll().length;
+					}
+					reconnecting = false;
+					reconnectThread = null;
+					activePolicy = null;
+				}
+				if (started) reader.startReader();
+				return;
+			} catch (IOException e) {
+				closeSocket();
+				if (!policy.shouldRetry(attempt+1)) break;
+			}
+		}
+		// Giving up: the connection is lost
+		synchronized (writeLock) {
+			reconnecting = false;
+			reconnectThread = null;
+			activePolicy = null;
+			pendingPubs.clear();
+			pendingBytes = 0;
+		}
+		connected = false;
+		reader.notifyConnectionError();
+	}
+
+	private void openSocket() throws IOException {
+		Socket s = open();
+		// When reconnecting, the extensions in use are needed anyway
+		int requested = features | (nameDictionaryEnabled ? HelloPkt.NAME_DICTIONARY : 0) | (compressionEnabled ? HelloPkt.COMPRESSION : 0);
+		if (requested != 0) {
+			int accepted = negotiate(s, requested);
+			if (accepted < 0) {
+				s.close();
+				s = open();
+				accepted = 0;
+			}
+			// Packets already marshalled may rely on the extensions in use: they cannot be sent anymore
+			if ((accepted & features) != features) {
+				s.close();
+				throw new IOException("Protocol extensions refused by the server");
+			}
+			features = accepted;
+			if ((accepted & HelloPkt.NAME_DICTIONARY) != 0 && sentNames == null) sentNames = new NameDictionary();
+		}
+		synchronized (writeLock) {
+			sock = s;
+			channel = s.getChannel();
+			out = s.getOutputStream();
+		}
+		reader.setInputStream(s.getInputStream());
+	}
+
+	/**
+	 * Opens a blocking connection to the server through a {@link SocketChannel},
+	 * so that queued packets can be written together (see {@link OutboundQueue}).
+	 */
+	private Socket open() throws IOException {
+		InetSocketAddress serverAddress = new InetSocketAddress(address, port);
+		if (serverAddress.isUnresolved()) throw new UnknownHostException(address);
+		return SocketChannel.open(serverAddress).socket();
+	}
+
+	/**
+	 * Sends a {@link HelloPkt} asking for the given extensions, and waits for the reply.
+	 * 
+	 * @return the extensions accepted by the server, or -1 if it did not reply with a handshake
+	 */
+	private int negotiate(Socket s, int requested) throws IOException {
+		s.setSoTimeout(HANDSHAKE_TIMEOUT);
+		try {
+			s.getOutputStream().write(Marshaller.marshal(new HelloPkt(requested)));
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			if (in.read() != PacketType.HELLO_PACKET.toValue()) return -1;
+			// The length is not trusted: anything but a version and the flags is not a reply
+			int length = in.readInt();
+			if (length != HELLO_BODY_LENGTH) return -1;
+			byte[] body = new byte[length];
+			in.readFully(body);
+			return Unmarshaller.decodeHelloPkt(body, 0).getFeatures() & requested;
+		} catch (IOException e) {
+			// No usable reply: the connection is not trusted anymore
+			return -1;
+		} finally {
+			if (!s.isClosed()) s.setSoTimeout(0);
+		}
+	}
+
 	private void closeSocket(){
 		try {
 			if (sock != null && !sock.isClosed()) {
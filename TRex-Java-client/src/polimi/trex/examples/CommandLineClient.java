@@ -106,7 +106,7 @@ public class CommandLineClient implements PacketListener {
 	try {
 	    client = new CommandLineClient(serverHost, serverPort);
 	    if(subTypes.size()>0) {
-		client.tManager.addPacketListener(client);
+		for(int subType : subTypes) client.tManager.addPubListener(subType, client);
 		client.tManager.start();
 		client.subscribe(subTypes);
 	    }
@@ -181,10 +181,7 @@ public class CommandLineClient implements PacketListener {
 
     @Override
     public void notifyPktReceived(TRexPkt pkt) {
-	if(! (pkt instanceof PubPkt)) {
-	    System.out.println("Ingnoring wrong packet: "+pkt);
-	    return;
-	}
+	// Registered by event type: only publications are delivered
 	PubPkt pub = (PubPkt) pkt;
 	System.out.print("PubPacket received: {");
 	System.out.print(pub.getEventType());
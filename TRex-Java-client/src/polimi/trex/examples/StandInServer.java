@@ -0,0 +1,253 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import polimi.trex.marshalling.BufferMarshaller;
+import polimi.trex.marshalling.BufferedPacketUnmarshaller;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.NameDictionary;
+import polimi.trex.packets.HelloPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.UnSubPkt;
+
+/**
+ * A minimal stand-in for the T-Rex server, to exercise clients locally: it forwards each
+ * publication to the connections having a matching subscription, the publisher included,
+ * as the server does. Rules are ignored, and no complex event is ever detected.
+ *
+ * Unlike the server, it accepts the protocol extensions negotiated through {@link HelloPkt}s,
+ * unless disabled, and counts the bytes received and sent, so that it can be used to
+ * measure their effect. It does not compress the publications it forwards.
+ *
+ * Usage: java polimi.trex.examples.StandInServer [port] [-nodict] [-nocompress]
+ */
+public class StandInServer implements Runnable {
+	private final static int DEFAULT_PORT= 50254;
+	private final static int BUFFER_LENGTH= 8192;
+
+	private ServerSocket serverSocket;
+	private int features;
+	private List<Connection> connections;
+	private AtomicLong bytesIn;
+	private AtomicLong bytesOut;
+	private volatile boolean stopped;
+
+	/**
+	 * Opens the server socket, accepting all the protocol extensions.
+	 *
+	 * @param port the port to listen to, or 0 to use any free port
+	 */
+	public StandInServer(int port) throws IOException {
+		this(port, HelloPkt.NAME_DICTIONARY | HelloPkt.COMPRESSION);
+	}
+
+	/**
+	 * Opens the server socket.
+	 *
+	 * @param port the port to listen to, or 0 to use any free port
+	 * @param features the protocol extensions accepted, as {@link HelloPkt} flags
+	 */
+	public StandInServer(int port, int features) throws IOException {
+		this.serverSocket = new ServerSocket(port);
+		this.features = features;
+		this.connections = new CopyOnWriteArrayList<Connection>();
+		this.bytesIn = new AtomicLong();
+		this.bytesOut = new AtomicLong();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts accepting connections on a thread of its own.
+	 */
+	public void start() {
+		Thread t = new Thread(this, "TRex-StandInServer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Closes the server socket and all the connections.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+	}
+
+	public long getBytesReceived() {
+		return bytesIn.get();
+	}
+
+	public long getBytesSent() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Connection connection = new Connection(socket);
+				connections.add(connection);
+				Thread t = new Thread(connection, "TRex-StandInConnection");
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch (IOException e) {
+			if (!stopped) e.printStackTrace();
+		}
+	}
+
+	private void forward(PubPkt pkt) {
+		for (Connection connection : connections) {
+			if (connection.isSubscribed(pkt)) connection.send(pkt);
+		}
+	}
+
+	private class Connection implements Runnable {
+		private Socket socket;
+		private OutputStream out;
+		private BufferedPacketUnmarshaller unmarshaller;
+		// Names sent to the client, if it asked for the name dictionary
+		private NameDictionary sentNames;
+		private List<SubPkt> subscriptions;
+		private boolean first;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = socket.getOutputStream();
+			this.unmarshaller = new BufferedPacketUnmarshaller();
+			this.subscriptions = new CopyOnWriteArrayList<SubPkt>();
+			this.first = true;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[BUFFER_LENGTH];
+			try {
+				InputStream in = socket.getInputStream();
+				int numRead;
+				while ((numRead = in.read(buffer)) >= 0) {
+					bytesIn.addAndGet(numRead);
+					for (TRexPkt pkt : unmarshaller.unmarshal(buffer, 0, numRead)) {
+						handle(pkt);
+					}
+				}
+			} catch (IOException e) {
+				// connection closed
+			} finally {
+				close();
+			}
+		}
+
+		private void handle(TRexPkt pkt) throws IOException {
+			boolean firstPkt = first;
+			first = false;
+			if (pkt instanceof HelloPkt) {
+				if (!firstPkt) throw new IOException("Unexpected handshake");
+				int accepted = ((HelloPkt) pkt).getFeatures() & features;
+				synchronized (this) {
+					write(Marshaller.marshal(new HelloPkt(accepted)));
+					if ((accepted & HelloPkt.NAME_DICTIONARY) != 0) sentNames = new NameDictionary();
+				}
+			} else if (pkt instanceof SubPkt) {
+				subscriptions.add((SubPkt) pkt);
+			} else if (pkt instanceof UnSubPkt) {
+				subscriptions.remove(((UnSubPkt) pkt).getSubPkt());
+			} else if (pkt instanceof PubPkt) {
+				forward((PubPkt) pkt);
+			}
+		}
+
+		boolean isSubscribed(PubPkt pkt) {
+			for (SubPkt sub : subscriptions) {
+				if (sub.matches(pkt)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Sends a publication, preceded by the definitions of the names it introduces.
+		 */
+		synchronized void send(PubPkt pkt) {
+			try {
+				if (sentNames == null) {
+					write(Marshaller.marshal(pkt));
+				} else {
+					byte[] bytes = BufferMarshaller.marshal(pkt, sentNames);
+					byte[] definitions = sentNames.takeDefinitions();
+					if (definitions != null) write(definitions);
+					write(bytes);
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private synchronized void write(byte[] bytes) throws IOException {
+			out.write(bytes);
+			bytesOut.addAndGet(bytes.length);
+		}
+
+		void close() {
+			connections.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = DEFAULT_PORT;
+		int features = HelloPkt.NAME_DICTIONARY | HelloPkt.COMPRESSION;
+		for (String arg : args) {
+			if (arg.equals("-nodict")) features &= ~HelloPkt.NAME_DICTIONARY;
+			else if (arg.equals("-nocompress")) features &= ~HelloPkt.COMPRESSION;
+			else port = Integer.parseInt(arg);
+		}
+		StandInServer server = new StandInServer(port, features);
+		System.out.println("Listening on port "+server.getPort());
+		server.run();
+	}
+}
@@ -0,0 +1,180 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.util.Collection;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Constraint;
+import polimi.trex.common.ConstraintPredicates;
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+
+/**
+ * Compares the evaluation of subscriptions compiled by {@link ConstraintPredicates}, through
+ * {@link SubPkt#matches(PubPkt)}, with an interpreter switching on the type and operator of
+ * each constraint for each publication. Each subscription has 5 constraints, of all types,
+ * and each publication 8 attributes; about a third of the publications satisfy each subscription.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.CompiledPredicateBenchmark
+ */
+public class CompiledPredicateBenchmark {
+	private final static int EVENT_TYPE= 1;
+	private final static int NUM_SUBS= 64;
+	private final static int NUM_PKTS= 1024;
+	private final static int ITERATIONS= 200;
+
+	public static void main(String[] args) {
+		SubPkt[] subs= createSubs();
+		PubPkt[] pkts= createPkts();
+		int interpreted= runInterpreter(subs, pkts, 1);
+		int compiled= runCompiled(subs, pkts, 1);
+		if (interpreted != compiled) throw new IllegalStateException("Different matches: "+interpreted+" "+compiled);
+		// Warm up
+		for (int i=0; i<5; i++) {
+			runInterpreter(subs, pkts, ITERATIONS/10);
+			runCompiled(subs, pkts, ITERATIONS/10);
+		}
+		long evaluations= (long) ITERATIONS*NUM_SUBS*NUM_PKTS;
+		System.out.printf("matched %.1f%%%n", 100.0*compiled/(NUM_SUBS*NUM_PKTS));
+		System.out.println("evaluation\tns/match");
+		long start= System.nanoTime();
+		runInterpreter(subs, pkts, ITERATIONS);
+		System.out.printf("interpreted\t%.1f%n", (double) (System.nanoTime()-start)/evaluations);
+		start= System.nanoTime();
+		runCompiled(subs, pkts, ITERATIONS);
+		System.out.printf("compiled\t%.1f%n", (double) (System.nanoTime()-start)/evaluations);
+	}
+
+	private static SubPkt[] createSubs() {
+		SubPkt[] subs= new SubPkt[NUM_SUBS];
+		for (int i=0; i<NUM_SUBS; i++) {
+			subs[i]= new SubPkt(EVENT_TYPE);
+			subs[i].addConstraint(new Constraint("temperature", ConstraintOp.GE, 10+i%8));
+			subs[i].addConstraint(new Constraint("humidity", ConstraintOp.LT, 80.5f));
+			subs[i].addConstraint(new Constraint("valid", ConstraintOp.EQ, true));
+			subs[i].addConstraint(new Constraint("area", ConstraintOp.IN, "north"));
+			subs[i].addConstraint(new Constraint("station", ConstraintOp.NE, "st"+i));
+		}
+		return subs;
+	}
+
+	private static PubPkt[] createPkts() {
+		PubPkt[] pkts= new PubPkt[NUM_PKTS];
+		for (int i=0; i<NUM_PKTS; i++) {
+			pkts[i]= new PubPkt(EVENT_TYPE, i);
+			pkts[i].addAttribute(new Attribute("station", "st"+(i%NUM_SUBS)));
+			pkts[i].addAttribute(new Attribute("area", i%5 == 0 ? "south" : "northeast"));
+			pkts[i].addAttribute(new Attribute("pressure", 1013.25f));
+			pkts[i].addAttribute(new Attribute("wind", i%40));
+			pkts[i].addAttribute(new Attribute("temperature", 5+i%20));
+			pkts[i].addAttribute(new Attribute("humidity", 60.5f+i%30));
+			pkts[i].addAttribute(new Attribute("valid", i%10 != 0));
+			pkts[i].addAttribute(new Attribute("quality", 3));
+		}
+		return pkts;
+	}
+
+	private static int runInterpreter(SubPkt[] subs, PubPkt[] pkts, int iterations) {
+		int matched= 0;
+		for (int i=0; i<iterations; i++) {
+			for (PubPkt pkt : pkts) {
+				for (SubPkt sub : subs) {
+					if (interpret(sub, pkt)) matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	private static int runCompiled(SubPkt[] subs, PubPkt[] pkts, int iterations) {
+		int matched= 0;
+		for (int i=0; i<iterations; i++) {
+			for (PubPkt pkt : pkts) {
+				for (SubPkt sub : subs) {
+					if (sub.matches(pkt)) matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Evaluates the given subscription with the semantics of {@link ConstraintPredicates}.
+	 */
+	private static boolean interpret(SubPkt sub, PubPkt pkt) {
+		if (sub.getEventType() != pkt.getEventType()) return false;
+		Collection<Attribute> attributes= pkt.getAttributes();
+		for (Constraint constraint : sub.getConstraints()) {
+			boolean satisfied= false;
+			for (Attribute attr : attributes) {
+				if (attr.getSymbol() == constraint.getSymbol()) {
+					satisfied= attr.getValType() == constraint.getValType() && satisfies(attr, constraint);
+					break;
+				}
+			}
+			if (!satisfied) return false;
+		}
+		return true;
+	}
+
+	private static boolean satisfies(Attribute attr, Constraint constraint) {
+		switch (constraint.getValType()) {
+		case INT:
+			switch (constraint.getOp()) {
+			case EQ: return attr.getIntVal() == constraint.getIntVal();
+			case NE: return attr.getIntVal() != constraint.getIntVal();
+			case LT: return attr.getIntVal() < constraint.getIntVal();
+			case LE: return attr.getIntVal() <= constraint.getIntVal();
+			case GT: return attr.getIntVal() > constraint.getIntVal();
+			case GE: return attr.getIntVal() >= constraint.getIntVal();
+			default: return false;
+			}
+		case FLOAT:
+			switch (constraint.getOp()) {
+			case EQ: return attr.getFloatVal() == constraint.getFloatVal();
+			case NE: return attr.getFloatVal() != constraint.getFloatVal();
+			case LT: return attr.getFloatVal() < constraint.getFloatVal();
+			case LE: return attr.getFloatVal() <= constraint.getFloatVal();
+			case GT: return attr.getFloatVal() > constraint.getFloatVal();
+			case GE: return attr.getFloatVal() >= constraint.getFloatVal();
+			default: return false;
+			}
+		case BOOL:
+			switch (constraint.getOp()) {
+			case EQ: return attr.getBoolVal() == constraint.getBoolVal();
+			case NE: return attr.getBoolVal() != constraint.getBoolVal();
+			default: return false;
+			}
+		default:
+			switch (constraint.getOp()) {
+			case EQ: return attr.getStringVal().equals(constraint.getStringVal());
+			case NE: return !attr.getStringVal().equals(constraint.getStringVal());
+			case LT: return attr.getStringVal().compareTo(constraint.getStringVal()) < 0;
+			case LE: return attr.getStringVal().compareTo(constraint.getStringVal()) <= 0;
+			case GT: return attr.getStringVal().compareTo(constraint.getStringVal()) > 0;
+			case GE: return attr.getStringVal().compareTo(constraint.getStringVal()) >= 0;
+			default: return attr.getStringVal().contains(constraint.getStringVal());
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+
+package polimi.trex.examples.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.communication.BatchPublisher;
+import polimi.trex.communication.PacketListener;
+import polimi.trex.communication.TransportManager;
+import polimi.trex.examples.StandInServer;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+
+/**
+ * Measures the effect of compression on the batches of a {@link BatchPublisher}, sending
+ * publications through a {@link StandInServer} from a publisher to a subscriber, with and
+ * without compression and the name dictionary. Reports the bytes written by the publisher,
+ * the time until all the publications are received and the CPU time of the publishing thread.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.CompressionBenchmark [publications]
+ */
+public class CompressionBenchmark {
+	private final static int EVENT_TYPE= 1;
+	private final static int DEFAULT_NUM_PKTS= 500000;
+	private final static String[] STATIONS= { "milano-centrale", "milano-lambrate", "torino-porta-nuova",
+		"roma-termini", "napoli-centrale", "bologna-centrale", "firenze-santa-maria-novella" };
+	private final static ThreadMXBean THREADS= ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numPkts= args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_PKTS;
+		StandInServer server= new StandInServer(0);
+		server.start();
+		// Warm up
+		for (int i=0; i<2; i++) {
+			run(server, false, false, numPkts/10);
+			run(server, true, true, numPkts/10);
+		}
+		System.out.println("compression\tnames\t\tbytes out\tbytes/pkt\tms\tpublisher CPU ms");
+		measure(server, false, false, numPkts);
+		measure(server, true, false, numPkts);
+		measure(server, false, true, numPkts);
+		measure(server, true, true, numPkts);
+		server.stop();
+	}
+
+	private static PubPkt createPkt(int i) {
+		PubPkt pkt= new PubPkt(EVENT_TYPE, 1400000000000L+i*10);
+		pkt.addAttribute(new Attribute("station", STATIONS[i%STATIONS.length]));
+		pkt.addAttribute(new Attribute("train", 9500+(i%40)));
+		pkt.addAttribute(new Attribute("delay_minutes", i%7 == 0 ? 5 : 0));
+		pkt.addAttribute(new Attribute("platform", 1+(i%12)));
+		pkt.addAttribute(new Attribute("status", i%7 == 0 ? "delayed" : "on time"));
+		pkt.addAttribute(new Attribute("occupancy", (i%100)/100f));
+		return pkt;
+	}
+
+	private static void measure(StandInServer server, boolean compression, boolean names, int numPkts)
+			throws IOException, InterruptedException {
+		long[] result= run(server, compression, names, numPkts);
+		System.out.printf("%s\t\t%s\t%d\t%.1f\t\t%d\t%d%n", compression ? "on" : "off", names ? "dictionary" : "full",
+				result[0], (double) result[0]/numPkts, result[1]/1000000, result[2]/1000000);
+	}
+
+	/**
+	 * Publishes the given number of publications through a BatchPublisher.
+	 * 
+	 * @return the bytes written by the publisher, the nanoseconds until the subscriber
+	 * received all the publications, and the CPU nanoseconds of the publishing thread
+	 */
+	private static long[] run(StandInServer server, boolean compression, boolean names, int numPkts)
+			throws IOException, InterruptedException {
+		TransportManager subscriber= new TransportManager(false);
+		subscriber.connect("localhost", server.getPort());
+		final CountDownLatch latch= new CountDownLatch(numPkts);
+		subscriber.addPacketListener(new PacketListener() {
+			@Override
+			public void notifyPktReceived(TRexPkt pkt) {
+				if (pkt instanceof PubPkt) latch.countDown();
+			}
+
+			@Override
+			public void notifyConnectionError() {
+				System.err.println("Connection error");
+			}
+		});
+		subscriber.start();
+		subscriber.send(new SubPkt(EVENT_TYPE));
+		TransportManager publisher= new TransportManager(false);
+		publisher.setCompression(compression);
+		publisher.setNameDictionary(names);
+		publisher.connect("localhost", server.getPort());
+		if (publisher.isCompressionActive() != compression) throw new IllegalStateException("Compression refused");
+		BatchPublisher batches= new BatchPublisher(publisher);
+		// Let the server receive the subscription
+		Thread.sleep(200);
+
+		long cpuStart= THREADS.getCurrentThreadCpuTime();
+		long start= System.nanoTime();
+		for (int i=0; i<numPkts; i++) {
+			batches.publish(createPkt(i));
+		}
+		batches.close();
+		long cpu= THREADS.getCurrentThreadCpuTime()-cpuStart;
+		if (!latch.await(60, TimeUnit.SECONDS)) System.err.println("Missing publications: "+latch.getCount());
+		long elapsed= System.nanoTime()-start;
+		long[] result= { publisher.getMetrics().getBytesOut(), elapsed, cpu };
+		publisher.stop();
+		subscriber.stop();
+		return result;
+	}
+}
@@ -0,0 +1,120 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.communication.TransportManager;
+import polimi.trex.examples.StandInServer;
+import polimi.trex.packets.PubPkt;
+
+/**
+ * Measures the writes to the connection made by concurrent publishers. The given number of
+ * publications is split among 1, 8 and 64 threads sharing a {@link TransportManager}, which
+ * send them to a {@link StandInServer} with no subscribers, either with {@link TransportManager#send}
+ * (one write per publication) or with {@link TransportManager#sendAsync}, whose writer gathers
+ * the queued publications in a single write. Throughput and writes per publication are reported.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.GatheringWriteBenchmark [publications]
+ */
+public class GatheringWriteBenchmark {
+	private final static int EVENT_TYPE= 1;
+	private final static int DEFAULT_NUM_PKTS= 640000;
+	private final static int[] THREADS= { 1, 8, 64 };
+
+	public static void main(String[] args) throws Exception {
+		int numPkts= args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_PKTS;
+		StandInServer server= new StandInServer(0);
+		server.start();
+		// Warm up
+		for (int threads : THREADS) {
+			run(server, threads, false, numPkts/10);
+			run(server, threads, true, numPkts/10);
+		}
+		System.out.println("threads\tmode\tms\tpkts/s\t\twrites/pkt");
+		for (int threads : THREADS) {
+			measure(server, threads, false, numPkts);
+			measure(server, threads, true, numPkts);
+		}
+		server.stop();
+	}
+
+	private static PubPkt createPkt(int i) {
+		PubPkt pkt= new PubPkt(EVENT_TYPE, i);
+		pkt.addAttribute(new Attribute("station", "st"+(i%100)));
+		pkt.addAttribute(new Attribute("temperature", 15.5f+(i%20)));
+		pkt.addAttribute(new Attribute("humidity", 40+(i%50)));
+		return pkt;
+	}
+
+	private static void measure(StandInServer server, int threads, boolean async, int numPkts) throws Exception {
+		long[] result= run(server, threads, async, numPkts);
+		System.out.printf("%d\t%s\t%d\t%.0f\t\t%.3f%n", threads, async ? "async" : "sync", result[0]/1000000,
+				numPkts*1e9/result[0], (double) result[1]/numPkts);
+	}
+
+	/**
+	 * Sends the given number of publications, split among the given number of threads.
+	 * 
+	 * @return the elapsed nanoseconds, until all the publications are written, and the number of writes
+	 */
+	private static long[] run(StandInServer server, int threads, final boolean async, int numPkts) throws Exception {
+		final TransportManager publisher= new TransportManager(false);
+		publisher.connect("localhost", server.getPort());
+		final int pktsPerThread= numPkts/threads;
+		final CountDownLatch start= new CountDownLatch(1);
+		final CountDownLatch done= new CountDownLatch(threads);
+		for (int t=0; t<threads; t++) {
+			Thread thread= new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						CompletableFuture<Void> last= null;
+						for (int i=0; i<pktsPerThread; i++) {
+							if (async) last= publisher.sendAsync(createPkt(i));
+							else publisher.send(createPkt(i));
+						}
+						if (last != null) last.join();
+					} catch (IOException e) {
+						e.printStackTrace();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			thread.start();
+		}
+		publisher.getMetrics().reset();
+		long startTime= System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed= System.nanoTime()-startTime;
+		long[] result= { elapsed, publisher.getMetrics().getWrites() };
+		publisher.stop();
+		return result;
+	}
+}
@@ -0,0 +1,153 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Constraint;
+import polimi.trex.common.EventPredicate;
+import polimi.trex.common.EventTemplate;
+import polimi.trex.common.Negation;
+import polimi.trex.common.Consts.CompKind;
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.common.Consts.EngineType;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.StreamMarshaller;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.RulePkt;
+
+/**
+ * Measures the time and the bytes allocated by the {@link Marshaller} to encode
+ * a publication with 50 attributes and a rule with 32 predicates, each with
+ * 4 constraints, and 8 negations. The bytes allocated include the resulting array.
+ * The rule is also streamed by a {@link StreamMarshaller}, to a stream discarding it.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.MarshallerBenchmark
+ */
+public class MarshallerBenchmark {
+	private final static int ITERATIONS= 200000;
+
+	public static void main(String[] args) throws IOException {
+		PubPkt pub= createPub();
+		RulePkt rule= createRule();
+		// Warm up
+		for (int i=0; i<5; i++) {
+			runPub(pub, ITERATIONS);
+			runRule(rule, ITERATIONS/10);
+			runRuleStream(rule, ITERATIONS/10);
+		}
+		System.out.println("packet\t\tbytes\tns/op\tallocated bytes/op");
+		long allocated= getAllocatedBytes();
+		long start= System.nanoTime();
+		int size= runPub(pub, ITERATIONS);
+		long time= System.nanoTime()-start;
+		allocated= getAllocatedBytes()-allocated;
+		System.out.printf("publication\t%d\t%.1f\t%d%n", size, (double) time/ITERATIONS, allocated/ITERATIONS);
+		int iterations= ITERATIONS/10;
+		allocated= getAllocatedBytes();
+		start= System.nanoTime();
+		size= runRule(rule, iterations);
+		time= System.nanoTime()-start;
+		allocated= getAllocatedBytes()-allocated;
+		System.out.printf("rule\t\t%d\t%.1f\t%d%n", size, (double) time/iterations, allocated/iterations);
+		allocated= getAllocatedBytes();
+		start= System.nanoTime();
+		size= runRuleStream(rule, iterations);
+		time= System.nanoTime()-start;
+		allocated= getAllocatedBytes()-allocated;
+		System.out.printf("rule (stream)\t%d\t%.1f\t%d%n", size, (double) time/iterations, allocated/iterations);
+	}
+
+	private static PubPkt createPub() {
+		PubPkt pkt= new PubPkt(1, 0);
+		for (int i=0; i<50; i++) {
+			if (i%2 == 0) pkt.addAttribute(new Attribute("attr"+i, i));
+			else pkt.addAttribute(new Attribute("attr"+i, (float) i));
+		}
+		return pkt;
+	}
+
+	private static RulePkt createRule() {
+		RulePkt rule= new RulePkt(new EventTemplate(100));
+		for (int i=0; i<32; i++) {
+			Collection<Constraint> constraints= new ArrayList<Constraint>();
+			for (int j=0; j<4; j++) {
+				constraints.add(new Constraint("attr"+j, ConstraintOp.GT, j));
+			}
+			if (i == 0) rule.addPredicate(new EventPredicate(i, constraints));
+			else rule.addPredicate(new EventPredicate(i, constraints, i-1, 60000, CompKind.EACH_WITHIN));
+		}
+		for (int i=0; i<8; i++) {
+			Negation negation= new Negation(50+i, i, i+1);
+			negation.addConstraint(new Constraint("attr", ConstraintOp.EQ, "value"));
+			rule.addNegation(negation);
+		}
+		return rule;
+	}
+
+	private static int runPub(PubPkt pkt, int iterations) {
+		int size= 0;
+		for (int i=0; i<iterations; i++) {
+			size= Marshaller.marshal(pkt).length;
+		}
+		return size;
+	}
+
+	private static int runRule(RulePkt rule, int iterations) {
+		int size= 0;
+		for (int i=0; i<iterations; i++) {
+			size= Marshaller.marshalRule(rule, EngineType.CPU).length;
+		}
+		return size;
+	}
+
+	private static int runRuleStream(RulePkt rule, int iterations) throws IOException {
+		StreamMarshaller marshaller= new StreamMarshaller();
+		OutputStream sink= new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		int size= 0;
+		for (int i=0; i<iterations; i++) {
+			size= (int) marshaller.marshal(rule, sink);
+		}
+		return size;
+	}
+
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean= ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,191 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+
+package polimi.trex.examples.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.communication.PacketListener;
+import polimi.trex.communication.TransportManager;
+import polimi.trex.examples.StandInServer;
+import polimi.trex.marshalling.BufferMarshaller;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.NameDictionary;
+import polimi.trex.marshalling.Unmarshaller;
+import polimi.trex.packets.NameDefPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.utils.MutableInt;
+
+/**
+ * Measures the effect of the name dictionary on publications whose attributes have long names
+ * and short values, as in typical feeds. First, publications are encoded and decoded in memory,
+ * with and without the dictionary, to compare size and time. Then they are sent through a
+ * {@link StandInServer} from a publisher to a subscriber, to compare the bytes on the wire and
+ * the time until all of them are received.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.NameDictionaryBenchmark [publications]
+ */
+public class NameDictionaryBenchmark {
+	private final static int EVENT_TYPE= 1;
+	private final static int DEFAULT_NUM_PKTS= 200000;
+	private final static int CODEC_ITERATIONS= 1000000;
+	private final static String[] NAMES= { "station_identifier", "temperature_celsius",
+		"relative_humidity_percent", "barometric_pressure_hpa", "wind_speed_kmh",
+		"wind_direction_degrees", "measurement_quality", "sensor_firmware_version" };
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numPkts= args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_PKTS;
+		// Warm up
+		for (int i=0; i<3; i++) {
+			runCodec(false, CODEC_ITERATIONS/10);
+			runCodec(true, CODEC_ITERATIONS/10);
+		}
+		System.out.println("names\t\tbytes/pkt\tencode+decode ns/pkt");
+		measureCodec(false);
+		measureCodec(true);
+
+		StandInServer server= new StandInServer(0);
+		server.start();
+		runNetwork(server, false, numPkts/10);
+		runNetwork(server, true, numPkts/10);
+		System.out.println();
+		System.out.println("names\t\tpub bytes out\tsub bytes in\tms\tpkts/s");
+		measureNetwork(server, false, numPkts);
+		measureNetwork(server, true, numPkts);
+		server.stop();
+	}
+
+	private static PubPkt createPkt(int i) {
+		PubPkt pkt= new PubPkt(EVENT_TYPE, i);
+		pkt.addAttribute(new Attribute(NAMES[0], "st"+(i%100)));
+		pkt.addAttribute(new Attribute(NAMES[1], 15.5f+(i%20)));
+		pkt.addAttribute(new Attribute(NAMES[2], 40+(i%50)));
+		pkt.addAttribute(new Attribute(NAMES[3], 1013.25f));
+		pkt.addAttribute(new Attribute(NAMES[4], i%80));
+		pkt.addAttribute(new Attribute(NAMES[5], i%360));
+		pkt.addAttribute(new Attribute(NAMES[6], i%2 == 0));
+		pkt.addAttribute(new Attribute(NAMES[7], 3));
+		return pkt;
+	}
+
+	private static void measureCodec(boolean useNames) {
+		long start= System.nanoTime();
+		long bytes= runCodec(useNames, CODEC_ITERATIONS);
+		long elapsed= System.nanoTime()-start;
+		System.out.printf("%s\t%d\t\t%.1f%n", useNames ? "dictionary" : "full", bytes/CODEC_ITERATIONS,
+				(double) elapsed/CODEC_ITERATIONS);
+	}
+
+	/**
+	 * Encodes and decodes the given number of publications, as sender and receiver of one connection.
+	 * 
+	 * @return the number of bytes encoded
+	 */
+	private static long runCodec(boolean useNames, int iterations) {
+		NameDictionary sent= useNames ? new NameDictionary() : null;
+		NameDictionary received= useNames ? new NameDictionary() : null;
+		PubPkt pkt= createPkt(0);
+		MutableInt offset= new MutableInt(0);
+		long bytes= 0;
+		long check= 0;
+		for (int i=0; i<iterations; i++) {
+			pkt.setTimeStamp(i);
+			byte[] encoded= useNames ? BufferMarshaller.marshal(pkt, sent) : Marshaller.marshal(pkt);
+			if (useNames) {
+				byte[] definitions= sent.takeDefinitions();
+				if (definitions != null) define(definitions, received);
+			}
+			bytes+= encoded.length;
+			offset.setValue(0);
+			TRexPkt decoded= Unmarshaller.unmarshal(encoded, offset, encoded.length, Unmarshaller.PubFormat.PACKET, received);
+			check+= ((PubPkt) decoded).getTimeStamp();
+		}
+		if (check == -1) System.out.println(check);
+		return bytes;
+	}
+
+	private static void define(byte[] definitions, NameDictionary received) {
+		MutableInt offset= new MutableInt(0);
+		TRexPkt pkt;
+		while ((pkt= Unmarshaller.unmarshal(definitions, offset)) != null) {
+			NameDefPkt def= (NameDefPkt) pkt;
+			received.define(def.getId(), def.getName());
+		}
+	}
+
+	private static void measureNetwork(StandInServer server, boolean useNames, int numPkts)
+			throws IOException, InterruptedException {
+		long[] result= runNetwork(server, useNames, numPkts);
+		System.out.printf("%s\t%d\t%d\t%d\t%.0f%n", useNames ? "dictionary" : "full", result[0], result[1],
+				result[2]/1000000, numPkts*1e9/result[2]);
+	}
+
+	/**
+	 * Sends the given number of publications from a publisher to a subscriber.
+	 * 
+	 * @return the bytes sent by the publisher, the bytes received by the subscriber, and the elapsed nanoseconds
+	 */
+	private static long[] runNetwork(StandInServer server, boolean useNames, int numPkts)
+			throws IOException, InterruptedException {
+		TransportManager subscriber= new TransportManager(false);
+		subscriber.setNameDictionary(useNames);
+		subscriber.connect("localhost", server.getPort());
+		final CountDownLatch latch= new CountDownLatch(numPkts);
+		subscriber.addPacketListener(new PacketListener() {
+			@Override
+			public void notifyPktReceived(TRexPkt pkt) {
+				if (pkt instanceof PubPkt) latch.countDown();
+			}
+
+			@Override
+			public void notifyConnectionError() {
+				System.err.println("Connection error");
+			}
+		});
+		subscriber.start();
+		subscriber.send(new SubPkt(EVENT_TYPE));
+		TransportManager publisher= new TransportManager(false);
+		publisher.setNameDictionary(useNames);
+		publisher.connect("localhost", server.getPort());
+		publisher.start();
+		if (useNames && !(publisher.isNameDictionaryActive() && subscriber.isNameDictionaryActive())) {
+			throw new IllegalStateException("Name dictionary refused");
+		}
+		// Let the server receive the subscription
+		Thread.sleep(200);
+
+		long start= System.nanoTime();
+		for (int i=0; i<numPkts; i++) {
+			publisher.send(createPkt(i));
+		}
+		if (!latch.await(60, TimeUnit.SECONDS)) System.err.println("Missing publications: "+latch.getCount());
+		long elapsed= System.nanoTime()-start;
+		long[] result= { publisher.getMetrics().getBytesOut(), subscriber.getMetrics().getBytesIn(), elapsed };
+		publisher.stop();
+		subscriber.stop();
+		return result;
+	}
+}
@@ -0,0 +1,127 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.Unmarshaller;
+import polimi.trex.marshalling.Unmarshaller.PubFormat;
+import polimi.trex.packets.PooledPubPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.utils.MutableInt;
+
+/**
+ * Compares the decoding of publications into new {@link PubPkt}s with the decoding
+ * into {@link PooledPubPkt}s released after use, in time, bytes allocated and
+ * garbage collections per publication. Each publication has 10 attributes,
+ * whose values are all read, as a listener would do.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.PooledDecodeBenchmark
+ */
+public class PooledDecodeBenchmark {
+	private final static int NUM_ATTRIBUTES= 10;
+	private final static int NUM_PKTS= 1000;
+	private final static int ITERATIONS= 2000;
+
+	public static void main(String[] args) {
+		byte[] stream= createStream();
+		// Warm up
+		for (int i=0; i<5; i++) {
+			run(stream, PubFormat.PACKET, ITERATIONS/10);
+			run(stream, PubFormat.POOLED, ITERATIONS/10);
+		}
+		System.out.println("format\tns/pkt\tbytes/pkt\tGCs\tGC ms");
+		measure(stream, PubFormat.PACKET);
+		measure(stream, PubFormat.POOLED);
+	}
+
+	private static byte[] createStream() {
+		PubPkt pkt= new PubPkt(1, 0);
+		for (int i=0; i<NUM_ATTRIBUTES; i++) {
+			if (i%2 == 0) pkt.addAttribute(new Attribute("attr"+i, i));
+			else pkt.addAttribute(new Attribute("attr"+i, "value"+i));
+		}
+		byte[] bytes= Marshaller.marshal(pkt);
+		byte[] stream= new byte[bytes.length*NUM_PKTS];
+		for (int i=0; i<NUM_PKTS; i++) {
+			System.arraycopy(bytes, 0, stream, i*bytes.length, bytes.length);
+		}
+		return stream;
+	}
+
+	private static void measure(byte[] stream, PubFormat format) {
+		long gcs= getCollectionCount();
+		long gcTime= getCollectionTime();
+		long allocated= getAllocatedBytes();
+		long start= System.nanoTime();
+		run(stream, format, ITERATIONS);
+		long time= System.nanoTime()-start;
+		allocated= getAllocatedBytes()-allocated;
+		long pkts= (long) NUM_PKTS*ITERATIONS;
+		System.out.printf("%s\t%.1f\t%d\t\t%d\t%d%n", format, (double) time/pkts,
+				allocated/pkts, getCollectionCount()-gcs, getCollectionTime()-gcTime);
+	}
+
+	private static long run(byte[] stream, PubFormat format, int iterations) {
+		long sum= 0;
+		MutableInt offset= new MutableInt(0);
+		for (int i=0; i<iterations; i++) {
+			offset.setValue(0);
+			TRexPkt pkt;
+			while ((pkt= Unmarshaller.unmarshal(stream, offset, stream.length, format)) != null) {
+				for (Attribute attribute : ((PubPkt) pkt).getAttributes()) {
+					sum+= attribute.getIntVal()+attribute.getStringVal().length();
+				}
+				if (pkt instanceof PooledPubPkt) ((PooledPubPkt) pkt).release();
+			}
+		}
+		return sum;
+	}
+
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean= ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+		}
+		return 0;
+	}
+
+	private static long getCollectionCount() {
+		long count= 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count+= bean.getCollectionCount();
+		}
+		return count;
+	}
+
+	private static long getCollectionTime() {
+		long time= 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time+= bean.getCollectionTime();
+		}
+		return time;
+	}
+}
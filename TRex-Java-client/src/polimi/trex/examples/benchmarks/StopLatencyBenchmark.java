@@ -0,0 +1,96 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import polimi.trex.communication.TransportManager;
+
+/**
+ * Measures how long {@link TransportManager#stop()} takes on idle connections, that is
+ * with the reader thread blocked on a read, as during a restart of a client holding
+ * many connections. Connects to a local server which accepts connections and never writes.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.StopLatencyBenchmark [connections]
+ */
+public class StopLatencyBenchmark {
+	private final static int DEFAULT_CONNECTIONS= 300;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numConnections= args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+		final ServerSocket server= new ServerSocket(0, numConnections);
+		Thread acceptor= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptAll(server);
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		List<TransportManager> managers= new ArrayList<TransportManager>(numConnections);
+		for (int i=0; i<numConnections; i++) {
+			TransportManager manager= new TransportManager(false);
+			manager.connect("localhost", server.getLocalPort());
+			manager.start();
+			managers.add(manager);
+		}
+		// Let all the readers block on their read
+		Thread.sleep(500);
+
+		long maxNanos= 0;
+		long start= System.nanoTime();
+		for (TransportManager manager : managers) {
+			long stopStart= System.nanoTime();
+			manager.stop();
+			maxNanos= Math.max(maxNanos, System.nanoTime()-stopStart);
+		}
+		long totalNanos= System.nanoTime()-start;
+		server.close();
+
+		System.out.println("connections\ttotal ms\tmean stop us\tmax stop us");
+		System.out.printf("%d\t\t%.1f\t\t%.1f\t\t%.1f%n", numConnections, totalNanos/1e6,
+				totalNanos/1e3/numConnections, maxNanos/1e3);
+	}
+
+	private static void acceptAll(ServerSocket server) {
+		List<Socket> sockets= new ArrayList<Socket>();
+		try {
+			while (true) {
+				Socket socket= server.accept();
+				sockets.add(socket);
+			}
+		} catch (IOException e) {
+			// server closed: the benchmark is over
+		}
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import polimi.trex.marshalling.StringCodec;
+
+/**
+ * Compares {@link StringCodec} with the previous char by char encoding and decoding of
+ * strings (which also corrupted non ASCII characters), on strings typical of payloads:
+ * attribute names, short and long ASCII values, and a non ASCII value.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.StringCodecBenchmark
+ */
+public class StringCodecBenchmark {
+	private final static String[] STRINGS= {
+		"temperature",
+		"building-7/floor-2/room-42",
+		repeat("The quick brown fox jumps over the lazy dog. ", 6),
+		"Citt\u00e0 di Milano, 25\u00b0C \u2013 umidit\u00e0 40%"
+	};
+	private final static int ITERATIONS= 2000000;
+
+	public static void main(String[] args) {
+		byte[] buffer= new byte[4096];
+		System.out.println("chars\tbytes\tlegacy encode ns\tcodec encode ns\tlegacy decode ns\tcodec decode ns");
+		for (String s : STRINGS) {
+			int length= StringCodec.getEncodedLength(s);
+			StringCodec.encode(s, buffer, 0);
+			// Warm up
+			for (int i=0; i<3; i++) {
+				runLegacyEncode(s, buffer);
+				runCodecEncode(s, buffer);
+				runLegacyDecode(buffer, length);
+				runCodecDecode(buffer, length);
+			}
+			double legacyEncode= (double) runLegacyEncode(s, buffer) / ITERATIONS;
+			double codecEncode= (double) runCodecEncode(s, buffer) / ITERATIONS;
+			StringCodec.encode(s, buffer, 0);
+			double legacyDecode= (double) runLegacyDecode(buffer, length) / ITERATIONS;
+			double codecDecode= (double) runCodecDecode(buffer, length) / ITERATIONS;
+			System.out.printf("%d\t%d\t%.1f\t\t\t%.1f\t\t\t%.1f\t\t\t%.1f%n", s.length(), length,
+					legacyEncode, codecEncode, legacyDecode, codecDecode);
+		}
+	}
+
+	private static long runLegacyEncode(String s, byte[] dest) {
+		long start= System.nanoTime();
+		for (int n=0; n<ITERATIONS; n++) {
+			int length= s.length();
+			for (int i=0; i<length; i++) {
+				dest[i]= (byte) s.charAt(i);
+			}
+		}
+		return System.nanoTime()-start;
+	}
+
+	private static long runCodecEncode(String s, byte[] dest) {
+		long start= System.nanoTime();
+		for (int n=0; n<ITERATIONS; n++) {
+			// As done by the Marshaller: the length prefix, then the bytes
+			int length= StringCodec.getEncodedLength(s);
+			StringCodec.encode(s, length, dest, 0);
+		}
+		return System.nanoTime()-start;
+	}
+
+	private static long runLegacyDecode(byte[] source, int length) {
+		long start= System.nanoTime();
+		int total= 0;
+		for (int n=0; n<ITERATIONS; n++) {
+			char[] charArray= new char[length];
+			for (int i=0; i<length; i++) {
+				charArray[i]= (char) source[i];
+			}
+			total+= String.valueOf(charArray).length();
+		}
+		if (total == 0) System.out.println();
+		return System.nanoTime()-start;
+	}
+
+	private static long runCodecDecode(byte[] source, int length) {
+		long start= System.nanoTime();
+		int total= 0;
+		for (int n=0; n<ITERATIONS; n++) {
+			total+= StringCodec.decode(source, 0, length).length();
+		}
+		if (total == 0) System.out.println();
+		return System.nanoTime()-start;
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder builder= new StringBuilder();
+		for (int i=0; i<times; i++) {
+			builder.append(s);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,137 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Constraint;
+import polimi.trex.common.Matcher;
+import polimi.trex.common.SubscriptionsTable;
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+
+/**
+ * Measures the post-filtering of publications against subscriptions with custom matchers,
+ * as done for each publication received, with 10 to 10000 subscriptions. Each subscription
+ * constrains a station and a minimum temperature. In the "broad" case, all subscriptions
+ * share the same threshold: each publication satisfies every temperature constraint, and
+ * exactly one subscription. In the "selective" case, subscription i requires a temperature
+ * greater than i, and publications have a temperature of 10: each publication satisfies at most
+ * 10 temperature constraints, and at most one subscription, whatever their number.
+ * The {@link SubscriptionsTable}, which finds the satisfied subscriptions through its index,
+ * is compared with a scan evaluating each subscription with {@link SubPkt#match(PubPkt)}.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.SubscriptionMatchingBenchmark
+ */
+public class SubscriptionMatchingBenchmark {
+	private final static int EVENT_TYPE= 1;
+	private final static int NUM_PKTS= 1000;
+	private final static int MIN_OPERATIONS= 2000000;
+	private final static int[] NUM_SUBS= { 10, 100, 1000, 10000 };
+	private final static int BROAD_THRESHOLD= 30;
+	private final static int BROAD_TEMPERATURE= 35;
+	private final static int SELECTIVE_TEMPERATURE= 10;
+
+	public static void main(String[] args) {
+		System.out.println("case\t\tsubs\tscan ns/pkt\tindex ns/pkt");
+		run(false);
+		run(true);
+	}
+
+	private static void run(boolean selective) {
+		for (int numSubs : NUM_SUBS) {
+			List<SubPkt> subs= createSubs(numSubs, selective);
+			SubscriptionsTable table= new SubscriptionsTable();
+			for (SubPkt sub : subs) {
+				table.addSubscription(sub);
+			}
+			PubPkt[] pkts= createPkts(numSubs, selective);
+			int iterations= Math.max(1, MIN_OPERATIONS/(numSubs*NUM_PKTS));
+			// Warm up
+			for (int i=0; i<3; i++) {
+				runScan(subs, pkts, iterations);
+				runIndex(table, pkts, iterations*10);
+			}
+			long start= System.nanoTime();
+			runScan(subs, pkts, iterations);
+			long scanTime= System.nanoTime()-start;
+			start= System.nanoTime();
+			runIndex(table, pkts, iterations*10);
+			long indexTime= System.nanoTime()-start;
+			System.out.printf("%s\t%d\t%.1f\t\t%.1f%n", selective ? "selective" : "broad\t", numSubs, (double) scanTime/(iterations*NUM_PKTS),
+					(double) indexTime/(iterations*10*NUM_PKTS));
+		}
+	}
+
+	private static List<SubPkt> createSubs(int numSubs, boolean selective) {
+		Matcher matcher= new Matcher() {
+			@Override
+			public boolean match(PubPkt packet) {
+				return true;
+			}
+		};
+		List<SubPkt> subs= new ArrayList<SubPkt>();
+		for (int i=0; i<numSubs; i++) {
+			SubPkt sub= new SubPkt(EVENT_TYPE);
+			sub.addConstraint(new Constraint("station", ConstraintOp.EQ, "st"+i));
+			sub.addConstraint(new Constraint("temperature", ConstraintOp.GT, selective ? i : BROAD_THRESHOLD));
+			sub.setCustomMatcher(matcher);
+			subs.add(sub);
+		}
+		return subs;
+	}
+
+	private static PubPkt[] createPkts(int numSubs, boolean selective) {
+		PubPkt[] pkts= new PubPkt[NUM_PKTS];
+		for (int i=0; i<NUM_PKTS; i++) {
+			pkts[i]= new PubPkt(EVENT_TYPE, i);
+			pkts[i].addAttribute(new Attribute("station", "st"+(i%numSubs)));
+			pkts[i].addAttribute(new Attribute("temperature", selective ? SELECTIVE_TEMPERATURE : BROAD_TEMPERATURE));
+			pkts[i].addAttribute(new Attribute("humidity", 50));
+		}
+		return pkts;
+	}
+
+	private static int runScan(List<SubPkt> subs, PubPkt[] pkts, int iterations) {
+		int matched= 0;
+		for (int i=0; i<iterations; i++) {
+			for (PubPkt pkt : pkts) {
+				for (SubPkt sub : subs) {
+					if (sub.match(pkt) != 0) matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	private static int runIndex(SubscriptionsTable table, PubPkt[] pkts, int iterations) {
+		int matched= 0;
+		for (int i=0; i<iterations; i++) {
+			for (PubPkt pkt : pkts) {
+				if (table.match(pkt)) matched++;
+			}
+		}
+		return matched;
+	}
+}
@@ -0,0 +1,96 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.examples.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.marshalling.BufferedPacketUnmarshaller;
+import polimi.trex.marshalling.Marshaller;
+import polimi.trex.marshalling.Unmarshaller;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.utils.CollectionUtils;
+import polimi.trex.utils.MutableInt;
+
+/**
+ * Measures the cost per received byte of {@link BufferedPacketUnmarshaller} when
+ * bursts of small {@link PubPkt}s of growing size are given to it in one call, and
+ * compares it with the previous implementation, which copied the whole pending buffer
+ * after every decoded packet.
+ * 
+ * Usage: java polimi.trex.examples.benchmarks.UnmarshallerBenchmark
+ */
+public class UnmarshallerBenchmark {
+	private final static int[] BURST_SIZES= {4*1024, 16*1024, 64*1024, 256*1024};
+	private final static int ITERATIONS= 50;
+
+	public static void main(String[] args) {
+		System.out.println("burst bytes\tpackets\tring buffer ns/byte\tlegacy ns/byte");
+		for (int burstSize : BURST_SIZES) {
+			byte[] burst= createBurst(burstSize);
+			int numPkts= new BufferedPacketUnmarshaller().unmarshal(burst).length;
+			// Warm up
+			runRingBuffer(burst, ITERATIONS*10);
+			runLegacy(burst, 2);
+			double ring= (double) runRingBuffer(burst, ITERATIONS) / ITERATIONS / burst.length;
+			int legacyIterations= Math.max(1, ITERATIONS*4*1024/burstSize);
+			double legacy= (double) runLegacy(burst, legacyIterations) / legacyIterations / burst.length;
+			System.out.printf("%d\t\t%d\t%.2f\t\t\t%.2f%n", burst.length, numPkts, ring, legacy);
+		}
+	}
+
+	private static byte[] createBurst(int size) {
+		ByteArrayOutputStream out= new ByteArrayOutputStream(size);
+		int i= 0;
+		while (out.size() < size) {
+			PubPkt pkt= new PubPkt(1, i);
+			pkt.addAttribute(new Attribute("area", "office"));
+			pkt.addAttribute(new Attribute("value", i++));
+			byte[] bytes= Marshaller.marshal(pkt);
+			out.write(bytes, 0, bytes.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static long runRingBuffer(byte[] burst, int iterations) {
+		BufferedPacketUnmarshaller unmarshaller= new BufferedPacketUnmarshaller();
+		long start= System.nanoTime();
+		for (int i=0; i<iterations; i++) {
+			unmarshaller.unmarshal(burst, 0, burst.length);
+		}
+		return System.nanoTime()-start;
+	}
+
+	private static long runLegacy(byte[] burst, int iterations) {
+		long start= System.nanoTime();
+		for (int i=0; i<iterations; i++) {
+			byte[] buffer= CollectionUtils.concat(new byte[0], burst, 0, burst.length);
+			MutableInt offset= new MutableInt(0);
+			TRexPkt pkt;
+			while ((pkt= Unmarshaller.unmarshal(buffer, offset)) != null) {
+				buffer= CollectionUtils.subset(buffer, offset.get(), buffer.length-offset.get());
+				offset.setValue(0);
+			}
+		}
+		return System.nanoTime()-start;
+	}
+}
@@ -0,0 +1,234 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.marshalling;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Constraint;
+import polimi.trex.common.Consts.ConstraintOp;
+import polimi.trex.common.Consts.EngineType;
+import polimi.trex.common.Consts.ValType;
+import polimi.trex.common.Symbol;
+import polimi.trex.packets.HelloPkt;
+import polimi.trex.packets.NameDefPkt;
+import polimi.trex.packets.PingPkt;
+import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.SubPkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.TRexPkt.PacketType;
+import polimi.trex.packets.UnSubPkt;
+
+/**
+ * Marshals packets directly into a {@link ByteBuffer} supplied by the caller, heap or direct,
+ * with the same wire format of {@link Marshaller}. Packets are walked once: the length field
+ * of the header is reserved and written back once the body has been encoded, so nothing
+ * is allocated per packet. Buffers must use the big endian byte order, which is the default.
+ * 
+ * Rules, which are seldom sent, are encoded through {@link Marshaller} and then copied.
+ * 
+ * If a {@link NameDictionary} is given, attribute names already defined in it are
+ * written as references, while the others are written in full and recorded in it.
+ */
+public class BufferMarshaller {
+
+	/**
+	 * Marshals the given packet at the current position of the given buffer, and advances it.
+	 * 
+	 * @throws BufferOverflowException if the packet does not fit in the remaining space; the
+	 * position of the buffer is left unchanged, so that the caller can flush it and retry
+	 */
+	public static void marshal(TRexPkt pkt, ByteBuffer dest) {
+		marshal(pkt, dest, null);
+	}
+
+	/**
+	 * As {@link #marshal(TRexPkt, ByteBuffer)}, writing the attribute names
+	 * defined in the given dictionary as references.
+	 * 
+	 * @param names the dictionary of the connection, or null to write all the names in full
+	 */
+	public static void marshal(TRexPkt pkt, ByteBuffer dest, NameDictionary names) {
+		checkOrder(dest);
+		int start = dest.position();
+		try {
+			if (pkt instanceof PubPkt) encode((PubPkt) pkt, dest, names);
+			else if (pkt instanceof SubPkt) encode((SubPkt) pkt, dest, names);
+			else if (pkt instanceof UnSubPkt) encode((UnSubPkt) pkt, dest, names);
+			else if (pkt instanceof PingPkt) encode((PingPkt) pkt, dest);
+			else if (pkt instanceof HelloPkt || pkt instanceof NameDefPkt) dest.put(Marshaller.marshal(pkt));
+			else throw new IllegalArgumentException("Cannot marshal packet "+pkt);
+		} catch (BufferOverflowException e) {
+			dest.position(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Marshals the given packet into a new array, writing the attribute names
+	 * defined in the given dictionary as references.
+	 */
+	public static byte[] marshal(TRexPkt pkt, NameDictionary names) {
+		int size;
+		if (pkt instanceof PubPkt) size = Marshaller.getSize((PubPkt) pkt);
+		else if (pkt instanceof SubPkt) size = Marshaller.getSize((SubPkt) pkt);
+		else if (pkt instanceof UnSubPkt) size = Marshaller.getSize(((UnSubPkt) pkt).getSubPkt())+Marshaller.BYTENUM_PKTTYPE+Marshaller.BYTENUM_PKTLENGTH;
+		else return Marshaller.marshal(pkt);
+		// References are shorter than names: the size with all the names in full is an upper bound
+		ByteBuffer dest = ByteBuffer.allocate(size);
+		marshal(pkt, dest, names);
+		if (dest.position() == size) return dest.array();
+		return Arrays.copyOf(dest.array(), dest.position());
+	}
+
+	/**
+	 * Marshals the given rule at the current position of the given buffer, and advances it.
+	 * 
+	 * @throws BufferOverflowException if the rule does not fit in the remaining space; the
+	 * position of the buffer is left unchanged
+	 */
+	public static void marshalRule(TRexPkt pkt, EngineType eType, ByteBuffer dest) {
+		byte[] bytes = Marshaller.marshalRule(pkt, eType);
+		if (bytes == null) throw new IllegalArgumentException("Cannot marshal rule "+pkt);
+		dest.put(bytes);
+	}
+
+	private static void checkOrder(ByteBuffer dest) {
+		if (dest.order() != ByteOrder.BIG_ENDIAN) throw new IllegalArgumentException("Buffer must be big endian");
+	}
+
+	/**
+	 * Writes the packet type and skips the length field.
+	 * 
+	 * @return the position of the length field, to be filled by {@link #endPacket(int, ByteBuffer)}
+	 */
+	private static int beginPacket(PacketType type, ByteBuffer dest) {
+		dest.put((byte) type.toValue());
+		int lengthIndex = dest.position();
+		dest.putInt(0);
+		return lengthIndex;
+	}
+
+	private static void endPacket(int lengthIndex, ByteBuffer dest) {
+		dest.putInt(lengthIndex, dest.position()-lengthIndex-Marshaller.BYTENUM_PKTLENGTH);
+	}
+
+	private static void encode(PubPkt source, ByteBuffer dest, NameDictionary names) {
+		int lengthIndex = beginPacket(PacketType.PUB_PACKET, dest);
+		dest.putInt(source.getEventType());
+		dest.putLong(source.getTimeStamp());
+		Collection<Attribute> attributes = source.getAttributes();
+		dest.putInt(attributes.size());
+		for (Attribute attr : attributes) {
+			encode(attr, dest, names);
+		}
+		endPacket(lengthIndex, dest);
+	}
+
+	private static void encode(SubPkt source, ByteBuffer dest, NameDictionary names) {
+		int lengthIndex = beginPacket(PacketType.SUB_PACKET, dest);
+		dest.putInt(source.getEventType());
+		Collection<Constraint> constraints = source.getConstraints();
+		dest.putInt(constraints.size());
+		for (Constraint constraint : constraints) {
+			encode(constraint, dest, names);
+		}
+		endPacket(lengthIndex, dest);
+	}
+
+	private static void encode(UnSubPkt source, ByteBuffer dest, NameDictionary names) {
+		int lengthIndex = beginPacket(PacketType.UNSUB_PACKET, dest);
+		encode(source.getSubPkt(), dest, names);
+		endPacket(lengthIndex, dest);
+	}
+
+	private static void encode(PingPkt source, ByteBuffer dest) {
+		int lengthIndex = beginPacket(PacketType.PING_PACKET, dest);
+		endPacket(lengthIndex, dest);
+	}
+
+	private static void encode(Attribute source, ByteBuffer dest, NameDictionary names) {
+		if (names == null) encode(source.getName(), dest);
+		else encode(source.getSymbol(), dest, names);
+		encode(source.getValType(), dest);
+		if (source.getValType()==ValType.INT) dest.putInt(source.getIntVal());
+		else if (source.getValType()==ValType.FLOAT) dest.putFloat(source.getFloatVal());
+		else if (source.getValType()==ValType.BOOL) dest.put((byte) (source.getBoolVal() ? 1 : 0));
+		else if (source.getValType()==ValType.STRING) encode(source.getStringVal(), dest);
+	}
+
+	private static void encode(Constraint source, ByteBuffer dest, NameDictionary names) {
+		if (names == null) encode(source.getName(), dest);
+		else encode(source.getSymbol(), dest, names);
+		encode(source.getOp(), dest);
+		encode(source.getValType(), dest);
+		if (source.getValType()==ValType.INT) dest.putInt(source.getIntVal());
+		else if (source.getValType()==ValType.FLOAT) dest.putFloat(source.getFloatVal());
+		else if (source.getValType()==ValType.BOOL) dest.put((byte) (source.getBoolVal() ? 1 : 0));
+		else if (source.getValType()==ValType.STRING) encode(source.getStringVal(), dest);
+	}
+
+	private static void encode(String source, ByteBuffer dest) {
+		int length = StringCodec.getEncodedLength(source);
+		if (dest.remaining() < 4+length) throw new BufferOverflowException();
+		dest.putInt(length);
+		if (dest.hasArray()) {
+			StringCodec.encode(source, length, dest.array(), dest.arrayOffset()+dest.position());
+			dest.position(dest.position()+length);
+		} else if (length == source.length()) {
+			// ASCII
+			for (int i=0; i<length; i++) {
+				dest.put((byte) source.charAt(i));
+			}
+		} else {
+			byte[] bytes = new byte[length];
+			StringCodec.encode(source, length, bytes, 0);
+			dest.put(bytes);
+		}
+	}
+
+	private static void encode(Symbol name, ByteBuffer dest, NameDictionary names) {
+		int id = names.getId(name);
+		if (id < 0) encode(name.getName(), dest);
+		else dest.putInt(-id-1);
+	}
+
+	private static void encode(ValType source, ByteBuffer dest) {
+		if (source==ValType.INT) dest.put((byte) 0);
+		else if (source==ValType.FLOAT) dest.put((byte) 1);
+		else if (source==ValType.BOOL) dest.put((byte) 2);
+		else if (source==ValType.STRING) dest.put((byte) 3);
+	}
+
+	private static void encode(ConstraintOp source, ByteBuffer dest) {
+		if (source==ConstraintOp.EQ) dest.put((byte) 0);
+		else if (source==ConstraintOp.LT) dest.put((byte) 1);
+		else if (source==ConstraintOp.GT) dest.put((byte) 2);
+		else if (source==ConstraintOp.NE) dest.put((byte) 3);
+		else if (source==ConstraintOp.IN) dest.put((byte) 4);
+		else if (source==ConstraintOp.LE) dest.put((byte) 5);
+		else if (source==ConstraintOp.GE) dest.put((byte) 6);
+	}
+}
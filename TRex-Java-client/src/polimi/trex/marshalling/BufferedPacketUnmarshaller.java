@@ -22,8 +22,11 @@ package polimi.trex.marshalling;
 
 import java.util.ArrayList;
 
+import polimi.trex.packets.CompressedPkt;
+import polimi.trex.packets.NameDefPkt;
+import polimi.trex.packets.PubPktView;
 import polimi.trex.packets.TRexPkt;
-import polimi.trex.utils.CollectionUtils;
+import polimi.trex.marshalling.Unmarshaller.PubFormat;
 import polimi.trex.utils.MutableInt;
 
 
@@ -40,15 +43,67 @@ import polimi.trex.utils.MutableInt;
  * proper continous stream of {@link Packet}s, and so on): no validity checks are
  * done apart from {@link Packet}'s length and the result would be unpredictable.
  * 
+ * Received bytes are kept in a growable buffer between a read and a write cursor:
+ * packets are decoded in place and the read cursor is moved past them, so that each
+ * byte is copied only once when it is received. Unread bytes are moved to the
+ * beginning of the buffer only when there is no room left at its end.
+ * 
+ * If publication views are enabled, publications are returned as {@link PubPktView}s
+ * over the internal buffer, without decoding them. The bytes they refer to are then never
+ * overwritten: when there is no room left, received bytes go to a new buffer instead.
+ * Publications can also be decoded into pooled instances (see {@link PubFormat#POOLED}).
+ * 
+ * Names defined by the sender with {@link NameDefPkt}s are recorded in a {@link NameDictionary},
+ * used to resolve the names referring to it; NameDefPkts are not returned.
+ * {@link CompressedPkt}s are not returned either: the packets they contain are returned instead.
+ * 
  * @author Francesco Feltrinelli
  *
  */
 public class BufferedPacketUnmarshaller {
 	
+	private final static int INITIAL_CAPACITY= 4096;
+	
 	private byte[] buffer;
+	// Index of the first byte not yet decoded
+	private int readIndex;
+	// Index of the first free byte
+	private int writeIndex;
+	private MutableInt offset;
+	private volatile PubFormat pubFormat;
+	// True if views refer to the current buffer, which must then not be overwritten
+	private boolean shared;
+	private NameDictionary names;
 	
 	public BufferedPacketUnmarshaller(){
-		buffer= new byte[0];
+		this(false);
+	}
+	
+	/**
+	 * @param pubViews if true, publications are returned as {@link PubPktView}s
+	 */
+	public BufferedPacketUnmarshaller(boolean pubViews){
+		buffer= new byte[INITIAL_CAPACITY];
+		readIndex= 0;
+		writeIndex= 0;
+		offset= new MutableInt(0);
+		this.pubFormat= pubViews ? PubFormat.VIEW : PubFormat.PACKET;
+		shared= false;
+		names= new NameDictionary();
+	}
+	
+	/**
+	 * Enables or disables publication views for the packets decoded from now on.
+	 */
+	public void setPubViews(boolean pubViews){
+		setPubFormat(pubViews ? PubFormat.VIEW : PubFormat.PACKET);
+	}
+	
+	/**
+	 * Sets the form of the publications decoded from now on.
+	 */
+	public void setPubFormat(PubFormat pubFormat){
+		this.pubFormat= pubFormat;
 	}
 	
 	/**
@@ -66,27 +121,54 @@ public class BufferedPacketUnmarshaller {
 	 * is specified
 	 */
 	public TRexPkt[] unmarshal(byte[] pktBytes, int start, int length){
-		if (start<0 || start+length>pktBytes.length) 
+		if (start<0 || length<0 || start+length>pktBytes.length) 
 			throw new ArrayIndexOutOfBoundsException();
 		
-		buffer= CollectionUtils.concat(buffer, pktBytes, start, length);
-		ArrayList<TRexPkt> pkts= new ArrayList<TRexPkt>();
+		ensureWritable(length);
+		System.arraycopy(pktBytes, start, buffer, writeIndex, length);
+		writeIndex+= length;
 		
-		TRexPkt pkt= null;
-		MutableInt offset= new MutableInt(0);
-		do {
-			pkt= Unmarshaller.unmarshal(buffer, offset);
-			if (pkt != null){
-				pkts.add(pkt);
-				// Remove decoded bytes from buffer
-				buffer= CollectionUtils.subset(buffer, offset.get(), buffer.length-offset.get());
-				offset.setValue(0);
-			}
-		} while (pkt != null);
+		ArrayList<TRexPkt> pkts= new ArrayList<TRexPkt>();
+		offset.setValue(readIndex);
+		TRexPkt pkt;
+		PubFormat currentPubFormat= pubFormat;
+		while ((pkt= Unmarshaller.unmarshal(buffer, offset, writeIndex, currentPubFormat, names)) != null){
+			if (pkt instanceof PubPktView) shared= true;
+			collect(pkt, pkts, currentPubFormat);
+		}
+		readIndex= offset.get();
+		// No pending bytes: restart from the beginning of the buffer for free
+		if (readIndex == writeIndex && !shared) {
+			readIndex= 0;
+			writeIndex= 0;
+		}
 		
 		return pkts.toArray(new TRexPkt[pkts.size()]);
 	}
 	
+	/**
+	 * Adds the given packet to the returned ones, unless it is a {@link NameDefPkt},
+	 * which is recorded, or a {@link CompressedPkt}, whose packets are added instead.
+	 */
+	private void collect(TRexPkt pkt, ArrayList<TRexPkt> pkts, PubFormat currentPubFormat){
+		if (pkt instanceof NameDefPkt) {
+			NameDefPkt def= (NameDefPkt) pkt;
+			names.define(def.getId(), def.getName());
+		} else if (pkt instanceof CompressedPkt) {
+			// Views refer to the decompressed bytes, which are never reused
+			CompressedPkt batch= (CompressedPkt) pkt;
+			MutableInt batchOffset= new MutableInt(batch.getOffset());
+			int limit= batch.getOffset()+batch.getLength();
+			TRexPkt batchPkt;
+			while ((batchPkt= Unmarshaller.unmarshal(batch.getFrames(), batchOffset, limit, currentPubFormat, names)) != null){
+				collect(batchPkt, pkts, currentPubFormat);
+			}
+			if (batchOffset.get() != limit) throw new IllegalArgumentException("Truncated packet in compressed batch");
+		} else {
+			pkts.add(pkt);
+		}
+	}
+	
 	/**
 	 * Equivalent of {@link #unmarshal(byte[], int, int)} where all the bytes of
 	 * the given array are taken for decoding.
@@ -96,9 +178,44 @@ public class BufferedPacketUnmarshaller {
 	}
 	
 	/**
-	 * Clear internal buffer.
+	 * Returns the number of received bytes not yet decoded.
+	 */
+	public int getPendingBytes(){
+		return writeIndex-readIndex;
+	}
+	
+	/**
+	 * Clear internal buffer and received names.
 	 */
 	public void clear(){
-		buffer= new byte[0];
+		if (shared) {
+			buffer= new byte[INITIAL_CAPACITY];
+			shared= false;
+		}
+		// Views may still refer to the old names
+		names= new NameDictionary();
+		readIndex= 0;
+		writeIndex= 0;
+	}
+	
+	/**
+	 * Makes room for the given number of bytes after the write cursor,
+	 * compacting the buffer if this is enough, growing it otherwise.
+	 */
+	private void ensureWritable(int length){
+		if (buffer.length-writeIndex >= length) return;
+		int pending= writeIndex-readIndex;
+		if (buffer.length-pending >= length && !shared) {
+			System.arraycopy(buffer, readIndex, buffer, 0, pending);
+		} else {
+			int capacity= shared ? INITIAL_CAPACITY : buffer.length;
+			while (capacity-pending < length) capacity*= 2;
+			byte[] newBuffer= new byte[capacity];
+			System.arraycopy(buffer, readIndex, newBuffer, 0, pending);
+			buffer= newBuffer;
+			shared= false;
+		}
+		readIndex= 0;
+		writeIndex= pending;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,41 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.marshalling;
+
+/**
+ * Encodes the elements of one class in the format of the {@link Marshaller}.
+ * Collections are encoded through the encoder of their elements, chosen once
+ * per collection, so that the calls to it are monomorphic.
+ */
+public interface Encoder<T> {
+
+	/**
+	 * Returns the number of bytes of the encoding of the given element.
+	 */
+	public int getNumBytes(T source);
+
+	/**
+	 * Encodes the given element into the given array, from the given index.
+	 * 
+	 * @return the index of the first byte after the element
+	 */
+	public int encode(T source, byte[] dest, int startIndex);
+}
@@ -0,0 +1,187 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+
+package polimi.trex.marshalling;
+
+/**
+ * A pure Java compressor producing blocks in the LZ4 block format: a sequence of literal runs,
+ * each followed by a back reference of at least 4 bytes into the last 64 KB of output. The last
+ * 5 bytes are always literals. The compressor is greedy and uses a single hash table of recent
+ * positions: it favors speed over ratio, which is still good on batches of packets, where
+ * attribute names, types and header fields repeat.
+ * 
+ * Blocks do not store their original length, which must be known by the decompressor.
+ */
+public class LZ4Codec {
+	private final static int MIN_MATCH= 4;
+	private final static int LAST_LITERALS= 5;
+	// Matches must start at least this number of bytes before the end of the block
+	private final static int MF_LIMIT= 12;
+	private final static int MAX_OFFSET= 65535;
+	private final static int HASH_LOG= 12;
+	private final static int RUN_MASK= 15;
+	// Each byte of a block expands to at most this number of bytes
+	private final static int MAX_RATIO= 255;
+
+	/**
+	 * Returns the maximum length of the compression of the given number of bytes.
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length/255 + 16;
+	}
+
+	/**
+	 * Returns the maximum length of the decompression of a block with the given length,
+	 * to check the original length of a block before allocating room for it.
+	 */
+	public static int maxDecompressedLength(int length) {
+		return (int) Math.min((long) length*MAX_RATIO, Integer.MAX_VALUE-8);
+	}
+
+	/**
+	 * Compresses the given bytes into the given array, which must have at least
+	 * {@link #maxCompressedLength(int)} bytes available from the given index.
+	 * 
+	 * @return the length of the compressed block
+	 */
+	public static int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+		// Position of the last occurrence of each hashed sequence, plus one
+		int[] table = new int[1 << HASH_LOG];
+		int srcEnd = srcOff+srcLen;
+		int mfLimit = srcEnd-MF_LIMIT;
+		int matchLimit = srcEnd-LAST_LITERALS;
+		int ip = srcOff;
+		int anchor = srcOff;
+		int op = destOff;
+		while (ip < mfLimit) {
+			int sequence = readInt(src, ip);
+			int h = (sequence * -1640531535) >>> (32-HASH_LOG);
+			int entry = table[h];
+			table[h] = ip-srcOff+1;
+			int ref = srcOff+entry-1;
+			if (entry == 0 || ip-ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				ip++;
+				continue;
+			}
+			// Extend the match backwards over the pending literals, then forwards
+			while (ip > anchor && ref > srcOff && src[ip-1] == src[ref-1]) {
+				ip--;
+				ref--;
+			}
+			int matchLen = MIN_MATCH;
+			while (ip+matchLen < matchLimit && src[ip+matchLen] == src[ref+matchLen]) matchLen++;
+			op = writeSequence(src, anchor, ip-anchor, ip-ref, matchLen, dest, op);
+			ip += matchLen;
+			anchor = ip;
+		}
+		op = writeLiterals(src, anchor, srcEnd-anchor, 0, dest, op);
+		return op-destOff;
+	}
+
+	/**
+	 * Decompresses the given block into the given array.
+	 * 
+	 * @param destLen the maximum number of bytes to write
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if the block is malformed or larger than destLen once decompressed
+	 */
+	public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) {
+		int srcEnd = srcOff+srcLen;
+		int destEnd = destOff+destLen;
+		int ip = srcOff;
+		int op = destOff;
+		while (ip < srcEnd) {
+			int token = src[ip++] & 0xff;
+			int litLen = token >>> 4;
+			if (litLen == RUN_MASK) {
+				int b;
+				do {
+					if (ip >= srcEnd) throw new IllegalArgumentException("Malformed block");
+					b = src[ip++] & 0xff;
+					litLen += b;
+				} while (b == 255);
+			}
+			if (litLen > srcEnd-ip || litLen > destEnd-op) throw new IllegalArgumentException("Malformed block");
+			System.arraycopy(src, ip, dest, op, litLen);
+			ip += litLen;
+			op += litLen;
+			// The last sequence has no match
+			if (ip == srcEnd) break;
+			if (srcEnd-ip < 2) throw new IllegalArgumentException("Malformed block");
+			int offset = (src[ip] & 0xff) | ((src[ip+1] & 0xff) << 8);
+			ip += 2;
+			int ref = op-offset;
+			if (offset == 0 || ref < destOff) throw new IllegalArgumentException("Malformed block");
+			int matchLen = token & RUN_MASK;
+			if (matchLen == RUN_MASK) {
+				int b;
+				do {
+					if (ip >= srcEnd) throw new IllegalArgumentException("Malformed block");
+					b = src[ip++] & 0xff;
+					matchLen += b;
+				} while (b == 255);
+			}
+			matchLen += MIN_MATCH;
+			if (matchLen > destEnd-op) throw new IllegalArgumentException("Malformed block");
+			if (offset >= matchLen) {
+				System.arraycopy(dest, ref, dest, op, matchLen);
+				op += matchLen;
+			} else {
+				// Overlapping match: repeats the last offset bytes
+				for (int i=0; i<matchLen; i++) dest[op++] = dest[ref+i];
+			}
+		}
+		return op-destOff;
+	}
+
+	private static int writeSequence(byte[] src, int litStart, int litLen, int offset, int matchLen, byte[] dest, int op) {
+		int matchExtra = matchLen-MIN_MATCH;
+		op = writeLiterals(src, litStart, litLen, matchExtra, dest, op);
+		dest[op++] = (byte) offset;
+		dest[op++] = (byte) (offset >>> 8);
+		if (matchExtra >= RUN_MASK) op = writeLength(matchExtra-RUN_MASK, dest, op);
+		return op;
+	}
+
+	/**
+	 * Writes the token, with the given literal length and match length nibbles, and the literals.
+	 */
+	private static int writeLiterals(byte[] src, int litStart, int litLen, int matchExtra, byte[] dest, int op) {
+		dest[op++] = (byte) ((Math.min(litLen, RUN_MASK) << 4) | Math.min(matchExtra, RUN_MASK));
+		if (litLen >= RUN_MASK) op = writeLength(litLen-RUN_MASK, dest, op);
+		System.arraycopy(src, litStart, dest, op, litLen);
+		return op+litLen;
+	}
+
+	private static int writeLength(int length, byte[] dest, int op) {
+		while (length >= 255) {
+			dest[op++] = (byte) 255;
+			length -= 255;
+		}
+		dest[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] src, int index) {
+		return (src[index] & 0xff) | ((src[index+1] & 0xff) << 8)
+				| ((src[index+2] & 0xff) << 16) | ((src[index+3] & 0xff) << 24);
+	}
+}
@@ -20,8 +20,12 @@
 
 package polimi.trex.marshalling;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 import polimi.trex.common.Consts.EngineType;
 import polimi.trex.common.TAggregate;
@@ -46,7 +50,10 @@ import polimi.trex.common.Consts.StateType;
 import polimi.trex.common.Consts.ValType;
 import polimi.trex.common.StaticValueReference;
 import polimi.trex.packets.AdvPkt;
+import polimi.trex.packets.CompressedPkt;
+import polimi.trex.packets.HelloPkt;
 import polimi.trex.packets.JoinPkt;
+import polimi.trex.packets.NameDefPkt;
 import polimi.trex.packets.PingPkt;
 import polimi.trex.packets.PubPkt;
 import polimi.trex.packets.RulePkt;
@@ -59,6 +66,142 @@ import polimi.trex.packets.TRexPkt.PktType;
 
 public class Marshaller {
 	
+	private final static Encoder<Integer> INTEGER_ENCODER= new Encoder<Integer>() {
+		@Override
+		public int getNumBytes(Integer source) {
+			return Marshaller.getNumBytes(source.intValue());
+		}
+		
+		@Override
+		public int encode(Integer source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source.intValue(), dest, startIndex);
+		}
+	};
+	
+	private final static Encoder<Constraint> CONSTRAINT_ENCODER= new Encoder<Constraint>() {
+		@Override
+		public int getNumBytes(Constraint source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(Constraint source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	private final static Encoder<Attribute> ATTRIBUTE_ENCODER= new Encoder<Attribute>() {
+		@Override
+		public int getNumBytes(Attribute source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(Attribute source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	private final static Encoder<EventTemplateAttr> TEMPLATE_ATTR_ENCODER= new Encoder<EventTemplateAttr>() {
+		@Override
+		public int getNumBytes(EventTemplateAttr source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(EventTemplateAttr source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	private final static Encoder<EventTemplateStaticAttr> TEMPLATE_STATIC_ATTR_ENCODER= new Encoder<EventTemplateStaticAttr>() {
+		@Override
+		public int getNumBytes(EventTemplateStaticAttr source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(EventTemplateStaticAttr source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	// The encoders of the parts of rules are also used by the StreamMarshaller
+	final static Encoder<EventPredicate> PREDICATE_ENCODER= new Encoder<EventPredicate>() {
+		@Override
+		public int getNumBytes(EventPredicate source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(EventPredicate source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	final static Encoder<ComplexParameter> PARAMETER_ENCODER= new Encoder<ComplexParameter>() {
+		@Override
+		public int getNumBytes(ComplexParameter source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(ComplexParameter source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	final static Encoder<Negation> NEGATION_ENCODER= new Encoder<Negation>() {
+		@Override
+		public int getNumBytes(Negation source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(Negation source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	final static Encoder<TAggregate> AGGREGATE_ENCODER= new Encoder<TAggregate>() {
+		@Override
+		public int getNumBytes(TAggregate source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(TAggregate source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	final static Encoder<EventTemplate> TEMPLATE_ENCODER= new Encoder<EventTemplate>() {
+		@Override
+		public int getNumBytes(EventTemplate source) {
+			return Marshaller.getNumBytes(source);
+		}
+		
+		@Override
+		public int encode(EventTemplate source, byte[] dest, int startIndex) {
+			return Marshaller.encode(source, dest, startIndex);
+		}
+	};
+	
+	// Encoders of the elements of collections and maps, by element class
+	private final static Map<Class<?>, Encoder<?>> ENCODERS= new HashMap<Class<?>, Encoder<?>>();
+	
+	static {
+		ENCODERS.put(Integer.class, INTEGER_ENCODER);
+		ENCODERS.put(Constraint.class, CONSTRAINT_ENCODER);
+		ENCODERS.put(Attribute.class, ATTRIBUTE_ENCODER);
+		ENCODERS.put(EventTemplateAttr.class, TEMPLATE_ATTR_ENCODER);
+		ENCODERS.put(EventTemplateStaticAttr.class, TEMPLATE_STATIC_ATTR_ENCODER);
+		ENCODERS.put(EventPredicate.class, PREDICATE_ENCODER);
+		ENCODERS.put(ComplexParameter.class, PARAMETER_ENCODER);
+		ENCODERS.put(Negation.class, NEGATION_ENCODER);
+		ENCODERS.put(TAggregate.class, AGGREGATE_ENCODER);
+	}
+	
 	/**
 	 * Number of bytes used to store the packet type.
 	 */
@@ -74,6 +217,23 @@ public class Marshaller {
 		return dest;
 	}
 	
+	/**
+	 * Returns the number of bytes needed to marshal the given packet, header included.
+	 */
+	public static int getSize(PubPkt pkt) {
+		return BYTENUM_PKTTYPE + BYTENUM_PKTLENGTH + getNumBytes(pkt);
+	}
+	
+	/**
+	 * Marshals the given packet into the given array, starting from the given index.
+	 * The array must have at least {@link #getSize(PubPkt)} bytes available.
+	 * 
+	 * @return the index of the first byte after the packet
+	 */
+	public static int marshal(PubPkt pkt, byte[] dest, int startIndex) {
+		return encode(pkt, dest, startIndex);
+	}
+	
 	public static byte[] getByteArray(RulePkt pkt, EngineType type) {
 		byte[] dest = new byte[4+getNumBytes(PktType.RULE_PKT)+getNumBytes(pkt)];
 		encode(pkt, dest, 0, type);
@@ -101,12 +261,16 @@ public class Marshaller {
 	protected static int getNumBytes(RulePkt pkt) {
 		int size = 0;
 		//size += getNumBytes(EngineType.CPU);
-		size += getNumBytes(pkt.getPredicates());
-		size += getNumBytes(pkt.getParameters());
-		size += getNumBytes(pkt.getAggregates());
-		size += getNumBytes(pkt.getNegations());
+		size += 4;	// Number of predicates
+		for (int i=0; i<pkt.getPredicatesNum(); i++) size += getNumBytes(i) + getNumBytes(pkt.getPredicates(i));
+		size += 4;
+		for (int i=0; i<pkt.getParametersNum(); i++) size += getNumBytes(i) + getNumBytes(pkt.getParameter(i));
+		size += 4;
+		for (int i=0; i<pkt.getAggregatesNum(); i++) size += getNumBytes(i) + getNumBytes(pkt.getAggregate(i));
+		size += 4;
+		for (int i=0; i<pkt.getNegationsNum(); i++) size += getNumBytes(i) + getNumBytes(pkt.getNegation(i));
 		size += getNumBytes(pkt.getEventTemplate());
-		size += getNumBytes(pkt.getConsuming());
+		size += 4 + pkt.getConsumingNum()*getNumBytes(0);
 		return size;
 	}
 	
@@ -124,12 +288,32 @@ public class Marshaller {
 		startIndex = encode(PktType.RULE_PKT, dest, startIndex);
 		//startIndex = encode(eType, dest, startIndex);
 		startIndex = encode(getNumBytes(source), dest, startIndex);
-		startIndex = encode(source.getPredicates(), dest, startIndex);
-		startIndex = encode(source.getParameters(), dest, startIndex);
-		startIndex = encode(source.getAggregates(), dest, startIndex);
-		startIndex = encode(source.getNegations(), dest, startIndex);
+		// Predicates, parameters, aggregates and negations are maps from their index
+		startIndex = encode(source.getPredicatesNum(), dest, startIndex);
+		for (int i=0; i<source.getPredicatesNum(); i++) {
+			startIndex = encode(i, dest, startIndex);
+			startIndex = encode(source.getPredicates(i), dest, startIndex);
+		}
+		startIndex = encode(source.getParametersNum(), dest, startIndex);
+		for (int i=0; i<source.getParametersNum(); i++) {
+			startIndex = encode(i, dest, startIndex);
+			startIndex = encode(source.getParameter(i), dest, startIndex);
+		}
+		startIndex = encode(source.getAggregatesNum(), dest, startIndex);
+		for (int i=0; i<source.getAggregatesNum(); i++) {
+			startIndex = encode(i, dest, startIndex);
+			startIndex = encode(source.getAggregate(i), dest, startIndex);
+		}
+		startIndex = encode(source.getNegationsNum(), dest, startIndex);
+		for (int i=0; i<source.getNegationsNum(); i++) {
+			startIndex = encode(i, dest, startIndex);
+			startIndex = encode(source.getNegation(i), dest, startIndex);
+		}
 		startIndex = encode(source.getEventTemplate(), dest, startIndex);
-		startIndex = encode(source.getConsuming(), dest, startIndex);
+		startIndex = encode(source.getConsumingNum(), dest, startIndex);
+		for (int i=0; i<source.getConsumingNum(); i++) {
+			startIndex = encode(source.getConsuming(i), dest, startIndex);
+		}
 		return startIndex;
 	}
 	
@@ -137,7 +321,7 @@ public class Marshaller {
 		int size = 0;
 		size += getNumBytes(pkt.getEventType());
 		size += getNumBytes(pkt.getTimeStamp());
-		size += getNumBytes(pkt.getAttributes());
+		size += getNumBytes(pkt.getAttributes(), ATTRIBUTE_ENCODER);
 		return size;
 	}
 	
@@ -146,14 +330,14 @@ public class Marshaller {
 		startIndex = encode(getNumBytes(source), dest, startIndex);
 		startIndex = encode(source.getEventType(), dest, startIndex);
 		startIndex = encode(source.getTimeStamp(), dest, startIndex);
-		startIndex = encode(source.getAttributes(), dest, startIndex);
+		startIndex = encode(source.getAttributes(), ATTRIBUTE_ENCODER, dest, startIndex);
 		return startIndex;
 	}
 	
 	protected static int getNumBytes(SubPkt pkt) {
 		int size = 0;
 		size += getNumBytes(pkt.getEventType());
-		size += getNumBytes(pkt.getConstraints());
+		size += getNumBytes(pkt.getConstraints(), CONSTRAINT_ENCODER);
 		return size;
 	}
 	
@@ -161,20 +345,20 @@ public class Marshaller {
 		startIndex = encode(PktType.SUB_PKT, dest, startIndex);
 		startIndex = encode(getNumBytes(source), dest, startIndex);
 		startIndex = encode(source.getEventType(), dest, startIndex);
-		startIndex = encode(source.getConstraints(), dest, startIndex);
+		startIndex = encode(source.getConstraints(), CONSTRAINT_ENCODER, dest, startIndex);
 		return startIndex;
 	}
 	
 	protected static int getNumBytes(AdvPkt pkt) {
 		int size = 0;
-		size += getNumBytes(pkt.getAdvertisements());
+		size += getNumBytes(pkt.getAdvertisements(), INTEGER_ENCODER);
 		return size;
 	}
 	
 	protected static int encode(AdvPkt source, byte[] dest, int startIndex) {
 		startIndex = encode(PktType.ADV_PKT, dest, startIndex);
 		startIndex = encode(getNumBytes(source), dest, startIndex);
-		startIndex = encode(source.getAdvertisements(), dest, startIndex);
+		startIndex = encode(source.getAdvertisements(), INTEGER_ENCODER, dest, startIndex);
 		return startIndex;
 	}
 	
@@ -240,7 +424,7 @@ public class Marshaller {
 	protected static int getNumBytes(EventPredicate pred) {
 		int size = 0;
 		size += getNumBytes(pred.getEventType());
-		size += getNumBytes(pred.getConstraints());
+		size += getNumBytes(pred.getConstraints(), CONSTRAINT_ENCODER);
 		size += getNumBytes(pred.getRefersTo());
 		size += getNumBytes(pred.getWin());
 		size += getNumBytes(pred.getKind());
@@ -249,7 +433,7 @@ public class Marshaller {
 
 	protected static int encode(EventPredicate source, byte[] dest, int startIndex) {
 		startIndex = encode(source.getEventType(), dest, startIndex);
-		startIndex = encode(source.getConstraints(), dest, startIndex);
+		startIndex = encode(source.getConstraints(), CONSTRAINT_ENCODER, dest, startIndex);
 		startIndex = encode(source.getRefersTo(), dest, startIndex);
 		startIndex = encode(source.getWin(), dest, startIndex);
 		startIndex = encode(source.getKind(), dest, startIndex);
@@ -278,7 +462,7 @@ public class Marshaller {
 	protected static int getNumBytes(Negation neg) {
 		int size = 0;
 		size += getNumBytes(neg.getEventType());
-		size += getNumBytes(neg.getConstraints());
+		size += getNumBytes(neg.getConstraints(), CONSTRAINT_ENCODER);
 		size += getNumBytes(neg.getLowerId());
 		size += getNumBytes(neg.getLowerTime());
 		size += getNumBytes(neg.getUpperId());
@@ -287,7 +471,7 @@ public class Marshaller {
 
 	protected static int encode(Negation source, byte[] dest, int startIndex) {
 		startIndex = encode(source.getEventType(), dest, startIndex);
-		startIndex = encode(source.getConstraints(), dest, startIndex);
+		startIndex = encode(source.getConstraints(), CONSTRAINT_ENCODER, dest, startIndex);
 		startIndex = encode(source.getLowerId(), dest, startIndex);
 		startIndex = encode(source.getLowerTime(), dest, startIndex);
 		startIndex = encode(source.getUpperId(), dest, startIndex);
@@ -297,7 +481,7 @@ public class Marshaller {
 	protected static int getNumBytes(TAggregate agg) {
 		int size = 0;
 		size += getNumBytes(agg.getEventType());
-		size += getNumBytes(agg.getConstraints());
+		size += getNumBytes(agg.getConstraints(), CONSTRAINT_ENCODER);
 		size += getNumBytes(agg.getLowerId());
 		size += getNumBytes(agg.getLowerTime());
 		size += getNumBytes(agg.getUpperId());
@@ -308,7 +492,7 @@ public class Marshaller {
 
 	protected static int encode(TAggregate source, byte[] dest, int startIndex) {
 		startIndex = encode(source.getEventType(), dest, startIndex);
-		startIndex = encode(source.getConstraints(), dest, startIndex);
+		startIndex = encode(source.getConstraints(), CONSTRAINT_ENCODER, dest, startIndex);
 		startIndex = encode(source.getLowerId(), dest, startIndex);
 		startIndex = encode(source.getLowerTime(), dest, startIndex);
 		startIndex = encode(source.getUpperId(), dest, startIndex);
@@ -320,15 +504,15 @@ public class Marshaller {
 	protected static int getNumBytes(EventTemplate template) {
 		int size = 0;
 		size += getNumBytes(template.getEventType());
-		size += getNumBytes(template.getAttributes());
-		size += getNumBytes(template.getStaticAttributes());
+		size += getNumBytes(template.getAttributes(), TEMPLATE_ATTR_ENCODER);
+		size += getNumBytes(template.getStaticAttributes(), TEMPLATE_STATIC_ATTR_ENCODER);
 		return size;
 	}
 
 	protected static int encode(EventTemplate source, byte[] dest, int startIndex) {
 		startIndex = encode(source.getEventType(), dest, startIndex);
-		startIndex = encode(source.getAttributes(), dest, startIndex);
-		startIndex = encode(source.getStaticAttributes(), dest, startIndex);
+		startIndex = encode(source.getAttributes(), TEMPLATE_ATTR_ENCODER, dest, startIndex);
+		startIndex = encode(source.getStaticAttributes(), TEMPLATE_STATIC_ATTR_ENCODER, dest, startIndex);
 		return startIndex;
 	}
 	
@@ -487,16 +671,13 @@ public class Marshaller {
 	}
 	
 	protected static int getNumBytes(String s) {
-		return s.length()+4; // One int (4 bytes) more to encode the length of the string
+		return StringCodec.getEncodedLength(s)+4; // One int (4 bytes) more to encode the length of the string
 	}
 
 	protected static int encode(String source, byte[] dest, int startIndex) {
-		int length = source.length();
+		int length = StringCodec.getEncodedLength(source);
 		startIndex = encode(length, dest, startIndex);
-		for (int i=0; i<length; i++) {
-			dest[startIndex+i] = (byte) source.charAt(i);
-		}
-		return startIndex+length;
+		return StringCodec.encode(source, length, dest, startIndex);
 	}
 	
 	protected static int getNumBytes(CompKind kind) {
@@ -600,14 +781,59 @@ public class Marshaller {
 		return startIndex;
 	}
 
+	/**
+	 * Returns the number of bytes of the given collection, whose elements all use the given encoder.
+	 */
+	protected static <T> int getNumBytes(Collection<? extends T> collection, Encoder<T> encoder) {
+		int size = 4;	// One int (4 bytes) to encode the length of the collection
+		if (collection instanceof RandomAccess && collection instanceof List) {
+			List<? extends T> list = (List<? extends T>) collection;
+			for (int i=0; i<list.size(); i++) size += encoder.getNumBytes(list.get(i));
+		} else {
+			for (T el : collection) size += encoder.getNumBytes(el);
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes the given collection, whose elements all use the given encoder.
+	 */
+	protected static <T> int encode(Collection<? extends T> source, Encoder<T> encoder, byte[] dest, int startIndex) {
+		startIndex = encode(source.size(), dest, startIndex);
+		if (source instanceof RandomAccess && source instanceof List) {
+			List<? extends T> list = (List<? extends T>) source;
+			for (int i=0; i<list.size(); i++) startIndex = encoder.encode(list.get(i), dest, startIndex);
+		} else {
+			for (T el : source) startIndex = encoder.encode(el, dest, startIndex);
+		}
+		return startIndex;
+	}
+
+	/**
+	 * Returns the encoder registered for the given class, or for its closest superclass.
+	 * 
+	 * @return the encoder, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Encoder<Object> getEncoder(Class<?> elementClass) {
+		for (Class<?> c = elementClass; c != null; c = c.getSuperclass()) {
+			Encoder<?> encoder = ENCODERS.get(c);
+			if (encoder != null) return (Encoder<Object>) encoder;
+		}
+		return null;
+	}
+
 	protected static int getNumBytes(Collection<? extends Object> collection) {
 		int size = 4;	// One int (4 bytes) to encode the length of the collection
+		// The encoder is looked up again only if the class of the elements changes
+		Class<?> elementClass = null;
+		Encoder<Object> encoder = null;
 		for (Object el : collection) {
-			if (el instanceof Integer) size += getNumBytes((Integer) el);
-			else if (el instanceof Constraint) size += getNumBytes((Constraint) el);
-			else if (el instanceof Attribute) size += getNumBytes((Attribute) el);
-			else if (el instanceof EventTemplateAttr) size += getNumBytes((EventTemplateAttr) el);
-			else if (el instanceof EventTemplateStaticAttr) size += getNumBytes((EventTemplateStaticAttr) el);
+			if (el.getClass() != elementClass) {
+				elementClass = el.getClass();
+				encoder = getEncoder(elementClass);
+			}
+			if (encoder != null) size += encoder.getNumBytes(el);
 		}
 		return size;
 	}
@@ -615,25 +841,30 @@ public class Marshaller {
 	protected static int encode(Collection<? extends Object> source, byte[] dest, int startIndex) {
 		int size = source.size();
 		startIndex = encode(size, dest, startIndex);
+		Class<?> elementClass = null;
+		Encoder<Object> encoder = null;
 		for (Object el : source) {
-			if (el instanceof Integer) startIndex = encode((Integer) el, dest, startIndex);
-			else if (el instanceof Constraint) startIndex = encode((Constraint) el, dest, startIndex);
-			else if (el instanceof Attribute) startIndex = encode((Attribute) el, dest, startIndex);
-			else if (el instanceof EventTemplateAttr) startIndex = encode((EventTemplateAttr) el, dest, startIndex);
-			else if (el instanceof EventTemplateStaticAttr) startIndex = encode((EventTemplateStaticAttr) el, dest, startIndex);
+			if (el.getClass() != elementClass) {
+				elementClass = el.getClass();
+				encoder = getEncoder(elementClass);
+			}
+			if (encoder != null) startIndex = encoder.encode(el, dest, startIndex);
 		}
 		return startIndex;
 	}
 	
 	protected static int getNumBytes(Map<Integer, ? extends Object> map) {
 		int size = 4;	// One int (4 bytes) to encode the length of the collection
-		for (Integer key : map.keySet()) {
-			size += getNumBytes(key);
-			Object value = map.get(key);
-			if (value instanceof EventPredicate) size += getNumBytes((EventPredicate) value);
-			else if (value instanceof ComplexParameter) size += getNumBytes((ComplexParameter) value);
-			else if (value instanceof Negation) size += getNumBytes((Negation) value);
-			else if (value instanceof TAggregate) size += getNumBytes((TAggregate) value);
+		Class<?> valueClass = null;
+		Encoder<Object> encoder = null;
+		for (Map.Entry<Integer, ? extends Object> entry : map.entrySet()) {
+			size += getNumBytes(entry.getKey().intValue());
+			Object value = entry.getValue();
+			if (value.getClass() != valueClass) {
+				valueClass = value.getClass();
+				encoder = getEncoder(valueClass);
+			}
+			if (encoder != null) size += encoder.getNumBytes(value);
 		}
 		return size;
 	}
@@ -641,13 +872,16 @@ public class Marshaller {
 	protected static int encode(Map<Integer, ? extends Object> source, byte[] dest, int startIndex) {
 		int size = source.size();
 		startIndex = encode(size, dest, startIndex);
-		for (Integer key : source.keySet()) {
-			startIndex = encode(key, dest, startIndex);
-			Object value = source.get(key);
-			if (value instanceof EventPredicate) startIndex = encode((EventPredicate) value, dest, startIndex);
-			else if (value instanceof ComplexParameter) startIndex = encode((ComplexParameter) value, dest, startIndex);
-			else if (value instanceof Negation) startIndex = encode((Negation) value, dest, startIndex);
-			else if (value instanceof TAggregate) startIndex = encode((TAggregate) value, dest, startIndex);
+		Class<?> valueClass = null;
+		Encoder<Object> encoder = null;
+		for (Map.Entry<Integer, ? extends Object> entry : source.entrySet()) {
+			startIndex = encode(entry.getKey().intValue(), dest, startIndex);
+			Object value = entry.getValue();
+			if (value.getClass() != valueClass) {
+				valueClass = value.getClass();
+				encoder = getEncoder(valueClass);
+			}
+			if (encoder != null) startIndex = encoder.encode(value, dest, startIndex);
 		}
 		return startIndex;
 	}
@@ -675,6 +909,53 @@ public class Marshaller {
 		return dest;
 	}
 	
+	public static byte[] getByteArray(HelloPkt pkt) {
+		int bodyLen= getNumBytes(pkt);
+		byte[] dest = new byte[BYTENUM_PKTTYPE + BYTENUM_PKTLENGTH + bodyLen];
+		
+		int startIndex= 0;
+		startIndex= encode(PacketType.HELLO_PACKET, dest, startIndex);
+		startIndex= encode(bodyLen, dest, startIndex);
+		startIndex= encode(pkt.getVersion(), dest, startIndex);
+		startIndex= encode(pkt.getFeatures(), dest, startIndex);
+		
+		return dest;
+	}
+	
+	public static byte[] getByteArray(NameDefPkt pkt) {
+		byte[] dest = new byte[getSize(pkt)];
+		encode(pkt, dest, 0);
+		return dest;
+	}
+	
+	/**
+	 * Compresses the packets of the given batch into a single frame.
+	 */
+	public static byte[] getByteArray(CompressedPkt pkt) {
+		int headerLen= BYTENUM_PKTTYPE + BYTENUM_PKTLENGTH + 4;
+		byte[] dest = new byte[headerLen + LZ4Codec.maxCompressedLength(pkt.getLength())];
+		int compressedLen= LZ4Codec.compress(pkt.getFrames(), pkt.getOffset(), pkt.getLength(), dest, headerLen);
+		
+		int startIndex= 0;
+		startIndex= encode(PacketType.COMPRESSED_PACKET, dest, startIndex);
+		startIndex= encode(4 + compressedLen, dest, startIndex);
+		startIndex= encode(pkt.getLength(), dest, startIndex);
+		
+		return Arrays.copyOf(dest, headerLen + compressedLen);
+	}
+	
+	protected static int getSize(NameDefPkt pkt) {
+		return BYTENUM_PKTTYPE + BYTENUM_PKTLENGTH + getNumBytes(pkt);
+	}
+	
+	protected static int encode(NameDefPkt source, byte[] dest, int startIndex) {
+		startIndex= encode(PacketType.NAME_DEF_PACKET, dest, startIndex);
+		startIndex= encode(getNumBytes(source), dest, startIndex);
+		startIndex= encode(source.getId(), dest, startIndex);
+		startIndex= encode(source.getName().getName(), dest, startIndex);
+		return startIndex;
+	}
+	
 	protected static int getSize(SubPkt subPkt){
 		return BYTENUM_PKTTYPE + BYTENUM_PKTLENGTH + Marshaller.getNumBytes(subPkt);
 	}
@@ -686,6 +967,14 @@ public class Marshaller {
 	protected static int getNumBytes(PingPkt pkt) {
 		return 0;
 	}
+	
+	protected static int getNumBytes(HelloPkt pkt) {
+		return 8;
+	}
+	
+	protected static int getNumBytes(NameDefPkt pkt) {
+		return 4 + getNumBytes(pkt.getName().getName());
+	}
 
 	protected static int encode(PacketType source, byte[] dest, int startIndex) {
 		dest[startIndex++]= (byte) source.toValue(); 
@@ -707,6 +996,9 @@ public static byte[] marshal(TRexPkt pkt) {
 	if (pkt instanceof PubPkt) return getByteArray((PubPkt) pkt);
 	else if (pkt instanceof SubPkt) return getByteArray((SubPkt) pkt);
 	else if (pkt instanceof UnSubPkt) return getByteArray((UnSubPkt) pkt);
+	else if (pkt instanceof HelloPkt) return getByteArray((HelloPkt) pkt);
+	else if (pkt instanceof NameDefPkt) return getByteArray((NameDefPkt) pkt);
+	else if (pkt instanceof CompressedPkt) return getByteArray((CompressedPkt) pkt);
 	else return getByteArray((PingPkt) pkt);
 }
 }
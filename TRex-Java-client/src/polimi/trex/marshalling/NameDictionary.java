@@ -0,0 +1,178 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.marshalling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import polimi.trex.common.Symbol;
+import polimi.trex.packets.HelloPkt;
+import polimi.trex.packets.NameDefPkt;
+
+/**
+ * The attribute names defined in one direction of a connection using the name dictionary
+ * (see {@link HelloPkt#NAME_DICTIONARY}). Each name is sent once in full, in a {@link NameDefPkt}
+ * giving it an id, then referenced by its id: in place of the length of the name, a negative
+ * number -(id+1) is written, followed by no bytes. Full names are always accepted, so
+ * a sender may keep sending them, for example when the dictionary is full.
+ *
+ * The sender asks the id of each name with {@link #getId(Symbol)}, which records unknown names.
+ * Their definitions are returned by {@link #takeDefinitions()}, and must be written to the
+ * connection before any packet marshalled afterwards: since ids are usable as soon as the
+ * definitions are taken, this is best done holding the lock serializing writes.
+ * Lookups do not lock, as the ids are replaced by a modified copy when names are defined.
+ *
+ * The receiver records the definitions with {@link #define(int, Symbol)} and resolves ids with
+ * {@link #getName(int)}. Ids are only added, so a new dictionary is needed for a new connection.
+ */
+public class NameDictionary {
+	/** The maximum number of names defined by default */
+	public final static int DEFAULT_MAX_SIZE= 4096;
+	private final static int INITIAL_CAPACITY= 64;
+
+	private final int maxSize;
+	// Sender: id+1 of each name, indexed by the id of its symbol, 0 if not defined
+	private volatile int[] ids;
+	// Sender: the defined names, by id, and the names waiting to be defined
+	private final ArrayList<Symbol> defined;
+	private final ArrayList<Symbol> pending;
+	private volatile boolean full;
+	// Receiver: the received names, by id, and their number
+	private volatile Symbol[] names;
+	private int received;
+
+	public NameDictionary() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize the maximum number of names that the sender defines
+	 */
+	public NameDictionary(int maxSize) {
+		this.maxSize = maxSize;
+		this.ids = new int[0];
+		this.defined = new ArrayList<Symbol>();
+		this.pending = new ArrayList<Symbol>();
+		this.full = false;
+		this.names = new Symbol[INITIAL_CAPACITY];
+		this.received = 0;
+	}
+
+	/**
+	 * Returns the id of the given name, or -1 if the name must be sent in full.
+	 * Names not yet defined are recorded, so that they are defined by the next
+	 * call to {@link #takeDefinitions()}.
+	 */
+	public int getId(Symbol name) {
+		int[] current = ids;
+		int index = name.getId();
+		if (index < current.length && current[index] > 0) return current[index]-1;
+		if (!full) record(name);
+		return -1;
+	}
+
+	private synchronized void record(Symbol name) {
+		if (full || pending.contains(name)) return;
+		int index = name.getId();
+		if (index < ids.length && ids[index] > 0) return;
+		pending.add(name);
+		if (defined.size()+pending.size() >= maxSize) full = true;
+	}
+
+	/**
+	 * Gives an id to the names recorded since the last call, and returns their
+	 * marshalled {@link NameDefPkt}s, or null if there is none.
+	 */
+	public synchronized byte[] takeDefinitions() {
+		if (pending.isEmpty()) return null;
+		int size = 0;
+		int maxIndex = ids.length-1;
+		for (Symbol name : pending) {
+			size += Marshaller.getSize(new NameDefPkt(0, name));
+			maxIndex = Math.max(maxIndex, name.getId());
+		}
+		byte[] dest = new byte[size];
+		int[] newIds = Arrays.copyOf(ids, maxIndex+1);
+		int startIndex = 0;
+		for (Symbol name : pending) {
+			int id = defined.size();
+			startIndex = Marshaller.encode(new NameDefPkt(id, name), dest, startIndex);
+			defined.add(name);
+			newIds[name.getId()] = id+1;
+		}
+		pending.clear();
+		ids = newIds;
+		return dest;
+	}
+
+	/**
+	 * Returns the marshalled {@link NameDefPkt}s of all the names defined so far,
+	 * to be sent again when the connection is re-established.
+	 */
+	public synchronized byte[] getDefinitions() {
+		int size = 0;
+		for (int id=0; id<defined.size(); id++) {
+			size += Marshaller.getSize(new NameDefPkt(id, defined.get(id)));
+		}
+		byte[] dest = new byte[size];
+		int startIndex = 0;
+		for (int id=0; id<defined.size(); id++) {
+			startIndex = Marshaller.encode(new NameDefPkt(id, defined.get(id)), dest, startIndex);
+		}
+		return dest;
+	}
+
+	/**
+	 * Returns the number of names defined by the sender.
+	 */
+	public synchronized int size() {
+		return defined.size();
+	}
+
+	/**
+	 * Records a name received in a {@link NameDefPkt}. Ids are given in sequence by the sender,
+	 * so the id must be the next one, and lower than the maximum size of this dictionary.
+	 *
+	 * @throws IllegalArgumentException if the id is not the expected one
+	 */
+	public synchronized void define(int id, Symbol name) {
+		if (id != received || id >= maxSize) throw new IllegalArgumentException("Invalid name id: "+id);
+		Symbol[] current = names;
+		if (id >= current.length) {
+			current = Arrays.copyOf(current, Math.min(current.length*2, maxSize));
+		}
+		current[id] = name;
+		received++;
+		names = current;
+	}
+
+	/**
+	 * Returns the received name with the given id.
+	 *
+	 * @throws IllegalArgumentException if the name is not defined
+	 */
+	public Symbol getName(int id) {
+		Symbol[] current = names;
+		Symbol name = id >= 0 && id < current.length ? current[id] : null;
+		if (name == null) throw new IllegalArgumentException("Undefined name id: "+id);
+		return name;
+	}
+}
@@ -0,0 +1,228 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.marshalling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+
+import polimi.trex.packets.AdvPkt;
+import polimi.trex.packets.JoinPkt;
+import polimi.trex.packets.RulePkt;
+import polimi.trex.packets.TRexPkt;
+import polimi.trex.packets.TRexPkt.PktType;
+
+/**
+ * Marshals packets straight to an {@link OutputStream} or a {@link WritableByteChannel},
+ * with the same wire format of {@link Marshaller}, without building the whole packet
+ * in memory: rules and advertisements, which can be large, are encoded part by part
+ * into a chunk of fixed size, which is written each time it is full and then reused.
+ * Parts larger than a chunk are encoded on their own. The sizes of the parts are computed
+ * once, to write the length of the packet up front, and reused while encoding them.
+ * Other packets are marshalled by the {@link Marshaller} and written as they are.
+ *
+ * A StreamMarshaller marshals one packet at a time, and keeps its chunk
+ * between packets: it is meant to be kept by the writer of a connection.
+ */
+public class StreamMarshaller {
+	/** The size of the chunk used by default */
+	public final static int DEFAULT_CHUNK_SIZE= 8192;
+	// The chunk has room for at least a long or the header of a packet
+	private final static int MIN_CHUNK_SIZE= 16;
+
+	private final byte[] chunk;
+	private final ByteBuffer chunkBuffer;
+	private int position;
+	private long written;
+	private OutputStream out;
+	private WritableByteChannel channel;
+	// Sizes of the parts of the rule being marshalled
+	private int[] sizes;
+
+	public StreamMarshaller() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize the number of bytes encoded before writing them
+	 */
+	public StreamMarshaller(int chunkSize) {
+		if (chunkSize < MIN_CHUNK_SIZE) throw new IllegalArgumentException("Chunk too small: "+chunkSize);
+		this.chunk = new byte[chunkSize];
+		this.chunkBuffer = ByteBuffer.wrap(chunk);
+		this.sizes = new int[16];
+	}
+
+	/**
+	 * Marshals the given packet to the given stream, without flushing it.
+	 *
+	 * @return the number of bytes written
+	 */
+	public synchronized long marshal(TRexPkt pkt, OutputStream out) throws IOException {
+		this.out = out;
+		try {
+			return marshal(pkt);
+		} finally {
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Marshals the given packet to the given channel, which must be in blocking mode.
+	 *
+	 * @return the number of bytes written
+	 */
+	public synchronized long marshal(TRexPkt pkt, WritableByteChannel channel) throws IOException {
+		this.channel = channel;
+		try {
+			return marshal(pkt);
+		} finally {
+			this.channel = null;
+		}
+	}
+
+	private long marshal(TRexPkt pkt) throws IOException {
+		position = 0;
+		written = 0;
+		if (pkt instanceof RulePkt) encode((RulePkt) pkt);
+		else if (pkt instanceof AdvPkt) encode((AdvPkt) pkt);
+		else if (pkt instanceof JoinPkt) put(Marshaller.getByteArray((JoinPkt) pkt));
+		else put(Marshaller.marshal(pkt));
+		flush();
+		return written;
+	}
+
+	private void encode(RulePkt source) throws IOException {
+		int numPredicates = source.getPredicatesNum();
+		int numParameters = source.getParametersNum();
+		int numAggregates = source.getAggregatesNum();
+		int numNegations = source.getNegationsNum();
+		int numParts = numPredicates+numParameters+numAggregates+numNegations+1;
+		if (sizes.length < numParts) sizes = new int[Math.max(numParts, sizes.length*2)];
+		// As in Marshaller, predicates, parameters, aggregates and negations are maps from their index
+		int length = 4*4 + 4*(numParts-1) + 4 + 4*source.getConsumingNum();
+		int part = 0;
+		for (int i=0; i<numPredicates; i++) length += sizes[part++] = Marshaller.getNumBytes(source.getPredicates(i));
+		for (int i=0; i<numParameters; i++) length += sizes[part++] = Marshaller.getNumBytes(source.getParameter(i));
+		for (int i=0; i<numAggregates; i++) length += sizes[part++] = Marshaller.getNumBytes(source.getAggregate(i));
+		for (int i=0; i<numNegations; i++) length += sizes[part++] = Marshaller.getNumBytes(source.getNegation(i));
+		length += sizes[part] = Marshaller.getNumBytes(source.getEventTemplate());
+
+		putHeader(PktType.RULE_PKT, length);
+		part = 0;
+		putInt(numPredicates);
+		for (int i=0; i<numPredicates; i++) {
+			putInt(i);
+			put(source.getPredicates(i), sizes[part++], Marshaller.PREDICATE_ENCODER);
+		}
+		putInt(numParameters);
+		for (int i=0; i<numParameters; i++) {
+			putInt(i);
+			put(source.getParameter(i), sizes[part++], Marshaller.PARAMETER_ENCODER);
+		}
+		putInt(numAggregates);
+		for (int i=0; i<numAggregates; i++) {
+			putInt(i);
+			put(source.getAggregate(i), sizes[part++], Marshaller.AGGREGATE_ENCODER);
+		}
+		putInt(numNegations);
+		for (int i=0; i<numNegations; i++) {
+			putInt(i);
+			put(source.getNegation(i), sizes[part++], Marshaller.NEGATION_ENCODER);
+		}
+		put(source.getEventTemplate(), sizes[part], Marshaller.TEMPLATE_ENCODER);
+		putInt(source.getConsumingNum());
+		for (int i=0; i<source.getConsumingNum(); i++) {
+			putInt(source.getConsuming(i));
+		}
+	}
+
+	private void encode(AdvPkt source) throws IOException {
+		Collection<Integer> advertisements = source.getAdvertisements();
+		putHeader(PktType.ADV_PKT, 4 + 4*advertisements.size());
+		putInt(advertisements.size());
+		for (Integer advertisement : advertisements) {
+			putInt(advertisement.intValue());
+		}
+	}
+
+	private void putHeader(PktType type, int length) throws IOException {
+		if (chunk.length-position < Marshaller.BYTENUM_PKTTYPE+Marshaller.BYTENUM_PKTLENGTH) flush();
+		position = Marshaller.encode(type, chunk, position);
+		position = Marshaller.encode(length, chunk, position);
+	}
+
+	private void putInt(int value) throws IOException {
+		if (chunk.length-position < 4) flush();
+		position = Marshaller.encode(value, chunk, position);
+	}
+
+	/**
+	 * Encodes the given part, whose size is known, into the chunk, or on its own if larger.
+	 */
+	private <T> void put(T part, int size, Encoder<T> encoder) throws IOException {
+		if (chunk.length-position < size) {
+			flush();
+			if (size > chunk.length) {
+				byte[] bytes = new byte[size];
+				encoder.encode(part, bytes, 0);
+				write(bytes, 0, size);
+				return;
+			}
+		}
+		position = encoder.encode(part, chunk, position);
+	}
+
+	private void put(byte[] bytes) throws IOException {
+		if (chunk.length-position < bytes.length) {
+			flush();
+			if (bytes.length > chunk.length) {
+				write(bytes, 0, bytes.length);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, chunk, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void flush() throws IOException {
+		if (position == 0) return;
+		write(chunk, 0, position);
+		position = 0;
+	}
+
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		if (out != null) {
+			out.write(bytes, offset, length);
+		} else {
+			ByteBuffer buffer = bytes == chunk ? chunkBuffer : ByteBuffer.wrap(bytes);
+			buffer.clear();
+			buffer.position(offset);
+			buffer.limit(offset+length);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		written += length;
+	}
+}
@@ -0,0 +1,118 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.marshalling;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the strings of the wire format, as UTF-8 bytes preceded,
+ * in the packets, by their number. ASCII strings, by far the most common ones,
+ * are copied in bulk, without going through the UTF-8 encoder.
+ * Unpaired surrogates are encoded as the replacement character U+FFFD, so that
+ * a string is ASCII if and only if its encoding has as many bytes as it has chars.
+ */
+public class StringCodec {
+	private final static char REPLACEMENT_CHAR= '\uFFFD';
+
+	/**
+	 * Returns true if all the characters of the given string are ASCII.
+	 */
+	public static boolean isAscii(String source) {
+		int length = source.length();
+		for (int i=0; i<length; i++) {
+			if (source.charAt(i) >= 0x80) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes of the encoding of the given string.
+	 */
+	public static int getEncodedLength(String source) {
+		int length = source.length();
+		int size = length;
+		for (int i=0; i<length; i++) {
+			char c = source.charAt(i);
+			if (c < 0x80) continue;
+			if (c < 0x800) size += 1;
+			else if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(source.charAt(i+1))) {
+				// 4 bytes for 2 chars
+				size += 2;
+				i++;
+			}
+			else size += 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes the given string into the given array, which must have room for
+	 * {@link #getEncodedLength(String)} bytes from the given index.
+	 * 
+	 * @return the index of the first byte after the string
+	 */
+	public static int encode(String source, byte[] dest, int startIndex) {
+		return encode(source, getEncodedLength(source), dest, startIndex);
+	}
+
+	/**
+	 * As {@link #encode(String, byte[], int)}, when the caller already knows the
+	 * encoded length of the string, as returned by {@link #getEncodedLength(String)}.
+	 */
+	@SuppressWarnings("deprecation")
+	public static int encode(String source, int encodedLength, byte[] dest, int startIndex) {
+		int length = source.length();
+		if (encodedLength == length) {
+			// Bulk copy of the low byte of each char
+			source.getBytes(0, length, dest, startIndex);
+			return startIndex+length;
+		}
+		for (int i=0; i<length; i++) {
+			char c = source.charAt(i);
+			if (c < 0x80) {
+				dest[startIndex++] = (byte) c;
+			} else if (c < 0x800) {
+				dest[startIndex++] = (byte) (0xc0 | (c >> 6));
+				dest[startIndex++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(source.charAt(i+1))) {
+				int codePoint = Character.toCodePoint(c, source.charAt(++i));
+				dest[startIndex++] = (byte) (0xf0 | (codePoint >> 18));
+				dest[startIndex++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				dest[startIndex++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				dest[startIndex++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else {
+				if (Character.isSurrogate(c)) c = REPLACEMENT_CHAR;
+				dest[startIndex++] = (byte) (0xe0 | (c >> 12));
+				dest[startIndex++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dest[startIndex++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return startIndex;
+	}
+
+	/**
+	 * Decodes the string encoded in the given bytes. The decoder of the JDK copies
+	 * ASCII bytes in bulk into a compact string.
+	 */
+	public static String decode(byte[] source, int startIndex, int length) {
+		return new String(source, startIndex, length, StandardCharsets.UTF_8);
+	}
+}
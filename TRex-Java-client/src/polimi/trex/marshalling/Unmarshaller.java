@@ -42,10 +42,17 @@ import polimi.trex.common.Consts.Op;
 import polimi.trex.common.Consts.OpTreeType;
 import polimi.trex.common.Consts.StateType;
 import polimi.trex.common.Consts.ValType;
+import polimi.trex.common.Symbol;
+import polimi.trex.common.SymbolTable;
 import polimi.trex.packets.AdvPkt;
+import polimi.trex.packets.CompressedPkt;
+import polimi.trex.packets.HelloPkt;
 import polimi.trex.packets.JoinPkt;
+import polimi.trex.packets.NameDefPkt;
 import polimi.trex.packets.PingPkt;
+import polimi.trex.packets.PooledPubPkt;
 import polimi.trex.packets.PubPkt;
+import polimi.trex.packets.PubPktView;
 import polimi.trex.packets.RulePkt;
 import polimi.trex.packets.SubPkt;
 import polimi.trex.packets.TRexPkt;
@@ -57,6 +64,19 @@ import polimi.trex.utils.MutableInt;
 
 public class Unmarshaller {
 
+	/**
+	 * The form in which publications are returned by
+	 * {@link Unmarshaller#unmarshal(byte[], MutableInt, int, PubFormat)}.
+	 */
+	public enum PubFormat {
+		/** Decoded {@link PubPkt}s */
+		PACKET,
+		/** {@link PubPktView}s over the given bytes */
+		VIEW,
+		/** Decoded {@link PooledPubPkt}s, to be released when no longer used */
+		POOLED
+	}
+
 	public static PubPkt decodePubPkt(byte[] source) {
 		IndexWrapper index = new IndexWrapper();
 		return decodePubPkt(source, index);
@@ -152,7 +172,7 @@ public class Unmarshaller {
 	} 
 	
 	protected static Constraint decodeConstraint(byte[] source, IndexWrapper index) {
-		String name = decodeString(source, index);
+		String name = decodeName(source, index);
 		ConstraintOp op = decodeConstraintOp(source, index);
 		ValType type = decodeValType(source, index);
 		if (type==ValType.INT) {
@@ -171,7 +191,7 @@ public class Unmarshaller {
 	}
 
 	protected static Attribute decodeAttribute(byte[] source, IndexWrapper index) {
-		String name = decodeString(source, index);
+		Symbol name = decodeSymbol(source, index);
 		ValType type = decodeValType(source, index);
 		if (type==ValType.INT) {
 			int val = decodeInt(source, index);
@@ -311,11 +331,30 @@ public class Unmarshaller {
 
 	protected static String decodeString(byte[] source, IndexWrapper index) {
 		int length = decodeInt(source, index);
-		char[] charArray = new char[length];
-		for (int i=0; i<length; i++) {
-			charArray[i] = (char) source[index.get()+i];
-		}
-		String returnValue = String.valueOf(charArray);
+		String returnValue = StringCodec.decode(source, index.get(), length);
+		index.inc(length);
+		return returnValue;
+	}
+
+	/**
+	 * Decodes a string as a {@link Symbol}: no string is created if the symbol is already known.
+	 * A negative length refers to a name of the {@link NameDictionary} of the index.
+	 */
+	protected static Symbol decodeSymbol(byte[] source, IndexWrapper index) {
+		int length = decodeInt(source, index);
+		if (length < 0) return index.getNames().getName(-length-1);
+		Symbol returnValue = SymbolTable.getSymbol(source, index.get(), length);
+		index.inc(length);
+		return returnValue;
+	}
+
+	/**
+	 * Decodes an attribute name, which may refer to the {@link NameDictionary} of the index.
+	 */
+	protected static String decodeName(byte[] source, IndexWrapper index) {
+		int length = decodeInt(source, index);
+		if (length < 0) return index.getNames().getName(-length-1).getName();
+		String returnValue = StringCodec.decode(source, index.get(), length);
 		index.inc(length);
 		return returnValue;
 	}
@@ -480,15 +519,29 @@ public class Unmarshaller {
 
 	public static class IndexWrapper {
 		private int index;
+		private NameDictionary names;
 
 		public IndexWrapper() {
 			index = 0;
 		}
 
+		/**
+		 * @param names the names referred to by the decoded packets, or null if none
+		 */
+		public IndexWrapper(NameDictionary names) {
+			this();
+			this.names = names;
+		}
+
 		int get() {
 			return index;
 		}
 
+		NameDictionary getNames() {
+			if (names == null) throw new IllegalArgumentException("Name reference without a name dictionary");
+			return names;
+		}
+
 		public void inc(int val) {
 			index+=val;
 		}
@@ -499,10 +552,44 @@ public class Unmarshaller {
 	}
 	
 	public static PubPkt decodePubPkt(byte[] source, int startIndex) {
-		IndexWrapper index = new IndexWrapper();
+		return decodePubPkt(source, startIndex, null);
+	}
+	
+	/**
+	 * Decodes a publication whose attribute names may refer to the given dictionary.
+	 */
+	public static PubPkt decodePubPkt(byte[] source, int startIndex, NameDictionary names) {
+		IndexWrapper index = new IndexWrapper(names);
+		index.inc(startIndex);
+		return decodePubPkt(source, index);
+	}
+	
+	/**
+	 * Decodes a publication into a {@link PooledPubPkt} taken from the pool of the current thread.
+	 */
+	public static PooledPubPkt decodePooledPubPkt(byte[] source, int startIndex) {
+		return decodePooledPubPkt(source, startIndex, null);
+	}
+	
+	/**
+	 * As {@link #decodePooledPubPkt(byte[], int)}, with attribute names that may refer to the given dictionary.
+	 */
+	public static PooledPubPkt decodePooledPubPkt(byte[] source, int startIndex, NameDictionary names) {
+		IndexWrapper index = new IndexWrapper(names);
 		index.inc(startIndex);
-		PubPkt trexPubPkt= decodePubPkt(source, index);
-		return new PubPkt(trexPubPkt);
+		int eventType = decodeInt(source, index);
+		long timeStamp = decodeLong(source, index);
+		PooledPubPkt pkt = PooledPubPkt.acquire(eventType, timeStamp);
+		int num = decodeInt(source, index);
+		for (int i=0; i<num; i++) {
+			Symbol name = decodeSymbol(source, index);
+			ValType type = decodeValType(source, index);
+			if (type==ValType.INT) pkt.addAttribute(name, decodeInt(source, index));
+			else if (type==ValType.FLOAT) pkt.addAttribute(name, decodeFloat(source, index));
+			else if (type==ValType.BOOL) pkt.addAttribute(name, decodeBoolean(source, index));
+			else pkt.addAttribute(name, decodeString(source, index));
+		}
+		return pkt;
 	}
 	
 	public static RulePkt decodeRulePkt(byte[] source, int startIndex) {
@@ -513,16 +600,27 @@ public class Unmarshaller {
 	}
 	
 	public static SubPkt decodeSubPkt(byte[] source, int startIndex) {
-		IndexWrapper index = new IndexWrapper();
+		return decodeSubPkt(source, startIndex, null);
+	}
+	
+	/**
+	 * Decodes a subscription whose constraint names may refer to the given dictionary.
+	 */
+	public static SubPkt decodeSubPkt(byte[] source, int startIndex, NameDictionary names) {
+		IndexWrapper index = new IndexWrapper(names);
 		index.inc(startIndex);
 		SubPkt trexSubPkt= decodeSubPkt(source, index);
 		return new SubPkt(trexSubPkt);
 	}
 	
 	public static UnSubPkt decodeUnSubPkt(byte[] source, int startIndex) {
+		return decodeUnSubPkt(source, startIndex, null);
+	}
+	
+	public static UnSubPkt decodeUnSubPkt(byte[] source, int startIndex, NameDictionary names) {
 		// skip SubPkt's type and length
 		startIndex += Marshaller.BYTENUM_PKTTYPE + Marshaller.BYTENUM_PKTLENGTH;
-		SubPkt subPkt= decodeSubPkt(source, startIndex);
+		SubPkt subPkt= decodeSubPkt(source, startIndex, names);
 		return new UnSubPkt(subPkt);
 	}
 	
@@ -530,6 +628,39 @@ public class Unmarshaller {
 		return new PingPkt();
 	}
 	
+	public static HelloPkt decodeHelloPkt(byte[] source, int startIndex){
+		IndexWrapper index = new IndexWrapper();
+		index.inc(startIndex);
+		int version = decodeInt(source, index);
+		int features = decodeInt(source, index);
+		return new HelloPkt(version, features);
+	}
+	
+	/**
+	 * Decompresses the batch of packets of a compressed frame with the given body length.
+	 */
+	public static CompressedPkt decodeCompressedPkt(byte[] source, int startIndex, int length){
+		IndexWrapper index = new IndexWrapper();
+		index.inc(startIndex);
+		int framesLength = decodeInt(source, index);
+		// The length comes from the wire: check it before allocating
+		if (framesLength < 0 || framesLength > LZ4Codec.maxDecompressedLength(length-4)) {
+			throw new IllegalArgumentException("Invalid length of compressed packets: "+framesLength);
+		}
+		byte[] frames = new byte[framesLength];
+		int decompressed = LZ4Codec.decompress(source, index.get(), length-4, frames, 0, framesLength);
+		if (decompressed != framesLength) throw new IllegalArgumentException("Truncated compressed packets");
+		return new CompressedPkt(frames, 0, framesLength);
+	}
+	
+	public static NameDefPkt decodeNameDefPkt(byte[] source, int startIndex){
+		IndexWrapper index = new IndexWrapper();
+		index.inc(startIndex);
+		int id = decodeInt(source, index);
+		Symbol name = decodeSymbol(source, index);
+		return new NameDefPkt(id, name);
+	}
+	
 	public static PacketType decodePktType(byte[] source, int startIndex){
 		return PacketType.fromValue(source[startIndex]);
 	}
@@ -553,37 +684,88 @@ public class Unmarshaller {
  * decode it completely
  */
 public static TRexPkt unmarshal(byte[] buffer, MutableInt offset){
-	// Try to decode packet type
-	if (buffer.length-offset.get() < Marshaller.BYTENUM_PKTTYPE) return null;
-	PacketType type = decodePktType(buffer, offset.get());
-	offset.add(Marshaller.BYTENUM_PKTTYPE);
+	return unmarshal(buffer, offset, buffer.length);
+}
+
+/**
+ * As {@link #unmarshal(byte[], MutableInt)}, but only the bytes of the buffer
+ * before the given limit are considered valid. If the packet is not complete,
+ * {@code null} is returned and the offset is left unchanged.
+ * 
+ * @param buffer the bytes' buffer
+ * @param offset the index on the given buffer where to start the decoding from
+ * @param limit the index of the first byte of the buffer that must not be read
+ * @return the decoded packet or {@code null} if the bytes were not enough to
+ * decode it completely
+ */
+public static TRexPkt unmarshal(byte[] buffer, MutableInt offset, int limit){
+	return unmarshal(buffer, offset, limit, false);
+}
+
+/**
+ * As {@link #unmarshal(byte[], MutableInt, int)}, but if pubViews is true publications
+ * are not decoded: a {@link PubPktView} over the given buffer is returned instead.
+ * The caller must then leave the bytes of the buffer unchanged as long as views are in use.
+ */
+public static TRexPkt unmarshal(byte[] buffer, MutableInt offset, int limit, boolean pubViews){
+	return unmarshal(buffer, offset, limit, pubViews ? PubFormat.VIEW : PubFormat.PACKET);
+}
+
+/**
+ * As {@link #unmarshal(byte[], MutableInt, int)}, returning publications in the given format.
+ * Views refer to the given buffer, whose bytes must then be left unchanged as long as they are in use.
+ */
+public static TRexPkt unmarshal(byte[] buffer, MutableInt offset, int limit, PubFormat pubFormat){
+	return unmarshal(buffer, offset, limit, pubFormat, null);
+}
+
+/**
+ * As {@link #unmarshal(byte[], MutableInt, int, PubFormat)}, for connections using the name dictionary:
+ * attribute names may refer to the given dictionary. {@link NameDefPkt}s are returned as any other
+ * packet: the caller must add their names to the dictionary before decoding the next packet.
+ * Likewise, the packets of {@link CompressedPkt}s are left to the caller to decode.
+ */
+public static TRexPkt unmarshal(byte[] buffer, MutableInt offset, int limit, PubFormat pubFormat, NameDictionary names){
+	int start = offset.get();
 	
-	// Try to decode packet length
-	if (buffer.length-offset.get() < Marshaller.BYTENUM_PKTLENGTH) return null;
-	int length = decodePktLength(buffer, offset.get());
-	offset.add(Marshaller.BYTENUM_PKTLENGTH);
+	// Try to decode packet type and length
+	if (limit-start < Marshaller.BYTENUM_PKTTYPE+Marshaller.BYTENUM_PKTLENGTH) return null;
+	PacketType type = decodePktType(buffer, start);
+	int length = decodePktLength(buffer, start+Marshaller.BYTENUM_PKTTYPE);
+	int bodyStart = start+Marshaller.BYTENUM_PKTTYPE+Marshaller.BYTENUM_PKTLENGTH;
 	
 	// Try to decode packet body
-	if (buffer.length-offset.get() < length) return null;
+	if (limit-bodyStart < length) return null;
 	TRexPkt pkt = null;
 	switch (type) {
 	case PUB_PACKET: 
-		pkt= decodePubPkt(buffer, offset.get());
+		if (pubFormat == PubFormat.VIEW) pkt= new PubPktView(buffer, bodyStart, length, names);
+		else if (pubFormat == PubFormat.POOLED) pkt= decodePooledPubPkt(buffer, bodyStart, names);
+		else pkt= decodePubPkt(buffer, bodyStart, names);
 		break;
 	case RULE_PACKET:
-		pkt= decodeRulePkt(buffer, offset.get());
+		pkt= decodeRulePkt(buffer, bodyStart);
 		break;
 	case SUB_PACKET: 
-		pkt= decodeSubPkt(buffer, offset.get());
+		pkt= decodeSubPkt(buffer, bodyStart, names);
 		break;
 	case UNSUB_PACKET: 
-		pkt= decodeUnSubPkt(buffer, offset.get());
+		pkt= decodeUnSubPkt(buffer, bodyStart, names);
 		break;
 	case PING_PACKET: 
-		pkt= decodePingPkt(buffer, offset.get());
+		pkt= decodePingPkt(buffer, bodyStart);
+		break;
+	case HELLO_PACKET: 
+		pkt= decodeHelloPkt(buffer, bodyStart);
+		break;
+	case NAME_DEF_PACKET: 
+		pkt= decodeNameDefPkt(buffer, bodyStart);
+		break;
+	case COMPRESSED_PACKET: 
+		pkt= decodeCompressedPkt(buffer, bodyStart, length);
 		break;
 	}
-	offset.add(length);
+	offset.setValue(bodyStart+length);
 	
 	return pkt;
 }
@@ -0,0 +1,56 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.packets;
+
+/**
+ * A batch of marshalled packets, sent in a single compressed frame on connections using
+ * compression (see {@link HelloPkt#COMPRESSION}). The frame holds the length of the batch
+ * followed by its compression, as an LZ4 block. Receivers decode the packets of the batch
+ * as if they had been received one after the other, without a frame.
+ */
+public class CompressedPkt implements TRexPkt {
+	private byte[] frames;
+	private int offset;
+	private int length;
+
+	/**
+	 * @param frames the array containing the marshalled packets
+	 * @param offset the index of the first byte of the packets
+	 * @param length the number of bytes of the packets
+	 */
+	public CompressedPkt(byte[] frames, int offset, int length) {
+		this.frames = frames;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public byte[] getFrames() {
+		return frames;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,74 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.packets;
+
+/**
+ * Negotiates the protocol extensions used on a connection. A client supporting some extensions
+ * sends a HelloPkt, with their flags, as the first packet of the connection; a server supporting
+ * them replies with a HelloPkt carrying the flags of the extensions it accepts, which are then
+ * used in both directions. Servers not knowing this packet may fail on it, so it must be
+ * sent only to servers known to support it.
+ */
+public class HelloPkt implements TRexPkt {
+	/** The version of the handshake */
+	public final static int VERSION= 1;
+	/** Attribute names are sent once, in {@link NameDefPkt}s, then referenced by id */
+	public final static int NAME_DICTIONARY= 1;
+	/** Batches of packets may be sent compressed, in {@link CompressedPkt}s */
+	public final static int COMPRESSION= 2;
+
+	private int version;
+	private int features;
+
+	public HelloPkt(int features) {
+		this(VERSION, features);
+	}
+
+	public HelloPkt(int version, int features) {
+		this.version = version;
+		this.features = features;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getFeatures() {
+		return features;
+	}
+
+	public boolean hasFeature(int feature) {
+		return (features & feature) == feature;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof HelloPkt)) return false;
+		HelloPkt other= (HelloPkt) o;
+		return version == other.version && features == other.features;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31*version + features;
+	}
+}
@@ -0,0 +1,59 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.packets;
+
+import polimi.trex.common.Symbol;
+
+/**
+ * Defines the id of an attribute name on a connection using the name dictionary
+ * (see {@link HelloPkt#NAME_DICTIONARY}): from now on, the sender may refer
+ * to the name with its id in the packets it sends.
+ */
+public class NameDefPkt implements TRexPkt {
+	private int id;
+	private Symbol name;
+
+	public NameDefPkt(int id, Symbol name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Symbol getName() {
+		return name;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof NameDefPkt)) return false;
+		NameDefPkt other= (NameDefPkt) o;
+		return id == other.id && name == other.name;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31*id + System.identityHashCode(name);
+	}
+}
@@ -0,0 +1,335 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.packets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Consts.ValType;
+import polimi.trex.common.Symbol;
+
+/**
+ * A publication whose instance, and the instances of its attributes, are recycled
+ * through pools local to each thread, so that decoding publications does not
+ * allocate once the pools are warm.
+ * 
+ * A pooled publication is reference counted: it is acquired with one reference,
+ * and recycled when the last one is released. Packets delivered to a
+ * {@link polimi.trex.communication.PacketListener} are valid until the listener
+ * returns; a listener keeping the packet, or any of its attributes, must call
+ * {@link #retain()} and then {@link #release()} when done with it.
+ * 
+ * Released objects go back to the pool of the thread which acquired the publication, so that
+ * they are reused even when listeners release them on threads of their own: the owner recycles
+ * them directly, while other threads hand them back through a lock-free stack, which the owner
+ * drains when its pool is empty. Pools are bounded: what does not fit is left to the garbage collector.
+ * 
+ * In debug mode (see {@link #setDebug(boolean)}, or the system property
+ * <code>polimi.trex.pool.debug</code>) released publications are never recycled,
+ * and any access to them throws an {@link IllegalStateException} whose cause
+ * records where they were released.
+ */
+public final class PooledPubPkt extends PubPkt {
+	private final static int MAX_POOLED_PKTS= 256;
+	private final static int MAX_POOLED_ATTRIBUTES= 4096;
+	private final static ThreadLocal<Pool> POOLS= new ThreadLocal<Pool>() {
+		@Override
+		protected Pool initialValue() {
+			return new Pool();
+		}
+	};
+
+	private static volatile boolean debug= Boolean.getBoolean("polimi.trex.pool.debug");
+
+	private AtomicInteger refCount;
+	// Pool of the thread which acquired the packet
+	private Pool pool;
+	private ArrayList<Attribute> attributeList;
+	// The next publication handed back to the owner of the pool
+	private PooledPubPkt nextReturned;
+	// Where the packet was released, in debug mode
+	private Throwable releaseTrace;
+
+	private PooledPubPkt() {
+		refCount = new AtomicInteger();
+		attributeList = new ArrayList<Attribute>();
+		attributes = attributeList;
+	}
+
+	/**
+	 * Returns a publication from the pool of the current thread, with one reference
+	 * and no attributes.
+	 */
+	public static PooledPubPkt acquire(int eventType, long timeStamp) {
+		Pool pool = POOLS.get();
+		PooledPubPkt pkt = pool.takePkt();
+		if (pkt == null) pkt = new PooledPubPkt();
+		pkt.pool = pool;
+		pkt.refCount.set(1);
+		pkt.releaseTrace = null;
+		pkt.setFields(eventType, timeStamp);
+		return pkt;
+	}
+
+	/**
+	 * Enables or disables the debug mode, which detects the use of released publications.
+	 */
+	public static void setDebug(boolean enabled) {
+		debug = enabled;
+	}
+
+	public static boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * Adds a reference to this publication, which is not recycled until it is released.
+	 * 
+	 * @throws IllegalStateException if the publication was already recycled
+	 */
+	public void retain() {
+		if (refCount.getAndIncrement() <= 0) {
+			refCount.decrementAndGet();
+			throw released();
+		}
+	}
+
+	/**
+	 * Releases a reference to this publication, recycling it if it was the last one.
+	 * 
+	 * @throws IllegalStateException if the publication was already recycled
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count > 0) return;
+		if (count < 0) {
+			refCount.incrementAndGet();
+			throw released();
+		}
+		if (debug) {
+			releaseTrace = new Throwable("Released here");
+			return;
+		}
+		if (pool.owner == Thread.currentThread()) pool.recycle(this);
+		else pool.handBack(this);
+	}
+
+	/**
+	 * Adds an attribute taken from the pool of the current thread.
+	 */
+	public void addAttribute(Symbol name, int val) {
+		Attribute attribute = newAttribute(name, ValType.INT);
+		attribute.setIntVal(val);
+	}
+
+	/**
+	 * Adds an attribute taken from the pool of the current thread.
+	 */
+	public void addAttribute(Symbol name, float val) {
+		Attribute attribute = newAttribute(name, ValType.FLOAT);
+		attribute.setFloatVal(val);
+	}
+
+	/**
+	 * Adds an attribute taken from the pool of the current thread.
+	 */
+	public void addAttribute(Symbol name, boolean val) {
+		Attribute attribute = newAttribute(name, ValType.BOOL);
+		attribute.setBoolVal(val);
+	}
+
+	/**
+	 * Adds an attribute taken from the pool of the current thread.
+	 */
+	public void addAttribute(Symbol name, String val) {
+		Attribute attribute = newAttribute(name, ValType.STRING);
+		attribute.setStringVal(val);
+	}
+
+	/**
+	 * Returns a copy of this publication, and of its attributes, which is not pooled.
+	 */
+	public PubPkt toPubPkt() {
+		PubPkt copy = new PubPkt(getEventType(), getTimeStamp());
+		for (Attribute attribute : attributeList) {
+			copy.addAttribute(copyOf(attribute));
+		}
+		return copy;
+	}
+
+	private static Attribute copyOf(Attribute attribute) {
+		switch (attribute.getValType()) {
+		case INT: return new Attribute(attribute.getSymbol(), attribute.getIntVal());
+		case FLOAT: return new Attribute(attribute.getSymbol(), attribute.getFloatVal());
+		case BOOL: return new Attribute(attribute.getSymbol(), attribute.getBoolVal());
+		default: return new Attribute(attribute.getSymbol(), attribute.getStringVal());
+		}
+	}
+
+	@Override
+	public int getEventType() {
+		checkLive();
+		return super.getEventType();
+	}
+
+	@Override
+	public void setEventType(int eventType) {
+		checkLive();
+		super.setEventType(eventType);
+	}
+
+	@Override
+	public long getTimeStamp() {
+		checkLive();
+		return super.getTimeStamp();
+	}
+
+	@Override
+	public void setTimeStamp(long timeStamp) {
+		checkLive();
+		super.setTimeStamp(timeStamp);
+	}
+
+	@Override
+	public Collection<Attribute> getAttributes() {
+		checkLive();
+		return attributeList;
+	}
+
+	@Override
+	public void addAttribute(Attribute attribute) {
+		checkLive();
+		attributeList.add(attribute);
+	}
+
+	private void setFields(int eventType, long timeStamp) {
+		super.setEventType(eventType);
+		super.setTimeStamp(timeStamp);
+	}
+
+	private Attribute newAttribute(Symbol name, ValType type) {
+		checkLive();
+		Attribute attribute = getPool().takeAttribute();
+		if (attribute == null) attribute = new Attribute(name, 0);
+		// Clear the values of the previous use
+		attribute.setName(name);
+		attribute.setValType(type);
+		attribute.setIntVal(0);
+		attribute.setFloatVal(0);
+		attribute.setBoolVal(false);
+		attribute.setStringVal("");
+		attributeList.add(attribute);
+		return attribute;
+	}
+
+	/**
+	 * Returns the pool of the current thread, avoiding the thread local lookup
+	 * when it is the thread which acquired the packet, as during decoding.
+	 */
+	private Pool getPool() {
+		if (pool.owner == Thread.currentThread()) return pool;
+		return POOLS.get();
+	}
+
+	private void checkLive() {
+		if (refCount.get() <= 0) throw released();
+	}
+
+	private IllegalStateException released() {
+		return new IllegalStateException("Publication used after release", releaseTrace);
+	}
+
+	/**
+	 * The recycled objects of one thread. Only the owner takes and puts objects;
+	 * other threads hand publications back through the returned stack.
+	 */
+	private static class Pool {
+		private Thread owner = Thread.currentThread();
+		// Publications released by other threads, with their attributes, linked by nextReturned
+		private AtomicReference<PooledPubPkt> returned = new AtomicReference<PooledPubPkt>();
+		private PooledPubPkt[] pkts = new PooledPubPkt[MAX_POOLED_PKTS];
+		private int numPkts = 0;
+		private Attribute[] attributes = new Attribute[MAX_POOLED_ATTRIBUTES];
+		private int numAttributes = 0;
+
+		PooledPubPkt takePkt() {
+			if (numPkts == 0) drainReturned();
+			if (numPkts == 0) return null;
+			PooledPubPkt pkt = pkts[--numPkts];
+			pkts[numPkts] = null;
+			return pkt;
+		}
+
+		void putPkt(PooledPubPkt pkt) {
+			if (numPkts < pkts.length) pkts[numPkts++] = pkt;
+		}
+
+		Attribute takeAttribute() {
+			if (numAttributes == 0) drainReturned();
+			if (numAttributes == 0) return null;
+			Attribute attribute = attributes[--numAttributes];
+			attributes[numAttributes] = null;
+			return attribute;
+		}
+
+		void putAttribute(Attribute attribute) {
+			if (numAttributes < attributes.length) attributes[numAttributes++] = attribute;
+		}
+
+		/**
+		 * Puts a released publication, and its attributes, back in the pool. Called by the owner.
+		 */
+		void recycle(PooledPubPkt pkt) {
+			for (Attribute attribute : pkt.attributeList) {
+				putAttribute(attribute);
+			}
+			pkt.attributeList.clear();
+			putPkt(pkt);
+		}
+
+		/**
+		 * Hands a publication released by another thread back to the owner.
+		 */
+		void handBack(PooledPubPkt pkt) {
+			PooledPubPkt head;
+			do {
+				head = returned.get();
+				pkt.nextReturned = head;
+			} while (!returned.compareAndSet(head, pkt));
+		}
+
+		/**
+		 * Recycles the publications handed back by other threads. Called by the owner.
+		 */
+		private void drainReturned() {
+			PooledPubPkt pkt = returned.getAndSet(null);
+			while (pkt != null) {
+				PooledPubPkt next = pkt.nextReturned;
+				pkt.nextReturned = null;
+				recycle(pkt);
+				pkt = next;
+			}
+		}
+	}
+}
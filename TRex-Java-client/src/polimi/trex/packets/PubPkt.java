@@ -52,6 +52,12 @@ public class PubPkt implements TRexPkt {
 		attributes = new ArrayList<Attribute>(attr);
 	}
 
+	/**
+	 * Used by subclasses which provide event type, timestamp and attributes on their own.
+	 */
+	protected PubPkt() {
+	}
+
 	public PubPkt(PubPkt trexPubPkt) {
 		this(trexPubPkt.getEventType(), trexPubPkt.getTimeStamp(), trexPubPkt.getAttributes());
 	}
@@ -86,10 +92,10 @@ public class PubPkt implements TRexPkt {
 		if (obj == null) return false;
 		if (! (obj instanceof PubPkt)) return false;
 		PubPkt other = (PubPkt) obj;
-		if (eventType != other.eventType) return false;
-		if (timeStamp != other.timeStamp) return false;
-		if (! attributes.containsAll(other.attributes)) return false;
-		if (! other.attributes.containsAll(attributes)) return false;
+		if (getEventType() != other.getEventType()) return false;
+		if (getTimeStamp() != other.getTimeStamp()) return false;
+		if (! getAttributes().containsAll(other.getAttributes())) return false;
+		if (! other.getAttributes().containsAll(getAttributes())) return false;
 		return true;
 	}
 }
\ No newline at end of file
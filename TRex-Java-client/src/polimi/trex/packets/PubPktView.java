@@ -0,0 +1,304 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.packets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import polimi.trex.common.Attribute;
+import polimi.trex.common.Consts.ValType;
+import polimi.trex.common.Symbol;
+import polimi.trex.common.SymbolTable;
+import polimi.trex.marshalling.NameDictionary;
+import polimi.trex.marshalling.StringCodec;
+
+/**
+ * A read-only publication backed by the bytes of the frame it was received in.
+ * Nothing is decoded in advance: event type and timestamp are read on access, and
+ * attributes are looked up by name directly in the bytes, so that reading a few
+ * attributes of a large publication allocates nothing but the strings returned.
+ * 
+ * {@link #getAttributes()} is still supported, for compatibility with code using
+ * {@link PubPkt}s: it decodes all the attributes, once. Methods changing the
+ * publication throw {@link UnsupportedOperationException}; {@link #toPubPkt()}
+ * returns a modifiable copy.
+ * 
+ * The frame bytes must not be changed as long as the view is in use. Since the body is
+ * decoded lazily, a malformed body is detected only when read: the methods reading it throw
+ * an {@link IllegalArgumentException} instead of reading beyond the body.
+ * Names referring to a {@link NameDictionary} are resolved through the dictionary given
+ * at construction time, which must not be cleared as long as the view is in use.
+ */
+public class PubPktView extends PubPkt {
+	// Offsets of the fields from the beginning of the body
+	private final static int EVENT_TYPE_OFFSET= 0;
+	private final static int TIMESTAMP_OFFSET= 4;
+	private final static int NUM_ATTRIBUTES_OFFSET= 12;
+	private final static int ATTRIBUTES_OFFSET= 16;
+	// The shortest attribute: a name reference and a boolean value
+	private final static int MIN_ATTRIBUTE_LENGTH= 6;
+
+	private byte[] frame;
+	private int start;
+	private int length;
+	private NameDictionary names;
+	private Collection<Attribute> decodedAttributes;
+
+	/**
+	 * Creates a view over the body of a publication.
+	 * 
+	 * @param frame the bytes containing the publication
+	 * @param start the index of the first byte of the body, after the packet header
+	 * @param length the length of the body
+	 */
+	public PubPktView(byte[] frame, int start, int length) {
+		this(frame, start, length, null);
+	}
+
+	/**
+	 * Creates a view over the body of a publication whose names may refer to the given dictionary.
+	 * 
+	 * @param frame the bytes containing the publication
+	 * @param start the index of the first byte of the body, after the packet header
+	 * @param length the length of the body
+	 * @param names the dictionary of the names received on the connection, or null if none
+	 */
+	public PubPktView(byte[] frame, int start, int length, NameDictionary names) {
+		if (start < 0 || length < ATTRIBUTES_OFFSET || start+length > frame.length) {
+			throw new IllegalArgumentException("Invalid publication bounds");
+		}
+		this.frame = frame;
+		this.start = start;
+		this.length = length;
+		this.names = names;
+	}
+
+	@Override
+	public int getEventType() {
+		return readInt(start+EVENT_TYPE_OFFSET);
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return ((long) readInt(start+TIMESTAMP_OFFSET) << 32) | (readInt(start+TIMESTAMP_OFFSET+4) & 0xffffffffL);
+	}
+
+	public int getAttributesNum() {
+		int numAttributes = readInt(start+NUM_ATTRIBUTES_OFFSET);
+		if (numAttributes < 0 || numAttributes > (length-ATTRIBUTES_OFFSET)/MIN_ATTRIBUTE_LENGTH) {
+			throw new IllegalArgumentException("Malformed publication: invalid number of attributes "+numAttributes);
+		}
+		return numAttributes;
+	}
+
+	public boolean hasAttribute(String name) {
+		return findValue(name) >= 0;
+	}
+
+	/**
+	 * Returns the type of the value of the attribute with the given name, or null if there is none.
+	 */
+	public ValType getValType(String name) {
+		int index = findValue(name);
+		return index < 0 ? null : decodeValType(index);
+	}
+
+	public int getIntVal(String name) {
+		return readInt(findValue(name, ValType.INT)+1);
+	}
+
+	public float getFloatVal(String name) {
+		return Float.intBitsToFloat(readInt(findValue(name, ValType.FLOAT)+1));
+	}
+
+	public boolean getBoolVal(String name) {
+		return readByte(findValue(name, ValType.BOOL)+1) == 1;
+	}
+
+	public String getStringVal(String name) {
+		return readString(findValue(name, ValType.STRING)+1);
+	}
+
+	/**
+	 * Decodes all the attributes, the first time it is called.
+	 * The returned collection cannot be modified.
+	 */
+	@Override
+	public synchronized Collection<Attribute> getAttributes() {
+		if (decodedAttributes == null) {
+			int numAttributes = getAttributesNum();
+			Collection<Attribute> attrs = new ArrayList<Attribute>(numAttributes);
+			int index = start+ATTRIBUTES_OFFSET;
+			for (int i=0; i<numAttributes; i++) {
+				int nameLength = readInt(index);
+				Symbol name;
+				if (nameLength < 0) {
+					name = getName(nameLength);
+					index += 4;
+				} else {
+					checkBounds(index+4, nameLength);
+					name = SymbolTable.getSymbol(frame, index+4, nameLength);
+					index += 4+nameLength;
+				}
+				ValType type = decodeValType(index);
+				if (type==ValType.INT) attrs.add(new Attribute(name, readInt(index+1)));
+				else if (type==ValType.FLOAT) attrs.add(new Attribute(name, Float.intBitsToFloat(readInt(index+1))));
+				else if (type==ValType.BOOL) attrs.add(new Attribute(name, readByte(index+1) == 1));
+				else attrs.add(new Attribute(name, readString(index+1)));
+				index = skipValue(index);
+			}
+			decodedAttributes = Collections.unmodifiableCollection(attrs);
+		}
+		return decodedAttributes;
+	}
+
+	/**
+	 * Returns a modifiable publication with the same content.
+	 */
+	public PubPkt toPubPkt() {
+		return new PubPkt(getEventType(), getTimeStamp(), getAttributes());
+	}
+
+	@Override
+	public void setEventType(int eventType) {
+		throw new UnsupportedOperationException("PubPktView is read-only");
+	}
+
+	@Override
+	public void setTimeStamp(long timeStamp) {
+		throw new UnsupportedOperationException("PubPktView is read-only");
+	}
+
+	@Override
+	public void addAttribute(Attribute attribute) {
+		throw new UnsupportedOperationException("PubPktView is read-only");
+	}
+
+	/**
+	 * Returns the index of the value of the attribute with the given name, starting
+	 * from its type, or -1 if there is none.
+	 */
+	private int findValue(String name) {
+		// Non ASCII names are compared with their UTF-8 encoding
+		byte[] nameBytes = StringCodec.isAscii(name) ? null : name.getBytes(StandardCharsets.UTF_8);
+		int numAttributes = getAttributesNum();
+		int index = start+ATTRIBUTES_OFFSET;
+		for (int i=0; i<numAttributes; i++) {
+			int nameLength = readInt(index);
+			index += 4;
+			if (nameLength < 0) {
+				if (getName(nameLength).getName().equals(name)) return index;
+				index = skipValue(index);
+				continue;
+			}
+			checkBounds(index, nameLength);
+			boolean found = nameBytes == null ? nameEquals(index, nameLength, name) : nameEquals(index, nameLength, nameBytes);
+			index += nameLength;
+			if (found) return index;
+			index = skipValue(index);
+		}
+		return -1;
+	}
+
+	private int findValue(String name, ValType type) {
+		int index = findValue(name);
+		if (index < 0) throw new IllegalArgumentException("No attribute "+name);
+		if (decodeValType(index) != type) throw new IllegalArgumentException("Attribute "+name+" is not of type "+type);
+		return index;
+	}
+
+	/**
+	 * Returns the index of the first byte after the value starting, with its type, at the given index.
+	 */
+	private int skipValue(int index) {
+		ValType type = decodeValType(index);
+		if (type==ValType.BOOL) return index+2;
+		if (type==ValType.STRING) {
+			int stringLength = readInt(index+1);
+			checkBounds(index+5, stringLength);
+			return index+5+stringLength;
+		}
+		return index+5;
+	}
+
+	/**
+	 * Returns the name referred to by the given negative length.
+	 */
+	private Symbol getName(int nameLength) {
+		if (names == null) throw new IllegalArgumentException("Name reference without a name dictionary");
+		return names.getName(-nameLength-1);
+	}
+
+	private ValType decodeValType(int index) {
+		switch (readByte(index)) {
+		case 0: return ValType.INT;
+		case 1: return ValType.FLOAT;
+		case 2: return ValType.BOOL;
+		default: return ValType.STRING;
+		}
+	}
+
+	private boolean nameEquals(int index, int nameLength, String name) {
+		if (nameLength != name.length()) return false;
+		for (int i=0; i<nameLength; i++) {
+			if (frame[index+i] != (byte) name.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean nameEquals(int index, int nameLength, byte[] nameBytes) {
+		if (nameLength != nameBytes.length) return false;
+		for (int i=0; i<nameLength; i++) {
+			if (frame[index+i] != nameBytes[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that the given number of bytes, from the given index, are within the body.
+	 * 
+	 * @throws IllegalArgumentException if they are not
+	 */
+	private void checkBounds(int index, int count) {
+		if (count < 0 || index < start || count > start+length-index) {
+			throw new IllegalArgumentException("Malformed publication: "+count+" bytes at "+(index-start)+" exceed the body of "+length+" bytes");
+		}
+	}
+
+	private byte readByte(int index) {
+		checkBounds(index, 1);
+		return frame[index];
+	}
+
+	private int readInt(int index) {
+		checkBounds(index, 4);
+		return ((frame[index] & 0xff) << 24) | ((frame[index+1] & 0xff) << 16)
+				| ((frame[index+2] & 0xff) << 8) | (frame[index+3] & 0xff);
+	}
+
+	private String readString(int index) {
+		int stringLength = readInt(index);
+		checkBounds(index+4, stringLength);
+		return StringCodec.decode(frame, index+4, stringLength);
+	}
+}
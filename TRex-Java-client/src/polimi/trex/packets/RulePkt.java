@@ -20,11 +20,12 @@
 
 package polimi.trex.packets;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import polimi.trex.common.TAggregate;
 import polimi.trex.common.ComplexParameter;
@@ -34,83 +35,124 @@ import polimi.trex.common.Negation;
 
 
 /**
- * Defines a RulePkt, used to send a rule to the T-Rex engine
+ * Defines a RulePkt, used to send a rule to the T-Rex engine.
+ * Predicates, parameters, negations and aggregates are identified by their index,
+ * in the order they are added, and stored in arrays.
  */
 public class RulePkt implements TRexPkt {
-	private Map<Integer, EventPredicate> predicates;
-	private Map<Integer, ComplexParameter> parameters;
-	private Map<Integer, Negation> negations;
-	private Map<Integer, TAggregate> aggregates;
-	Set<Integer> consuming;
+	private final static int INITIAL_CAPACITY= 4;
+
+	private EventPredicate[] predicates;
+	private int predicatesNum;
+	private ComplexParameter[] parameters;
+	private int parametersNum;
+	private Negation[] negations;
+	private int negationsNum;
+	private TAggregate[] aggregates;
+	private int aggregatesNum;
+	private int[] consuming;
+	private int consumingNum;
 	EventTemplate eventTemplate;
 
 	public RulePkt(EventTemplate eventTemplate) {
 		this.eventTemplate = eventTemplate;
-		predicates = new HashMap<Integer, EventPredicate>();
-		parameters = new HashMap<Integer, ComplexParameter>();
-		negations = new HashMap<Integer, Negation>();
-		aggregates = new HashMap<Integer, TAggregate>();
-		consuming = new HashSet<Integer>();
+		predicates = new EventPredicate[INITIAL_CAPACITY];
+		parameters = new ComplexParameter[INITIAL_CAPACITY];
+		negations = new Negation[INITIAL_CAPACITY];
+		aggregates = new TAggregate[INITIAL_CAPACITY];
+		consuming = new int[INITIAL_CAPACITY];
 	}
 	
 	public RulePkt(RulePkt trexRulePkt) {
 		this(trexRulePkt.getEventTemplate());
+		for (int i=0; i<trexRulePkt.predicatesNum; i++) addPredicate(trexRulePkt.predicates[i]);
+		for (int i=0; i<trexRulePkt.parametersNum; i++) addParameter(trexRulePkt.parameters[i]);
+		for (int i=0; i<trexRulePkt.negationsNum; i++) addNegation(trexRulePkt.negations[i]);
+		for (int i=0; i<trexRulePkt.aggregatesNum; i++) addAggregate(trexRulePkt.aggregates[i]);
+		for (int i=0; i<trexRulePkt.consumingNum; i++) addConsuming(trexRulePkt.consuming[i]);
 	}
 	
 	public int getPredicatesNum() {
-		return predicates.size();
+		return predicatesNum;
 	}
 
 	public EventPredicate getPredicates(int index) {
-		return predicates.get(index);
+		return (index >= 0 && index < predicatesNum) ? predicates[index] : null;
 	}
 
 	public void addPredicate(EventPredicate predicate) {
-		predicates.put(predicates.size(), predicate);
+		if (predicatesNum == predicates.length) predicates = Arrays.copyOf(predicates, predicatesNum*2);
+		predicates[predicatesNum++] = predicate;
 	}
 
 	public int getParametersNum() {
-		return parameters.size();
+		return parametersNum;
 	}
 
 	public ComplexParameter getParameter(int index) {
-		return parameters.get(index);
+		return (index >= 0 && index < parametersNum) ? parameters[index] : null;
 	}
 
 	public void addParameter(ComplexParameter parameter) {
-		parameters.put(parameters.size(), parameter);
+		if (parametersNum == parameters.length) parameters = Arrays.copyOf(parameters, parametersNum*2);
+		parameters[parametersNum++] = parameter;
 	}
 	
 	public int getNegationsNum() {
-		return negations.size();
+		return negationsNum;
 	}
 
 	public Negation getNegation(int index) {
-		return negations.get(index);
+		return (index >= 0 && index < negationsNum) ? negations[index] : null;
 	}
 
 	public void addNegation(Negation negation) {
-		negations.put(negations.size(), negation);
+		if (negationsNum == negations.length) negations = Arrays.copyOf(negations, negationsNum*2);
+		negations[negationsNum++] = negation;
 	}
 	
 	public int getAggregatesNum() {
-		return aggregates.size();
+		return aggregatesNum;
 	}
 
 	public TAggregate getAggregate(int index) {
-		return aggregates.get(index);
+		return (index >= 0 && index < aggregatesNum) ? aggregates[index] : null;
 	}
 
 	public void addAggregate(TAggregate aggregate) {
-		aggregates.put(aggregates.size(), aggregate);
+		if (aggregatesNum == aggregates.length) aggregates = Arrays.copyOf(aggregates, aggregatesNum*2);
+		aggregates[aggregatesNum++] = aggregate;
 	}
 	
+	public int getConsumingNum() {
+		return consumingNum;
+	}
+	
+	public int getConsuming(int index) {
+		if (index < 0 || index >= consumingNum) throw new IndexOutOfBoundsException("Index: "+index);
+		return consuming[index];
+	}
+	
+	/**
+	 * Returns a copy of the indexes of the consumed predicates.
+	 */
 	public Collection<Integer> getConsuming() {
-		return consuming;
+		Collection<Integer> result = new ArrayList<Integer>(consumingNum);
+		for (int i=0; i<consumingNum; i++) result.add(consuming[i]);
+		return result;
 	}
 	
 	public void addConsuming(int consumingIndex) {
-		consuming.add(consumingIndex);
+		if (isConsuming(consumingIndex)) return;
+		if (consumingNum == consuming.length) consuming = Arrays.copyOf(consuming, consumingNum*2);
+		consuming[consumingNum++] = consumingIndex;
+	}
+	
+	public boolean isConsuming(int index) {
+		for (int i=0; i<consumingNum; i++) {
+			if (consuming[i] == index) return true;
+		}
+		return false;
 	}
 	
 	public EventTemplate getEventTemplate() {
@@ -121,20 +163,38 @@ public class RulePkt implements TRexPkt {
 		this.eventTemplate = et;
 	}
 	
+	/**
+	 * Returns a copy of the predicates, indexed by position.
+	 */
 	public Map<Integer, EventPredicate> getPredicates() {
-		return predicates;
+		return toMap(predicates, predicatesNum);
 	}
 
+	/**
+	 * Returns a copy of the parameters, indexed by position.
+	 */
 	public Map<Integer, ComplexParameter> getParameters() {
-		return parameters;
+		return toMap(parameters, parametersNum);
 	}
 
+	/**
+	 * Returns a copy of the negations, indexed by position.
+	 */
 	public Map<Integer, Negation> getNegations() {
-		return negations;
+		return toMap(negations, negationsNum);
 	}
 
+	/**
+	 * Returns a copy of the aggregates, indexed by position.
+	 */
 	public Map<Integer, TAggregate> getAggregates() {
-		return aggregates;
+		return toMap(aggregates, aggregatesNum);
+	}
+
+	private static <T> SortedMap<Integer, T> toMap(T[] elements, int num) {
+		SortedMap<Integer, T> result = new TreeMap<Integer, T>();
+		for (int i=0; i<num; i++) result.put(i, elements[i]);
+		return result;
 	}
 
 	@Override
@@ -143,29 +203,23 @@ public class RulePkt implements TRexPkt {
 		if (obj == null) return false;
 		if (!(obj instanceof RulePkt)) return false;
 		RulePkt other = (RulePkt) obj;
-		if (predicates.size() != other.predicates.size()) return false;
-		for (Integer key : predicates.keySet()) {
-			if (! other.predicates.containsKey(key)) return false;
-			if (! other.predicates.get(key).equals(predicates.get(key))) return false;
-		}
-		if (aggregates.size() != other.aggregates.size()) return false;
-		for (Integer key : aggregates.keySet()) {
-			if (! other.aggregates.containsKey(key)) return false;
-			if (! other.aggregates.get(key).equals(aggregates.get(key))) return false;
-		}
-		if (negations.size() != other.negations.size()) return false;
-		for (Integer key : negations.keySet()) {
-			if (! other.negations.containsKey(key)) return false;
-			if (! other.negations.get(key).equals(negations.get(key))) return false;
-		}
-		if (parameters.size() != other.parameters.size()) return false;
-		for (Integer key : parameters.keySet()) {
-			if (! other.parameters.containsKey(key)) return false;
-			if (! other.parameters.get(key).equals(parameters.get(key))) return false;
+		if (! elementsEqual(predicates, predicatesNum, other.predicates, other.predicatesNum)) return false;
+		if (! elementsEqual(aggregates, aggregatesNum, other.aggregates, other.aggregatesNum)) return false;
+		if (! elementsEqual(negations, negationsNum, other.negations, other.negationsNum)) return false;
+		if (! elementsEqual(parameters, parametersNum, other.parameters, other.parametersNum)) return false;
+		if (consumingNum != other.consumingNum) return false;
+		for (int i=0; i<consumingNum; i++) {
+			if (! other.isConsuming(consuming[i])) return false;
 		}
-		if (consuming.size() != other.consuming.size()) return false;
-		if (! consuming.containsAll(other.consuming)) return false;
 		if (! eventTemplate.equals(other.eventTemplate)) return false;
 		return true;
 	}
+
+	private static boolean elementsEqual(Object[] elements, int num, Object[] otherElements, int otherNum) {
+		if (num != otherNum) return false;
+		for (int i=0; i<num; i++) {
+			if (! otherElements[i].equals(elements[i])) return false;
+		}
+		return true;
+	}
 }
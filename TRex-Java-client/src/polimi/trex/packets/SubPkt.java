@@ -23,8 +23,8 @@ package polimi.trex.packets;
 import java.util.ArrayList;
 import java.util.Collection;
 
-import polimi.trex.common.Attribute;
 import polimi.trex.common.Constraint;
+import polimi.trex.common.ConstraintPredicates;
 import polimi.trex.common.Matcher;
 
 
@@ -32,6 +32,8 @@ public class SubPkt implements TRexPkt {
 	private int eventType;
 	private Matcher matcher;
 	protected Collection<Constraint> constraints;
+	// Event type and constraints compiled, when first needed
+	private volatile Matcher predicate;
 	
 	public SubPkt(int eventType) {
 		this.matcher = null;
@@ -59,7 +61,7 @@ public class SubPkt implements TRexPkt {
 		this.matcher = m;
 	}
 	
-	protected Matcher getCustomMatcher() {
+	public Matcher getCustomMatcher() {
 		return this.matcher;
 	}
 	
@@ -69,119 +71,32 @@ public class SubPkt implements TRexPkt {
 	 * @param pkt
 	 * @return 0 if this wasn't the subscription to which the pubpkt was addressed
 	 * 		   -1 if this was the subscription to which the pubpkt was addressed but the custom matcher failed
-	 *  		1 if this was the subscription to which the pubpkt was addressed and the custom matcher succeeded
+	 *  		1 if this was the subscription to which the pubpkt was addressed and the custom matcher succeeded,
+	 *  		  or there is no custom matcher
 	 */
 	public int match(PubPkt pkt) {
-		//first I must match event type
-		if (this.eventType != pkt.getEventType()) return 0;
-		//Then constraints
-		Collection<Attribute> attrs = pkt.getAttributes();
-		//Here comes a list of switches that handle all the value types and the operators.
-		//This is just like the one found in the TRexServer project, in the TRexUtils.cpp file
-		for (Constraint constr: this.constraints) {
-			for (Attribute at: attrs) {
-			   if (constr.getName().equals(at.getName())) {
-				   switch (constr.getValType()) {
-					   case INT:
-						   switch (constr.getOp()) {
-						   	case EQ:
-						   		if (constr.getIntVal()!=at.getIntVal()) return 0;
-						   		
-						   	case NE:
-						   		if (constr.getIntVal()==at.getIntVal()) return 0;
-						   		
-						   	case GT:
-						   		if (constr.getIntVal()<=at.getIntVal()) return 0;
-						   		
-						   	case LT:
-						   		if (constr.getIntVal()>=at.getIntVal()) return 0;
-							
-						   	case LE:
-						   		if (constr.getIntVal()>at.getIntVal()) return 0;
-						   		
-							case GE:
-						   		if (constr.getIntVal()<at.getIntVal()) return 0;
-						   	default:
-						   		break;
-						   }
-						   break;
-						   
-					   case FLOAT:
-						   switch (constr.getOp()) {
-						   	case EQ:
-						   		if (constr.getFloatVal()!=at.getFloatVal()) return 0;
-						   		
-						   	case NE:
-						   		if (constr.getFloatVal()==at.getFloatVal()) return 0;
-						   		
-						   	case GT:
-						   		if (constr.getFloatVal()<=at.getFloatVal()) return 0;
-						   		
-						   	case LT:
-						   		if (constr.getFloatVal()>=at.getFloatVal()) return 0;
-						   		
-						   	case LE:
-						   		if (constr.getFloatVal()>at.getFloatVal()) return 0;
-						   		
-						   	case GE:
-						   		if (constr.getFloatVal()<at.getFloatVal()) return 0;
-						   		
-						   	default:
-						   		break;
-						   }
-						   break;
-						   
-					   case BOOL:
-						   switch (constr.getOp()) {
-						   	case EQ:
-						   		if (constr.getBoolVal()!=at.getBoolVal()) return 0;
-						   		
-						   	case NE:
-						   		if (constr.getBoolVal()==at.getBoolVal()) return 0;
-						   		
-						   	default:
-						   		break;
-						   }
-						   break;
-						   
-					   case STRING:
-						   switch (constr.getOp()) {
-						   	case EQ:
-						   		if (!constr.getStringVal().equals(at.getStringVal())) return 0;
-						   		
-						   	case NE:
-						   		if (constr.getStringVal().equals(at.getStringVal())) return 0;
-						   		
-						   	//Not defined for strings
-						   	case GT:
-						   		return 0;
-						   	
-						   	//Not defined for strings	
-						   	case LT:
-						   		return 0;
-						   		
-						   	case IN:
-						   		//FROM SERVER CODE, TRexUtils.cpp
-						   		// The constraint's value should be a substring of the attribute's value:
-								// it is a filter specified for published events' attributes
-						   		if (at.getStringVal().indexOf(constr.getStringVal()) < 0) return 0;
-						   		
-						   	default:
-						   		break;
-						   }
-						   break;
-						   
-					   default:
-						   break;
-			   }
-			   }
-			}
-		}
+		if (!matches(pkt)) return 0;
 		//And finally the custom matcher
-		if (matcher.match(pkt)) return 1;
+		if (matcher == null || matcher.match(pkt)) return 1;
 		else return -1;
 	}
 	
+	/**
+	 * Returns true if the given publication has the event type of this subscription and satisfies
+	 * all its constraints, as evaluated by the server (see {@link ConstraintPredicates}).
+	 * Event type and constraints are compiled when first needed, and again after
+	 * {@link #setEventType(int)} or {@link #addConstraint(Constraint)}: the collection
+	 * of constraints must not be modified otherwise.
+	 */
+	public boolean matches(PubPkt pkt) {
+		Matcher current = predicate;
+		if (current == null) {
+			current = ConstraintPredicates.compile(eventType, constraints);
+			predicate = current;
+		}
+		return current.match(pkt);
+	}
+	
 	public boolean hasCustomMatcher() {
 		return (this.matcher!=null);
 	}
@@ -192,6 +107,7 @@ public class SubPkt implements TRexPkt {
 
 	public void setEventType(int eventType) {
 		this.eventType = eventType;
+		this.predicate = null;
 	}
 
 	public Collection<Constraint> getConstraints() {
@@ -200,6 +116,7 @@ public class SubPkt implements TRexPkt {
 
 	public void addConstraint(Constraint constraint) {
 		constraints.add(constraint);
+		predicate = null;
 	}
 
 	@Override
@@ -38,7 +38,10 @@ public interface TRexPkt {
 		SUB_PACKET(PktType.SUB_PKT.ordinal()),
 		RULE_PACKET(PktType.RULE_PKT.ordinal()),
 		UNSUB_PACKET(100),
-		PING_PACKET(101);
+		PING_PACKET(101),
+		HELLO_PACKET(102),
+		NAME_DEF_PACKET(103),
+		COMPRESSED_PACKET(104);
 		
 		private final int value;
 		PacketType(int value) { this.value = value; }
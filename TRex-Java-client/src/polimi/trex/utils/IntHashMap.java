@@ -0,0 +1,185 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map with primitive <code>int</code> keys, based on open addressing with
+ * linear probing, so that lookups neither box the key nor allocate.
+ * Null values are not allowed. This class is not thread safe.
+ */
+public class IntHashMap<V> {
+	private final static int DEFAULT_CAPACITY= 16;
+	
+	private int[] keys;
+	private Object[] values;
+	private int size;
+	
+	public IntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a map able to hold the given number of entries without resizing.
+	 */
+	public IntHashMap(int expectedSize) {
+		int capacity= DEFAULT_CAPACITY;
+		while (capacity*3/4 < expectedSize) capacity*= 2;
+		keys= new int[capacity];
+		values= new Object[capacity];
+		size= 0;
+	}
+	
+	/**
+	 * Creates a copy of the given map.
+	 */
+	public IntHashMap(IntHashMap<V> other) {
+		keys= Arrays.copyOf(other.keys, other.keys.length);
+		values= Arrays.copyOf(other.values, other.values.length);
+		size= other.size;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int mask= keys.length-1;
+		for (int i= hash(key) & mask; values[i] != null; i= (i+1) & mask) {
+			if (keys[i] == key) return (V) values[i];
+		}
+		return null;
+	}
+	
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+	
+	/**
+	 * Associates the given value to the given key.
+	 * 
+	 * @return the value previously associated to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) throw new NullPointerException("Null values are not allowed");
+		int mask= keys.length-1;
+		int i= hash(key) & mask;
+		for (; values[i] != null; i= (i+1) & mask) {
+			if (keys[i] == key) {
+				V old= (V) values[i];
+				values[i]= value;
+				return old;
+			}
+		}
+		keys[i]= key;
+		values[i]= value;
+		if (++size > keys.length*3/4) resize(keys.length*2);
+		return null;
+	}
+	
+	/**
+	 * Removes the given key from the map.
+	 * 
+	 * @return the value associated to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int mask= keys.length-1;
+		int i= hash(key) & mask;
+		for (; values[i] != null; i= (i+1) & mask) {
+			if (keys[i] == key) break;
+		}
+		if (values[i] == null) return null;
+		V old= (V) values[i];
+		values[i]= null;
+		size--;
+		// Re-insert the following entries of the same cluster, which may not be reachable any more
+		for (int j= (i+1) & mask; values[j] != null; j= (j+1) & mask) {
+			int k= keys[j];
+			Object v= values[j];
+			values[j]= null;
+			int h= hash(k) & mask;
+			while (values[h] != null) h= (h+1) & mask;
+			keys[h]= k;
+			values[h]= v;
+		}
+		return old;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Returns a new list with the values of the map, in no particular order.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> result= new ArrayList<V>(size);
+		for (Object v : values) {
+			if (v != null) result.add((V) v);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns a new array with the keys of the map, in no particular order.
+	 */
+	public int[] keys() {
+		int[] result= new int[size];
+		int j= 0;
+		for (int i=0; i<keys.length; i++) {
+			if (values[i] != null) result[j++]= keys[i];
+		}
+		return result;
+	}
+	
+	public void clear() {
+		Arrays.fill(values, null);
+		size= 0;
+	}
+	
+	private void resize(int capacity) {
+		int[] oldKeys= keys;
+		Object[] oldValues= values;
+		keys= new int[capacity];
+		values= new Object[capacity];
+		int mask= capacity-1;
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldValues[i] == null) continue;
+			int j= hash(oldKeys[i]) & mask;
+			while (values[j] != null) j= (j+1) & mask;
+			keys[j]= oldKeys[i];
+			values[j]= oldValues[i];
+		}
+	}
+	
+	private static int hash(int key) {
+		// Spreads consecutive keys (as event types usually are) over the table
+		int h= key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
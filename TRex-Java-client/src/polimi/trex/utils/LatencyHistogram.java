@@ -0,0 +1,188 @@
+//
+// This file is part of T-Rex, a Complex Event Processing Middleware.
+// See http://home.dei.polimi.it/margara
+//
+// Authors: Francesco Feltrinelli
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program.  If not, see http://www.gnu.org/licenses/.
+//
+
+package polimi.trex.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, with a fixed set of buckets: values are
+ * grouped by power of two, and each power of two is split in 8 linear buckets, so that
+ * percentiles are reported with an error below 12.5%, using less than 4 KB of memory.
+ * Recording a value neither allocates nor locks. Recording and reading may happen
+ * concurrently: percentiles are then computed on a recent, possibly partial, state.
+ */
+public class LatencyHistogram {
+	private final static int SUB_BUCKET_BITS= 3;
+	private final static int SUB_BUCKETS= 1 << SUB_BUCKET_BITS;
+	private final static int NUM_BUCKETS= (64-SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private AtomicLong count;
+	private AtomicLong sum;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		counts= new AtomicLongArray(NUM_BUCKETS);
+		count= new AtomicLong();
+		sum= new AtomicLong();
+		max= new AtomicLong();
+	}
+
+	/**
+	 * Records the given latency, in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos= 0;
+		counts.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long currentMax;
+		while (nanos > (currentMax= max.get())) {
+			if (max.compareAndSet(currentMax, nanos)) break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the maximum recorded latency, in nanoseconds, or 0 if none was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded latencies, in nanoseconds, or 0 if none was recorded.
+	 */
+	public double getMean() {
+		long n= count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns the latency, in nanoseconds, below which the given percentage of
+	 * the recorded latencies fall, or 0 if none was recorded.
+	 * 
+	 * @param percentile the percentage, between 0 and 100
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid percentile: "+percentile);
+		long n= 0;
+		long[] snapshot= new long[NUM_BUCKETS];
+		for (int i=0; i<NUM_BUCKETS; i++) {
+			snapshot[i]= counts.get(i);
+			n+= snapshot[i];
+		}
+		if (n == 0) return 0;
+		long rank= Math.max(1, (long) Math.ceil(percentile/100*n));
+		long seen= 0;
+		for (int i=0; i<NUM_BUCKETS; i++) {
+			seen+= snapshot[i];
+			if (seen >= rank) return Math.min(getUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns count, mean, median, 99th percentile and maximum of the recorded latencies.
+	 */
+	public Summary getSummary() {
+		return new Summary(getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+
+	/**
+	 * Removes all the recorded latencies.
+	 */
+	public void reset() {
+		for (int i=0; i<NUM_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return getSummary().toString();
+	}
+
+	/**
+	 * An immutable summary of a {@link LatencyHistogram}. Latencies are in nanoseconds.
+	 */
+	public static class Summary {
+		private long count;
+		private double mean;
+		private long p50;
+		private long p99;
+		private long max;
+
+		public Summary(long count, double mean, long p50, long p99, long max) {
+			this.count= count;
+			this.mean= mean;
+			this.p50= p50;
+			this.p99= p99;
+			this.max= max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d p50=%.3fms p99=%.3fms max=%.3fms", count, p50/1e6, p99/1e6, max/1e6);
+		}
+	}
+
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int msb= 63-Long.numberOfLeadingZeros(value);
+		int shift= msb-SUB_BUCKET_BITS;
+		return (shift+1)*SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS-1));
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int shift= bucket/SUB_BUCKETS-1;
+		long lower= ((long) (SUB_BUCKETS + bucket%SUB_BUCKETS)) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
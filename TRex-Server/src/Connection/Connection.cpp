@@ -70,7 +70,20 @@ void Connection::handleRead(const boost::system::error_code& error, std::size_t
 		if (usePing) {
 			pingReceiveTimer.cancel();
 		}
-		requestHandler.handleRequest<BUFFER_LENGTH>(buffer, bytes_transferred);
+		try {
+			requestHandler.handleRequest<BUFFER_LENGTH>(buffer, bytes_transferred);
+		} catch (std::exception &e) {
+			// Malformed or unknown packets (such as the handshakes of newer clients)
+			// only close this connection, instead of terminating the server
+			LOG(warning) << "Invalid packet received from " << printRemoteEndpoint() << ": " << e.what();
+			closeSocket();
+			stopTimers= true;
+			if (usePing) {
+				pingReceiveTimer.cancel();
+				pingSendTimer.cancel();
+			}
+			return;
+		}
 		asyncReadSome();
 	} else {
 		if(error==boost::asio::error::eof) LOG(warning) << "Connection closed while receiving from " << printRemoteEndpoint();